@@ -0,0 +1,11 @@
+UPDATE entries SET auction_id = (SELECT MAX(id) FROM auctions WHERE auctions.identifier = entries.identifier) WHERE identifier IS NOT NULL AND COALESCE(auction_id, -1) != COALESCE((SELECT MAX(id) FROM auctions WHERE auctions.identifier = entries.identifier), COALESCE(auction_id, -1))
+
+DELETE FROM auctions WHERE identifier IS NOT NULL AND id < (SELECT MAX(a2.id) FROM auctions a2 WHERE a2.identifier = auctions.identifier)
+
+DELETE FROM entries WHERE identifier IS NOT NULL AND id < (SELECT MAX(e2.id) FROM entries e2 WHERE e2.identifier = entries.identifier)
+
+DELETE FROM entries WHERE auction_id IS NOT NULL AND id < (SELECT MAX(e2.id) FROM entries e2 WHERE e2.auction_id = entries.auction_id)
+
+ALTER TABLE auctions ADD CONSTRAINT UQ_Auction_Identifier UNIQUE (identifier)
+
+ALTER TABLE entries ADD CONSTRAINT UQ_Entry_Identifier UNIQUE (identifier)
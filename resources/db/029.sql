@@ -0,0 +1,3 @@
+ALTER TABLE auctions ADD COLUMN lock_version integer default 0
+
+ALTER TABLE entries ADD COLUMN lock_version integer default 0
@@ -0,0 +1,55 @@
+ALTER TABLE archived_auctions ADD COLUMN ended smallint default NULL
+
+ALTER TABLE archived_auctions ADD COLUMN created_at timestamp default NULL
+
+ALTER TABLE archived_auctions ADD COLUMN updated_at timestamp default NULL
+
+ALTER TABLE archived_auctions ADD COLUMN lock_version integer default 0
+
+CREATE TABLE archived_entries (
+  id integer NOT NULL,
+  auction_id integer default NULL,
+  comment varchar(255) default NULL,
+  shipping decimal(10,2) default NULL,
+  last_bid_amount decimal(10,2) default NULL,
+  last_bid_quantity integer default NULL,
+  last_bid_at timestamp default NULL,
+  currency varchar(10),
+  multisnipe_id integer default NULL,
+  snipe_id integer default NULL,
+  category_id integer default NULL,
+  last_updated_at timestamp default NULL,
+  ended smallint default NULL,
+  invalid smallint default NULL,
+  sticky smallint default NULL,
+  deleted smallint default NULL,
+  last_error_page clob,
+  identifier varchar(255) default NULL,
+  winning smallint default NULL,
+  created_at timestamp default NULL,
+  updated_at timestamp default NULL,
+  watcher_count integer default NULL,
+  sniped_amount DECIMAL(10, 2) DEFAULT NULL,
+  auto_canceled SMALLINT,
+  was_sniped SMALLINT DEFAULT 0,
+  lock_version integer default 0,
+  PRIMARY KEY (id)
+)
+
+CREATE INDEX IDX_Archive_Entry_Identifier ON archived_entries(identifier)
+
+CREATE INDEX IDX_Archive_Entry_Auctions ON archived_entries(auction_id)
+
+CREATE INDEX IDX_Archive_Entry_Category ON archived_entries(category_id)
+
+CREATE TABLE archived_events (
+  id integer NOT NULL,
+  entry_id integer default NULL,
+  repeat_count integer default 0,
+  created_at timestamp default NULL,
+  message varchar(255) default NULL,
+  title varchar(255) default NULL,
+  PRIMARY KEY  (id)
+)
+
+CREATE INDEX IDX_Archive_Events_Entries ON archived_events(entry_id)
@@ -1,5 +1,6 @@
 package com.jbidwatcher;
 
+import com.jbidwatcher.util.db.ConnectionPool;
 import com.jbidwatcher.util.db.Database;
 import com.jbidwatcher.util.db.Table;
 import com.jbidwatcher.util.StringTools;
@@ -24,16 +25,13 @@ import java.text.NumberFormat;
 public class Upgrader {
   public static void upgrade() throws SQLException, IllegalAccessException, InstantiationException, ClassNotFoundException {
     Database db = new Database(null);
-    if(dbMake(db)) {
-      db.commit();
-      db.shutdown();
-      db = dbMigrate();
-    }
+    boolean made = dbMake(db);
     db.commit();
-    db.shutdown();
+    db.close();
+    if(made) dbMigrate();
   }
 
-  private static Database dbMigrate() throws IllegalAccessException, SQLException, ClassNotFoundException, InstantiationException {
+  private static void dbMigrate() throws IllegalAccessException, SQLException, ClassNotFoundException, InstantiationException {
     Table schemaInfo = new Table("schema_info");
     List<Record> info = schemaInfo.findAll();
     if(info != null) {
@@ -45,16 +43,23 @@ public class Upgrader {
         version++;
         NumberFormat nf = NumberFormat.getIntegerInstance();
         nf.setMinimumIntegerDigits(3);
-        Statement s = schemaInfo.getDB().getStatement();
-        while(runFile(schemaInfo.getDB(), s, "/db/" + nf.format(version) + ".sql")) {
-          record.setInteger("version", version);
-          schemaInfo.updateMap("schema_info", "version", Integer.toString(last_version), record.getBacking());
-          last_version = version;
-          version++;
+        ConnectionPool pool = ConnectionPool.getInstance();
+        Database db = pool.acquire();
+        try {
+          Statement s = db.getStatement();
+          while(runFile(db, s, "/db/" + nf.format(version) + ".sql")) {
+            record.setInteger("version", version);
+            schemaInfo.updateMap("schema_info", "version", Integer.toString(last_version), record.getBacking());
+            last_version = version;
+            version++;
+          }
+          s.close();
+          db.commit();
+        } finally {
+          pool.release(db);
         }
       }
     }
-    return schemaInfo.getDB();
   }
 
   private static boolean tableExists(Statement s, String tableName) throws SQLException {
@@ -702,6 +702,17 @@ public final class JBidWatch implements JConfig.ConfigListener {
     q.preQueue("ALLOW_UPDATES", "Swing", now + (Constants.ONE_SECOND * 20));
     establishMetrics(q, now);
 
+    //  Move long-ended listings out of the way once a day, starting once everything's loaded.
+    if(Archiver.isEnabled()) {
+      MQFactory.getConcrete("archiver").registerListener(new MessageQueue.Listener() {
+        public void messageAction(Object deQ) {
+          Archiver.archiveEnded();
+        }
+      });
+      q.preQueue("ARCHIVE", "archiver", now + Constants.ONE_MINUTE * 10, Constants.ONE_DAY);
+    }
+    DatabaseMaintainer.start(q, now);
+
     q.preQueue("JBidwatcher.after_startup", "run-script", now + (Constants.ONE_SECOND * 2));
   }
 
@@ -772,6 +783,7 @@ public final class JBidWatch implements JConfig.ConfigListener {
       AuctionStats as = serverManager.getStats();
       JConfig.setConfiguration("last.auctioncount", Integer.toString(as.getCount()));
       JConfig.saveConfiguration(cfgFilename);
+      TimeQueueManager.flushAll();
       ActiveRecord.shutdown();
     } catch(Exception e) {
       JConfig.log().handleException("Threw an error during shutdown!  Shutting down anyway!", e);
@@ -37,7 +37,7 @@ import static com.jbidwatcher.util.UIConstants.*;
  * The class that handles most of the queued UI messages.
  */
 @Singleton
-public final class UIBackbone implements MessageQueue.Listener {
+public final class UIBackbone implements MessageQueue.Supersedable {
   private boolean _userValid;
   private Date mNow = new Date();
   private Calendar mCal = new GregorianCalendar();
@@ -61,7 +61,7 @@ public final class UIBackbone implements MessageQueue.Listener {
     this.pauseManager = pauseManager;
     this.toolBar = toolBar;
 
-    TimerHandler clockTimer = new TimerHandler(new TimerHandler.WakeupProcess() {
+    TimerHandler clockTimer = new TimerHandler(new TimerHandler.DeadlineProcess() {
       /**
        * Check and update the clock every second; also handles recognition of sleep-based slippage of time.
        *
@@ -71,6 +71,13 @@ public final class UIBackbone implements MessageQueue.Listener {
         checkClock();
         return true;
       }
+
+      /**
+       * @return The start of the next second, so the clock ticks over when the seconds do.
+       */
+      public long nextDeadline() {
+        return (System.currentTimeMillis() / Constants.ONE_SECOND + 1) * Constants.ONE_SECOND;
+      }
     });
     clockTimer.setName("Clock");
     clockTimer.start();
@@ -100,6 +107,48 @@ public final class UIBackbone implements MessageQueue.Listener {
     return _linkUp;
   }
 
+  //  The commands messageAction() has a case for; every other message goes to the status line.
+  //  Adding or removing a case there means adding or removing it here too.
+  private static final Set<String> sCommands = new HashSet<>(Arrays.asList(
+      QUIT_MSG, HIDE_MSG, RESTORE_MSG, VISIBILITY_MSG, SNIPE_ALTERED_MSG, NEWVERSION_MSG, SMALL_USERINFO,
+      START_UPDATING, VALID_LOGIN_MSG, NO_NEWVERSION_MSG, BAD_NEWVERSION_MSG, TOOLBAR_MSG, HEADER_MSG,
+      LOGIN_STATUS_MSG, LINK_MSG, DEVICE_REGISTRATION, ALERT_MSG, NOACCOUNT_MSG, NOTIFY_MSG, IGNORABLE_MSG,
+      ERROR_MSG, INVALID_LOGIN_MSG, PRICE));
+  private static final String STATUS_KEY = "STATUS";
+
+  /**
+   * The header clock, price, link state and status line only need to show
+   * the latest message of each kind; everything else is always delivered.
+   */
+  public String supersedeKey(Object deQ) {
+    String cmd = ((String) deQ).split(" ", 2)[0];
+    switch(cmd) {
+      case HEADER_MSG:
+      case PRICE:
+      case LINK_MSG:
+        return cmd;
+      default:
+        return sCommands.contains(cmd) ? null : STATUS_KEY;
+    }
+  }
+
+  /**
+   * A skipped status line or link problem still goes in the activity log.
+   */
+  public void superseded(Object deQ) {
+    String[] cmdMessage = ((String) deQ).split(" ", 2);
+    if(cmdMessage[0].equals(LINK_MSG)) {
+      String linkStat = cmdMessage[1];
+      String rest = linkStat.substring(linkStat.startsWith("UP") ? 2 : 4);
+      if(rest.length() != 0) {
+        logActivity("Link issues:");
+        logActivity(rest.substring(1));
+      }
+    } else if(!sCommands.contains(cmdMessage[0])) {
+      logActivity((String) deQ);
+    }
+  }
+
   /**
    * Handle messages to tell the UI to do something.
    * <br>
@@ -122,6 +171,7 @@ public final class UIBackbone implements MessageQueue.Listener {
    */
   public void messageAction(Object deQ) {
     String[] cmdMessage = ((String) deQ).split(" ", 2);
+    //  Each case here has to be in sCommands, or supersedeKey() treats it as a status message.
     switch(cmdMessage[0]) {
       case QUIT_MSG:
         logActivity("Shutting down.");
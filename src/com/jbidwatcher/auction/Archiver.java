@@ -0,0 +1,147 @@
+package com.jbidwatcher.auction;
+
+/*
+ * Copyright (c) 2000-2007, CyberFOX Software, Inc. All Rights Reserved.
+ *
+ * Developed by mrs (Morgan Schweers)
+ */
+
+import com.jbidwatcher.util.Constants;
+import com.jbidwatcher.util.Record;
+import com.jbidwatcher.util.config.JConfig;
+import com.jbidwatcher.util.db.ActiveRecord;
+import com.jbidwatcher.util.db.ConnectionPool;
+import com.jbidwatcher.util.db.Database;
+import com.jbidwatcher.util.db.ResultCache;
+import com.jbidwatcher.util.db.RowCounter;
+import com.jbidwatcher.util.db.Table;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+
+/**
+ * Moves entries whose auctions ended a while ago, along with their
+ * auctions and events, into the archive tables, so the tables the updater
+ * and the active listings work from stay the size of what's live.
+ *
+ * An entry is archived once its auction has been over for
+ * 'db.archive.days' days (default 30); setting 'db.archive' to 'false'
+ * turns it off.  Entries go a batch at a time, along with their auctions
+ * and events, in one transaction, so none are left behind with nothing
+ * pointing to them.  Any which were (by a run before that was so) are
+ * swept up first.  The completed listings are still read from
+ * the archive, and saving or re-adding an archived entry moves it back
+ * (see Table), so nothing else needs to know.
+ */
+public class Archiver {
+  private static final int BATCH = 500;
+
+  private Archiver() { }
+
+  public static boolean isEnabled() {
+    return JConfig.queryConfiguration("db.archive", "true").equals("true");
+  }
+
+  /**
+   * Archive every entry which ended more than 'db.archive.days' days ago.
+   *
+   * @return How many entries were archived.
+   */
+  public static int archiveEnded() {
+    if(!isEnabled()) return 0;
+    long days = Long.parseLong(JConfig.queryConfiguration("db.archive.days", "30"));
+    return archiveEnded(System.currentTimeMillis() - days * Constants.ONE_DAY);
+  }
+
+  /**
+   * @param before - Entries whose auctions ended before this time are archived.
+   *
+   * @return How many entries were archived.
+   */
+  public static int archiveEnded(long before) {
+    Table entries = EntryTable.getRealDatabase();
+    if(entries == null || entries.getArchive() == null) return 0;
+    Table auctions = ActiveRecord.openDB("auctions");
+    Table events = ActiveRecord.openDB("events");
+    String cutoff = new Timestamp(before).toString();
+
+    int archived = 0;
+    //  Table.archive() works within a transaction it's already in, on the same connection.
+    ConnectionPool pool = ConnectionPool.getInstance();
+    Database db = null;
+    try {
+      db = pool.acquire();
+      Connection c = db.getConnection();
+      boolean autoCommit = c.getAutoCommit();
+      c.setAutoCommit(false);
+      try {
+        if(!commit(c, sweep(auctions, events), entries, auctions, events)) return 0;
+
+        while(true) {
+          List<Record> batch = entries.findAll("SELECT e.id, e.auction_id FROM entries e JOIN auctions a ON a.id = e.auction_id" +
+              " WHERE e.ended = 1 AND a.ending_at < ? ORDER BY e.id", BATCH, cutoff);
+          if(batch == null || batch.isEmpty()) break;
+
+          String[] entryIds = new String[batch.size()];
+          String[] auctionIds = new String[batch.size()];
+          for(int i = 0; i < batch.size(); i++) {
+            entryIds[i] = batch.get(i).get("id");
+            auctionIds[i] = batch.get(i).get("auction_id");
+          }
+          String in = " IN (" + Table.placeholders(batch.size()) + ")";
+
+          int moved = entries.archive("id" + in, entryIds);
+          boolean ok = moved > 0 && auctions.archive("id" + in, auctionIds) != -1 && events.archive("entry_id" + in, entryIds) != -1;
+          if(!commit(c, ok, entries, auctions, events)) break;
+          archived += moved;
+          if(batch.size() < BATCH) break;
+        }
+      } finally {
+        c.setAutoCommit(autoCommit);
+      }
+    } catch(SQLException e) {
+      JConfig.log().handleException("Archiving failed.", e);
+    } finally {
+      pool.release(db);
+    }
+
+    if(archived != 0) JConfig.log().logMessage("Archived " + archived + " entries which ended before " + cutoff + ".");
+    return archived;
+  }
+
+  /**
+   * Archive the auctions and events of entries which are already archived.
+   *
+   * @return false if they couldn't be moved.
+   */
+  private static boolean sweep(Table auctions, Table events) {
+    return auctions.archive("id IN (SELECT auction_id FROM archived_entries WHERE auction_id IS NOT NULL)" +
+        " AND id NOT IN (SELECT auction_id FROM entries WHERE auction_id IS NOT NULL)") != -1 &&
+        events.archive("entry_id IN (SELECT id FROM archived_entries)") != -1;
+  }
+
+  /**
+   * Commit what's been moved, or if any of it failed, none of it.
+   *
+   * @return true if it was committed.
+   */
+  private static boolean commit(Connection c, boolean ok, Table... tables) throws SQLException {
+    if(!ok) {
+      c.rollback();
+      return false;
+    }
+    c.commit();
+    //  The moves couldn't tell anyone they'd happened until now.
+    for(Table table : tables) {
+      ResultCache.getInstance().bump(table.getTableName());
+      RowCounter.changed(table.getTableName());
+      if(table.getArchive() != null) {
+        ResultCache.getInstance().bump(table.getArchive().getTableName());
+        RowCounter.changed(table.getArchive().getTableName());
+      }
+    }
+    return true;
+  }
+}
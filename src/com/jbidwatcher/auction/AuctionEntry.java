@@ -665,7 +665,7 @@ public class AuctionEntry extends AuctionCore implements Comparable<AuctionEntry
     mSnipe = null;
     setDirty();
     setNeedsUpdate();
-    saveDB();
+    saveDBNow();
   }
 
   private void setSnipedAmount(Currency amount) {
@@ -681,7 +681,7 @@ public class AuctionEntry extends AuctionCore implements Comparable<AuctionEntry
     handleCancel(true);
     setDirty();
     setNeedsUpdate();
-    saveDB();
+    saveDBNow();
   }
 
   /**
@@ -774,7 +774,7 @@ public class AuctionEntry extends AuctionCore implements Comparable<AuctionEntry
       getServer().setSnipe(getIdentifier());
     }
     setDirty();
-    saveDB();
+    saveDBNow();
     MQFactory.getConcrete("Swing").enqueue("SNIPECHANGED");
   }
 
@@ -801,7 +801,7 @@ public class AuctionEntry extends AuctionCore implements Comparable<AuctionEntry
     JConfig.log().logDebug("Bidding " + bid + " on " + bidQuantity + " item[s] of (" + getIdentifier() + ")-" + getTitle());
 
     int rval = getServer().bid(getIdentifier(), bid, bidQuantity);
-    saveDB();
+    saveDBNow();
     return rval;
   }
 
@@ -827,7 +827,7 @@ public class AuctionEntry extends AuctionCore implements Comparable<AuctionEntry
       } else {
         JConfig.getMetrics().trackEventValue("buy", "fail", Integer.toString(rval));
       }
-      saveDB();
+      saveDBNow();
     }
     return rval;
   }
@@ -1243,7 +1243,8 @@ public class AuctionEntry extends AuctionCore implements Comparable<AuctionEntry
     }
 
     String id = super.saveDB();
-    set("id", id);
+    if(id != null) set("id", id);
+    UpdateSchedule.getInstance().schedule(this);
     notifyObservers(ObserverMode.AFTER_SAVE);
     return id;
   }
@@ -1274,10 +1275,13 @@ public class AuctionEntry extends AuctionCore implements Comparable<AuctionEntry
     return EntryTable.getRealDatabase();
   }
 
+  protected String getUniqueColumn() { return "identifier"; }
+
   public boolean delete() {
     AuctionInfo ai = AuctionInfo.findByIdOrIdentifier(getAuctionId(), getIdentifier());
     if(ai != null) ai.delete();
     if(getSnipe() != null) getSnipe().delete();
+    UpdateSchedule.getInstance().unschedule(getIdentifier());
     return super.delete();
   }
 
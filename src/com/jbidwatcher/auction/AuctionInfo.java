@@ -43,6 +43,12 @@ public class AuctionInfo extends AuctionCore {
     if (ai == null && identifier != null) {
       ai = findByIdentifier(identifier);
     }
+
+    //  Ended a while ago, perhaps; see Archiver.
+    if (ai == null && getRealDatabase().getArchive() != null) {
+      if (id != null) ai = (AuctionInfo) findFirstBySQL(AuctionInfo.class, "SELECT * FROM archived_auctions WHERE id = ?", id);
+      if (ai == null && identifier != null) ai = (AuctionInfo) findFirstBySQL(AuctionInfo.class, "SELECT * FROM archived_auctions WHERE identifier = ?", identifier);
+    }
     return ai;
   }
 
@@ -238,7 +244,13 @@ public class AuctionInfo extends AuctionCore {
 
   private static Table sDB = null;
   protected static String getTableName() { return "auctions"; }
+  //  Recounted whenever an auction is added, removed or re-identified, rather than at every call.
+  private static final RowCounter sUnique = RowCounter.create("auctions", "unique",
+      "SELECT COUNT(DISTINCT(identifier)) FROM auctions WHERE identifier IS NOT NULL", null, "identifier");
+
   protected Table getDatabase() { return getRealDatabase(); }
+  //  There's one current row per auction; a reload saves over it rather than adding another.
+  protected String getUniqueColumn() { return "identifier"; }
   private static Table getRealDatabase() {
     if (sDB == null) {
       sDB = openDB(getTableName());
@@ -268,7 +280,7 @@ public class AuctionInfo extends AuctionCore {
   }
 
   public static AuctionInfo findByIdentifier(String identifier) {
-    return (AuctionInfo) ActiveRecord.findFirstBySQL(AuctionInfo.class, "SELECT * FROM auctions WHERE id IN (SELECT Max(id) FROM auctions WHERE identifier = '" + identifier + "')");
+    return findFirstBy("identifier", identifier);
   }
 
   public static int count() {
@@ -276,44 +288,73 @@ public class AuctionInfo extends AuctionCore {
   }
 
   public static int uniqueCount() {
-    return getRealDatabase().countBySQL("SELECT COUNT(DISTINCT(identifier)) FROM auctions WHERE identifier IS NOT NULL");
+    return sUnique.get();
   }
 
   public static boolean deleteAll(List<Integer> toDelete) {
     if(toDelete.isEmpty()) return true;
-    //  TODO - Replace with Guava?
-    String auctions = buildCSL(toDelete);
-
-    return getRealDatabase().deleteBy("id IN (" + auctions + ")");
+    return getRealDatabase().deleteBy("id IN (" + Table.placeholders(toDelete.size()) + ")", toParameters(toDelete));
   }
 
   public static List<AuctionInfo> findAllByIds(List<? extends Object> toFind) {
     if(toFind.isEmpty()) return new ArrayList<AuctionInfo>(0);
 
-    String auctions = buildCSL(toFind);
-
-    return (List<AuctionInfo>) ActiveRecord.findAllBySQL(AuctionInfo.class, "SELECT * FROM auctions WHERE id IN (" + auctions + ")");
+    return (List<AuctionInfo>) ActiveRecord.findAllBySQL(AuctionInfo.class,
+        "SELECT * FROM auctions WHERE id IN (" + Table.placeholders(toFind.size()) + ")", 0, toParameters(toFind));
   }
 
-  private static String buildCSL(List<? extends Object> toDelete) {
-    StringBuilder ids = new StringBuilder("");
-    boolean first = true;
-    for (Object id : toDelete) {
-      if (!first) {
-        ids.append(", ");
+  /**
+   * Hand over the auctions with the given ids as they're read, rather than building a list of them.
+   *
+   * @param toFind - The ids of the auctions to read.
+   * @param visitor - Called with each auction found, in no particular order.
+   *
+   * @return How many auctions were found.
+   */
+  public static int forEachById(List<? extends Object> toFind, final ActiveRecord.Visitor<AuctionInfo> visitor) {
+    if(toFind.isEmpty()) return 0;
+
+    final Set<String> found = new HashSet<String>();
+    int count = ActiveRecord.forEachBySQL(AuctionInfo.class,
+        "SELECT * FROM auctions WHERE id IN (" + Table.placeholders(toFind.size()) + ")", new ActiveRecord.Visitor<AuctionInfo>() {
+          public boolean visit(AuctionInfo info) {
+            found.add(info.get("id"));
+            return visitor.visit(info);
+          }
+        }, toParameters(toFind));
+
+    //  Any which weren't there may have been archived.
+    if(count < toFind.size() && getRealDatabase().getArchive() != null) {
+      List<String> missing = new ArrayList<String>();
+      for(String id : toParameters(toFind)) {
+        if(id != null && !found.contains(id)) missing.add(id);
+      }
+      if(!missing.isEmpty()) {
+        count += ActiveRecord.forEachBySQL(AuctionInfo.class,
+            "SELECT * FROM archived_auctions WHERE id IN (" + Table.placeholders(missing.size()) + ")", visitor, toParameters(missing));
       }
-      ids.append(id);
-      first = false;
+    }
+    return count;
+  }
+
+  private static String[] toParameters(List<? extends Object> ids) {
+    String[] parameters = new String[ids.size()];
+    int i = 0;
+    for (Object id : ids) {
+      parameters[i++] = id == null ? null : id.toString();
     }
 
-    return ids.toString();
+    return parameters;
   }
 
   @SuppressWarnings({"unchecked"})
   public static List<AuctionInfo> findLostAuctions() {
     List<AuctionInfo> resultSet;
     try {
-      resultSet = (List<AuctionInfo>) findAllBySQL(AuctionInfo.class, "SELECT * FROM auctions WHERE identifier NOT IN (SELECT DISTINCT(identifier) FROM entries)");
+      //  An auction and its entry can each be live or archived, independently of each other.
+      String entries = getRealDatabase().getArchive() == null ? "SELECT DISTINCT(identifier) FROM entries" :
+          "SELECT identifier FROM entries WHERE identifier IS NOT NULL UNION SELECT identifier FROM archived_entries WHERE identifier IS NOT NULL";
+      resultSet = (List<AuctionInfo>) findAllWithArchive(AuctionInfo.class, "identifier NOT IN (" + entries + ")", null);
     } catch(Exception e) {
       JConfig.log().handleDebugException("Failed to find lost auctions.", e);
       resultSet = null;
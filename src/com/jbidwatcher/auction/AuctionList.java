@@ -31,7 +31,7 @@ public class AuctionList {
   public void remove(int i) {
     synchronized (mIdentifierList) {
       String identifier = mIdentifierList.get(i);
-      entryCorral.takeForRead(identifier);
+      entryCorral.hide(identifier);
       mIdentifierList.remove(i);
       mIdentifierSet.remove(identifier);
     }
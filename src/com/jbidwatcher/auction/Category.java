@@ -48,14 +48,13 @@ public class Category extends ActiveRecord
 
   protected static String getTableName() { return "categories"; }
 
-  private static ThreadLocal<Table> tDB = new ThreadLocal<Table>() {
-    protected synchronized Table initialValue() {
-      return openDB(getTableName());
-    }
-  };
+  private static Table sDB = null;
 
   public static Table getRealDatabase() {
-    return tDB.get();
+    if (sDB == null) {
+      sDB = openDB(getTableName());
+    }
+    return sDB;
   }
 
   protected Table getDatabase() {
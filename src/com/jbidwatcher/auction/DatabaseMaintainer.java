@@ -0,0 +1,97 @@
+package com.jbidwatcher.auction;
+
+/*
+ * Copyright (c) 2000-2007, CyberFOX Software, Inc. All Rights Reserved.
+ *
+ * Developed by mrs (Morgan Schweers)
+ */
+
+import com.jbidwatcher.util.Constants;
+import com.jbidwatcher.util.config.JConfig;
+import com.jbidwatcher.util.db.Maintenance;
+import com.jbidwatcher.util.queue.MQFactory;
+import com.jbidwatcher.util.queue.MessageQueue;
+import com.jbidwatcher.util.queue.SuperQueue;
+import com.jbidwatcher.util.queue.TimerHandler;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Runs the database Maintenance when nothing important is going on.
+ *
+ * It's asked to run once a day, and each step only goes ahead if the
+ * updater has nothing overdue, and the next snipe is more than
+ * 'db.maintenance.margin' minutes (default 15) past the time the step is
+ * expected to take.  A snipe's window runs from that margin before it
+ * fires until a minute after its auction ends, which covers the
+ * pre-snipe login, the snipe, and the check afterwards.  If it's held
+ * off, it tries again once the window has passed.
+ */
+public class DatabaseMaintainer implements Maintenance.Gate, MessageQueue.Listener {
+  public static final String QUEUE = "db_maintenance";
+  private static final long AFTER_END = Constants.ONE_MINUTE;
+
+  private long mBlockedUntil = 0;
+  private long mLastRun = 0;
+
+  /**
+   * Listen for maintenance requests, and ask for one a day, starting a while after launch.
+   *
+   * @param q - The queue to schedule the daily request on.
+   * @param now - The current time.
+   */
+  public static void start(SuperQueue q, long now) {
+    if(!Maintenance.isEnabled()) return;
+    MQFactory.getConcrete(QUEUE).registerListener(new DatabaseMaintainer());
+    q.preQueue("MAINTAIN", QUEUE, now + Constants.THIRTY_MINUTES, Constants.ONE_DAY);
+  }
+
+  private static long getMargin() {
+    return Long.parseLong(JConfig.queryConfiguration("db.maintenance.margin", "15")) * Constants.ONE_MINUTE;
+  }
+
+  public boolean mayRun(long expected) {
+    long now = System.currentTimeMillis();
+    long updateDue = UpdateSchedule.getInstance().nextDue();
+    if(updateDue != TimerHandler.NO_DEADLINE && updateDue <= now) {
+      mBlockedUntil = now + Constants.ONE_MINUTE * 5;
+      return false;
+    }
+
+    //  Anything which ended more than a minute ago is done with; look for the next one still to come.
+    AuctionEntry next = EntryCorral.nextSnipedEndingAfter(new Date(now - AFTER_END));
+    if(next == null || next.getEndDate() == null) return true;
+    long windowStart = next.getEndDate().getTime() - next.getSnipeTime() - getMargin();
+    if(now + expected < windowStart) return true;
+
+    mBlockedUntil = next.getEndDate().getTime() + AFTER_END;
+    return false;
+  }
+
+  public void messageAction(Object deQ) {
+    long now = System.currentTimeMillis();
+    //  A retry may have already done today's run.
+    if(now - mLastRun < Constants.ONE_DAY / 2) return;
+
+    mBlockedUntil = 0;
+    List<Maintenance.Result> results = Maintenance.run(this);
+    if(results == null) {
+      //  It failed outright (and said why); leave it for tomorrow.
+      if(mBlockedUntil == 0) return;
+      long retry = Math.max(mBlockedUntil, now + Constants.ONE_MINUTE * 5);
+      JConfig.log().logDebug("Database maintenance held off until " + new Date(retry) + ".");
+      SuperQueue.getInstance().preQueue("MAINTAIN", QUEUE, retry);
+      return;
+    }
+    mLastRun = now;
+
+    long reclaimed = 0;
+    StringBuilder sb = new StringBuilder();
+    for(Maintenance.Result result : results) {
+      reclaimed += result.getReclaimed();
+      sb.append("\n  ").append(result);
+    }
+    if(!results.isEmpty()) JConfig.log().logMessage("Database maintenance done; " + (reclaimed / 1024) + "KB reclaimed." + sb);
+  }
+}
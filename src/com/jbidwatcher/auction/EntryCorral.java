@@ -3,18 +3,20 @@ package com.jbidwatcher.auction;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.jbidwatcher.auction.event.EventStatus;
+import com.jbidwatcher.util.BoundedCache;
 import com.jbidwatcher.util.Constants;
-import com.jbidwatcher.util.HashBacked;
+import com.jbidwatcher.util.NamedLocks;
 import com.jbidwatcher.util.config.JConfig;
+import com.jbidwatcher.util.Record;
 import com.jbidwatcher.util.db.ActiveRecord;
+import com.jbidwatcher.util.db.RowCounter;
+import com.jbidwatcher.util.db.Table;
 
 import java.lang.ref.Reference;
-import java.lang.ref.SoftReference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.concurrent.locks.Lock;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * User: mrs
@@ -23,61 +25,174 @@ import java.util.concurrent.locks.Lock;
  *
  * A single clearing house for auction entries, so everything operates on the
  * same underlying objects.  Thread safety is a serious concern.
+ *
+ * At most 'corral.cache.size' entries (default 500) are held on to, in a
+ * BoundedCache, plus any which are pinned: the ones put() there, which
+ * are showing in the UI, and the ones isPinned() says must stay (for
+ * auctions, the sniped ones).  An entry that's evicted is still found
+ * again, rather than re-read, for as long as anything else holds on to
+ * it, so there's never more than one copy of an entry in use.
+ *
+ * Entries taken for write are locked by identifier in NamedLocks, so a
+ * long hold (a reload, or a bid) only ever holds up that one entry; a hold
+ * or a wait longer than 'corral.lock.warn' seconds (default 10) is logged.
  */
 abstract class EntryCorralTemplate<T extends ActiveRecord> {
-  private Map<String, Reference<T>> mEntryList;
-  private final Map<String, Lock> mLockList;
+  private final BoundedCache<String, T> mEntryList;
+  //  Entries evicted from mEntryList which may still be in use elsewhere.
+  private final Map<String, Evicted<T>> mEvicted = new ConcurrentHashMap<String, Evicted<T>>();
+  private final ReferenceQueue<T> mCollected = new ReferenceQueue<T>();
+  //  Entries showing in the UI.
+  private final Set<String> mVisible = Collections.synchronizedSet(new HashSet<String>());
+  private final NamedLocks mLocks;
+  private long mRecovered = 0;
+
+  private static final class Evicted<T> extends WeakReference<T> {
+    private final String mIdentifier;
+
+    private Evicted(String identifier, T referent, ReferenceQueue<T> q) {
+      super(referent, q);
+      mIdentifier = identifier;
+    }
+  }
 
   protected EntryCorralTemplate() {
-    mEntryList = new HashMap<String, Reference<T>>();
-    mLockList = new HashMap<String, Lock>();
+    int capacity = Integer.parseInt(JConfig.queryConfiguration("corral.cache.size", "500"));
+    mEntryList = new BoundedCache<String, T>(capacity, new BoundedCache.Listener<String, T>() {
+      public void evicted(String identifier, T entry) {
+        mEvicted.put(identifier, new Evicted<T>(identifier, entry, mCollected));
+        forgetCollected();
+      }
+    });
+    mLocks = new NamedLocks(Long.parseLong(JConfig.queryConfiguration("corral.lock.warn", "10")) * Constants.ONE_SECOND);
   }
 
-  private T get(String identifier) {
-    Reference<T> r = mEntryList.get(identifier);
-    if(r != null) return r.get();
-    return null;
+  private void forgetCollected() {
+    Reference<? extends T> r;
+    while((r = mCollected.poll()) != null) {
+      Evicted<?> gone = (Evicted<?>) r;
+      mEvicted.remove(gone.mIdentifier, gone);
+    }
   }
 
-  abstract public T getItem(String param);
+  /**
+   * @param entry - An entry in the corral.
+   *
+   * @return true if it has to stay in memory, whether or not it's been used lately.
+   */
+  protected boolean isPinned(T entry) { return false; }
 
-  public ActiveRecord takeForWrite(String identifier) {
-    T result = get(identifier);
-    if(result == null) {
-      result = getItem(identifier);
-    }
-    if(result != null) {
-      Lock l = mLockList.get(identifier);
-      if (l == null) {
-        l = new ReentrantLock(true);
-        synchronized (mLockList) {
-          mLockList.put(identifier, l);
+  private T get(String identifier) {
+    return get(identifier, true);
+  }
+
+  //  Only lookups on behalf of callers count towards the cache's hits and misses.
+  private T get(String identifier, boolean counted) {
+    synchronized(mEntryList) {
+      T result = counted ? mEntryList.get(identifier) : mEntryList.peek(identifier);
+      if(result == null) {
+        Evicted<T> r = mEvicted.remove(identifier);
+        result = r == null ? null : r.get();
+        if(result != null) {
+          mRecovered++;
+          store(identifier, result);
         }
       }
-      l.lock();
+      return result;
     }
+  }
+
+  //  Must be called holding mEntryList's lock.
+  private void store(String identifier, T entry) {
+    mEntryList.put(identifier, entry);
+    repin(identifier, entry);
+  }
+
+  private void repin(String identifier, T entry) {
+    if(mVisible.contains(identifier) || isPinned(entry)) {
+      mEntryList.pin(identifier);
+    } else {
+      mEntryList.unpin(identifier);
+    }
+  }
+
+  abstract public T getItem(String param);
+
+  public ActiveRecord takeForWrite(String identifier) {
+    T result = takeForRead(identifier);
+    if(result != null) mLocks.lock(identifier);
     return result;
   }
 
+  /**
+   * Like takeForWrite, but gives up if someone else has had it for too long.
+   *
+   * @param identifier - The entry's identifier.
+   * @param timeout - How long to wait for it, in milliseconds.
+   *
+   * @return The entry, locked, or null if there isn't one or it couldn't be locked in time.
+   */
+  public ActiveRecord tryTakeForWrite(String identifier, long timeout) {
+    T result = takeForRead(identifier);
+    if(result != null && !mLocks.tryLock(identifier, timeout)) return null;
+    return result;
+  }
+
+  /**
+   * Release an entry taken for write; if this thread didn't take it, nothing happens.
+   *
+   * @param identifier - The entry's identifier.
+   */
   public void release(String identifier) {
-    Lock l = mLockList.get(identifier);
-    if(l != null) l.unlock();
+    mLocks.unlock(identifier);
+    //  Whatever was done to it may have changed whether it should stay pinned.
+    synchronized(mEntryList) {
+      T entry = mEntryList.peek(identifier);
+      if(entry != null) repin(identifier, entry);
+    }
   }
 
   public T takeForRead(String identifier) {
     T result = get(identifier);
     if (result == null) {
-      result = getItem(identifier);
-      if(result != null) mEntryList.put(identifier, new WeakReference<T>(result));
+      //  Not holding the lock while it's read, so the database isn't waited on by everyone.
+      T loaded = getItem(identifier);
+      if(loaded != null) {
+        synchronized(mEntryList) {
+          result = get(identifier, false);
+          if(result == null) {
+            result = loaded;
+            store(identifier, result);
+          }
+        }
+      }
     }
     return result;
   }
 
+  /**
+   * Add an entry which is showing in the UI; it's kept until it's hidden or erased.
+   *
+   * @param ae - The entry.
+   *
+   * @return The entry to use; an existing one, if it's more recent.
+   */
   public T put(T ae) {
-    T result = chooseLatest(ae, ae.getUnique());
-    mEntryList.put(ae.getUnique(), new SoftReference<T>(result));
+    mVisible.add(ae.getUnique());
+    return chooseLatest(ae, ae.getUnique());
+  }
 
-    return result;
+  /**
+   * The entry isn't showing in the UI any longer.
+   *
+   * @param identifier - The entry's identifier.
+   */
+  public void hide(String identifier) {
+    mVisible.remove(identifier);
+    synchronized(mEntryList) {
+      T entry = mEntryList.peek(identifier);
+      if(entry != null) repin(identifier, entry);
+    }
   }
 
   public T putWeakly(T ae) {
@@ -85,55 +200,106 @@ abstract class EntryCorralTemplate<T extends ActiveRecord> {
   }
 
   protected T chooseLatest(T ae, String identifier) {
-    T chosen;
-    T existing = get(identifier);
-    final Date inputDate = ae.getDate("updated_at");
-    final Date existingDate = (existing == null ? null : existing.getDate("updated_at"));
-    if(existing == null ||
-        (inputDate != null && existingDate == null) ||
-        (inputDate != null && inputDate.after(existingDate))) {
-      if(mEntryList.get(identifier) instanceof SoftReference) {
-        mEntryList.put(identifier, new SoftReference<T>(ae));
+    synchronized(mEntryList) {
+      T chosen;
+      T existing = get(identifier, false);
+      final Date inputDate = ae.getDate("updated_at");
+      final Date existingDate = (existing == null ? null : existing.getDate("updated_at"));
+      if(existing == null ||
+          (inputDate != null && existingDate == null) ||
+          (inputDate != null && inputDate.after(existingDate))) {
+        chosen = ae;
       } else {
-        mEntryList.put(identifier, new WeakReference<T>(ae));
+        chosen = existing;
       }
-      chosen = ae;
-    } else {
-      chosen = existing;
+      store(identifier, chosen);
+      return chosen;
     }
-    return chosen;
   }
 
+  /**
+   * Forget the entry in memory, so it's read again next time, and release
+   * it if this thread had taken it for write.  Whether it's showing in the
+   * UI isn't changed; that's up to hide().
+   *
+   * @param identifier - The entry's identifier.
+   *
+   * @return The entry, if it was in memory.
+   */
   public T erase(String identifier) {
-    synchronized(mLockList) {
-      Lock l = mLockList.remove(identifier);
-      Reference<T> rval = mEntryList.remove(identifier);
-      if (l != null) l.unlock();
-      if (rval == null) {
-        return null;
-      }
-      return rval.get();
+    T rval;
+    synchronized(mEntryList) {
+      mEvicted.remove(identifier);
+      rval = mEntryList.remove(identifier);
     }
+    mLocks.unlock(identifier);
+    return rval;
   }
 
   public void clear() {
-    synchronized(mLockList) {
-      for (String s : mLockList.keySet()) {
-        erase(s);
-      }
-
+    synchronized(mEntryList) {
       mEntryList.clear();
+      mEvicted.clear();
+      mVisible.clear();
+    }
+  }
+
+  /**
+   * @return How well the cache of entries is doing.
+   */
+  public String getCacheStats() {
+    synchronized(mEntryList) {
+      return mEntryList + ", " + mRecovered + " recovered after eviction, " + mEvicted.size() + " evicted but possibly in use";
     }
   }
+
+  /**
+   * @return How much the entries' locks are being waited on, and held.
+   */
+  public String getLockStats() {
+    return mLocks.toString();
+  }
 }
 
 @Singleton
 public class EntryCorral extends EntryCorralTemplate<AuctionEntry> {
   static final String snipeFinder = "(snipe_id IS NOT NULL OR multisnipe_id IS NOT NULL) AND (entries.ended != 1 OR entries.ended IS NULL)";
-  private static Date updateSince = new Date();
-  private static Date endingSoon = new Date();
-  private static Date hourAgo = new Date();
-  private static SimpleDateFormat mDateFormat = new SimpleDateFormat(HashBacked.DB_DATE_FORMAT);
+
+  //  Counts kept up as entries are saved, so the stats and tabs don't scan the table.  The conditions match the SQL.
+  private static final RowCounter sActive = RowCounter.create("entries", "active", "SELECT COUNT(*) FROM entries WHERE (ended != 1 OR ended IS NULL)",
+      new RowCounter.Condition() {
+        public boolean matches(Record row) { return !isSet(row.get("ended")); }
+      }, "ended");
+  private static final RowCounter sCompleted = RowCounter.create("entries", "completed", "SELECT COUNT(*) FROM entries WHERE ended = 1",
+      new RowCounter.Condition() {
+        public boolean matches(Record row) { return isSet(row.get("ended")); }
+      }, "ended");
+  private static final RowCounter sSniped = RowCounter.create("entries", "sniped", "SELECT COUNT(*) FROM entries WHERE " + snipeFinder,
+      new RowCounter.Condition() {
+        public boolean matches(Record row) {
+          return (row.get("snipe_id") != null || row.get("multisnipe_id") != null) && !isSet(row.get("ended"));
+        }
+      }, "snipe_id", "multisnipe_id", "ended");
+  private static final RowCounter sUnique = RowCounter.create("entries", "unique", "SELECT COUNT(DISTINCT(identifier)) FROM entries WHERE identifier IS NOT NULL",
+      null, "identifier");
+  private static final RowCounter sByCategory = RowCounter.createGrouped("entries", "by category", "SELECT category_id AS grp, COUNT(*) AS cnt FROM entries GROUP BY category_id",
+      new RowCounter.Grouping() {
+        public String groupOf(Record row) { return row.get("category_id"); }
+      }, "category_id");
+
+  //  Everything in the archive has ended; see Archiver.
+  private static final RowCounter sArchived = RowCounter.total("archived_entries");
+  private static final RowCounter sArchivedUnique = RowCounter.create("archived_entries", "unique", "SELECT COUNT(DISTINCT(identifier)) FROM archived_entries WHERE identifier IS NOT NULL",
+      null, "identifier");
+  private static final RowCounter sArchivedByCategory = RowCounter.createGrouped("archived_entries", "by category", "SELECT category_id AS grp, COUNT(*) AS cnt FROM archived_entries GROUP BY category_id",
+      new RowCounter.Grouping() {
+        public String groupOf(Record row) { return row.get("category_id"); }
+      }, "category_id");
+
+  //  How a SMALLINT flag column reads as true; see Table.setColumn.
+  private static boolean isSet(String flag) {
+    return "1".equals(flag) || "Y".equals(flag);
+  }
 
   //  private static Table sDB = null;
   public static AuctionEntry findFirstBy(String key, String value) {
@@ -146,39 +312,33 @@ public class EntryCorral extends EntryCorralTemplate<AuctionEntry> {
     return (List<AuctionEntry>) ActiveRecord.findAllBySQL(AuctionEntry.class, notEndedQuery);
   }
 
+  /**
+   * @return The completed entries, archived ones included.
+   */
   @SuppressWarnings({"unchecked"})
   public static List<AuctionEntry> findEnded() {
-    return (List<AuctionEntry>) ActiveRecord.findAllBy(AuctionEntry.class, "ended", "1");
-  }
-
-  @SuppressWarnings({"unchecked"})
-  public static List<AuctionEntry> findAllNeedingUpdates(long since) {
-    long timeRange = System.currentTimeMillis() - since;
-    updateSince.setTime(timeRange);
-    return (List<AuctionEntry>) ActiveRecord.findAllByPrepared(AuctionEntry.class,
-        "SELECT e.* FROM entries e" +
-            "  JOIN auctions a ON a.id = e.auction_id" +
-            "  WHERE (e.ended != 1 OR e.ended IS NULL)" +
-            "    AND (e.last_updated_at IS NULL OR e.last_updated_at < ?)" +
-            "  ORDER BY a.ending_at ASC", mDateFormat.format(updateSince));
+    return (List<AuctionEntry>) ActiveRecord.findAllWithArchive(AuctionEntry.class, "ended = ?", null, "1");
   }
 
-  @SuppressWarnings({"unchecked"})
-  public static List<AuctionEntry> findEndingNeedingUpdates(long since) {
-    long timeRange = System.currentTimeMillis() - since;
-    updateSince.setTime(timeRange);
-
-    //  Update more frequently in the last 25 minutes.
-    endingSoon.setTime(System.currentTimeMillis() + 25 * Constants.ONE_MINUTE);
-    hourAgo.setTime(System.currentTimeMillis() - Constants.ONE_HOUR);
-
-    return (List<AuctionEntry>) ActiveRecord.findAllByPrepared(AuctionEntry.class,
-        "SELECT e.* FROM entries e JOIN auctions a ON a.id = e.auction_id" +
-            "  WHERE (e.last_updated_at IS NULL OR e.last_updated_at < ?)" +
-            "    AND (e.ended != 1 OR e.ended IS NULL)" +
-            "    AND a.ending_at < ? AND a.ending_at > ?" +
-            "  ORDER BY a.ending_at ASC", mDateFormat.format(updateSince),
-        mDateFormat.format(endingSoon), mDateFormat.format(hourAgo));
+  /**
+   * Go through the completed entries, then the archived ones, a page at a
+   * time, rather than loading them all at once.
+   *
+   * @param visitor - Called with each completed entry; it returns false to stop early.
+   *
+   * @return How many entries were visited.
+   */
+  public static int forEachEnded(final ActiveRecord.Visitor<AuctionEntry> visitor) {
+    final boolean[] stopped = { false };
+    ActiveRecord.Visitor<AuctionEntry> watching = new ActiveRecord.Visitor<AuctionEntry>() {
+      public boolean visit(AuctionEntry record) {
+        stopped[0] = !visitor.visit(record);
+        return !stopped[0];
+      }
+    };
+    int visited = ActiveRecord.forEachBy(AuctionEntry.class, "ended = ?", watching, "1");
+    if(!stopped[0]) visited += ActiveRecord.forEachArchivedBy(AuctionEntry.class, "ended = ?", watching, "1");
+    return visited;
   }
 
   @SuppressWarnings({"unchecked"})
@@ -192,6 +352,17 @@ public class EntryCorral extends EntryCorralTemplate<AuctionEntry> {
     return (AuctionEntry) ActiveRecord.findFirstBySQL(AuctionEntry.class, sql);
   }
 
+  /**
+   * @param after - The earliest end time to consider.
+   *
+   * @return The sniped entry which ends first after the given time, or null if there isn't one.
+   */
+  public static AuctionEntry nextSnipedEndingAfter(Date after) {
+    String sql = "SELECT entries.* FROM entries, auctions WHERE " + snipeFinder +
+        " AND (entries.auction_id = auctions.id) AND auctions.ending_at > ? ORDER BY auctions.ending_at ASC";
+    return (AuctionEntry) ActiveRecord.findFirstBySQL(AuctionEntry.class, sql, new java.sql.Timestamp(after.getTime()).toString());
+  }
+
   /**
    * Locate an AuctionEntry by first finding an AuctionInfo with the passed
    * in auction identifier, and then looking for an AuctionEntry which
@@ -205,6 +376,7 @@ public class EntryCorral extends EntryCorralTemplate<AuctionEntry> {
    */
   public static AuctionEntry findByIdentifier(String identifier) {
     AuctionEntry ae = (AuctionEntry)ActiveRecord.findFirstBy(AuctionEntry.class, "identifier", identifier);
+    if(ae == null) ae = findArchivedBy("identifier", identifier);
     AuctionInfo ai;
 
     if(ae != null) {
@@ -220,6 +392,7 @@ public class EntryCorral extends EntryCorralTemplate<AuctionEntry> {
 
       if(ai != null) {
         ae = findFirstBy("auction_id", ai.getString("id"));
+        if (ae == null) ae = findArchivedBy("auction_id", ai.getString("id"));
         if (ae != null) ae.setAuctionInfo(ai);
       }
     }
@@ -227,6 +400,11 @@ public class EntryCorral extends EntryCorralTemplate<AuctionEntry> {
     return ae;
   }
 
+  private static AuctionEntry findArchivedBy(String key, String value) {
+    if(EntryTable.getRealDatabase().getArchive() == null) return null;
+    return (AuctionEntry) ActiveRecord.findFirstBySQL(AuctionEntry.class, "SELECT * FROM archived_entries WHERE " + key + " = ?", value);
+  }
+
   /**
    * TODO: Clear from the entry corral?
    * @param toDelete List of AuctionEntries to delete from the database.
@@ -237,10 +415,13 @@ public class EntryCorral extends EntryCorralTemplate<AuctionEntry> {
     if(toDelete.isEmpty()) return true;
 
     String entries = ActiveRecord.makeCommaList(toDelete);
+    String[] entryIds = new String[toDelete.size()];
     List<Integer> auctions = new ArrayList<Integer>();
     List<AuctionSnipe> snipes = new ArrayList<AuctionSnipe>();
 
+    int i = 0;
     for(AuctionEntry entry : toDelete) {
+      entryIds[i++] = entry.get("id");
       auctions.add(entry.getInteger("auction_id"));
       if(entry.isSniped()) snipes.add(entry.getSnipe());
     }
@@ -248,19 +429,14 @@ public class EntryCorral extends EntryCorralTemplate<AuctionEntry> {
     boolean success = new EventStatus().deleteAllEntries(entries);
     if(!snipes.isEmpty()) success &= AuctionSnipe.deleteAll(snipes);
     success &= AuctionInfo.deleteAll(auctions);
-    success &= EntryTable.getRealDatabase().deleteBy("id IN (" + entries + ")");
+    success &= EntryTable.getRealDatabase().deleteBy("id IN (" + Table.placeholders(entryIds.length) + ")", entryIds);
 
     return success;
   }
 
   public static int countByCategory(Category c) {
-    if(c == null) return 0;
-    return EntryTable.getRealDatabase().countBySQL("SELECT COUNT(*) FROM entries WHERE category_id=" + c.getId());
-  }
-
-  @SuppressWarnings({"unchecked"})
-  public static List<AuctionEntry> findManualUpdates() {
-    return (List<AuctionEntry>) ActiveRecord.findAllBySQL(AuctionEntry.class, "SELECT e.* FROM entries e JOIN auctions a ON a.id = e.auction_id WHERE e.last_updated_at IS NULL ORDER BY a.ending_at ASC");
+    if(c == null || c.get("id") == null) return 0;
+    return sByCategory.get(c.get("id")) + sArchivedByCategory.get(c.get("id"));
   }
 
   @SuppressWarnings({"unchecked"})
@@ -280,11 +456,7 @@ public class EntryCorral extends EntryCorralTemplate<AuctionEntry> {
 
   public static void forceUpdateActive() {
     EntryTable.getRealDatabase().execute("UPDATE entries SET last_updated_at=NULL WHERE ended != 1 OR ended IS NULL");
-  }
-
-  public static void trueUpEntries() {
-    EntryTable.getRealDatabase().execute("UPDATE entries SET auction_id=(SELECT max(id) FROM auctions WHERE auctions.identifier=entries.identifier)");
-    EntryTable.getRealDatabase().execute("DELETE FROM entries e WHERE id != (SELECT max(id) FROM entries e2 WHERE e2.auction_id = e.auction_id)");
+    UpdateSchedule.getInstance().forceAll();
   }
 
   @SuppressWarnings({"unchecked"})
@@ -293,23 +465,33 @@ public class EntryCorral extends EntryCorralTemplate<AuctionEntry> {
   }
 
   public static int count() {
-    return ActiveRecord.count(AuctionEntry.class);
+    return ActiveRecord.count(AuctionEntry.class) + sArchived.get();
   }
 
   public static int activeCount() {
-    return EntryTable.getRealDatabase().countBy("(ended != 1 OR ended IS NULL)");
+    return sActive.get();
   }
 
   public static int completedCount() {
-    return EntryTable.getRealDatabase().countBy("ended = 1");
+    return sCompleted.get() + sArchived.get();
   }
 
   public static int uniqueCount() {
-    return EntryTable.getRealDatabase().countBySQL("SELECT COUNT(DISTINCT(identifier)) FROM entries WHERE identifier IS NOT NULL");
+    return sUnique.get() + sArchivedUnique.get();
   }
 
   public static int snipedCount() {
-    return EntryTable.getRealDatabase().countBy(snipeFinder);
+    return sSniped.get();
+  }
+
+  /**
+   * Sniped entries are kept in memory until their auction is over, so the
+   * snipe is never waiting on the database.  This looks at the columns
+   * rather than the snipe itself, which might have to be read in.
+   */
+  @Override
+  protected boolean isPinned(AuctionEntry entry) {
+    return (entry.get("snipe_id") != null || entry.get("multisnipe_id") != null) && !isSet(entry.get("ended"));
   }
 
   @Override
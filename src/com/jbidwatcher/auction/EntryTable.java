@@ -7,14 +7,13 @@ import com.jbidwatcher.util.db.Table;
  * Created by mrs on 6/14/15.
  */
 public class EntryTable {
-  private static ThreadLocal<Table> tDB = new ThreadLocal<Table>() {
-    protected synchronized Table initialValue() {
-      return ActiveRecord.openDB(getTableName());
-    }
-  };
+  private static Table sDB = null;
 
   public static Table getRealDatabase() {
-    return tDB.get();
+    if (sDB == null) {
+      sDB = ActiveRecord.openDB(getTableName());
+    }
+    return sDB;
   }
 
   protected static String getTableName() { return "entries"; }
@@ -0,0 +1,265 @@
+package com.jbidwatcher.auction;
+
+/*
+ * Copyright (c) 2000-2007, CyberFOX Software, Inc. All Rights Reserved.
+ *
+ * Developed by mrs (Morgan Schweers)
+ */
+
+import com.jbidwatcher.util.Constants;
+import com.jbidwatcher.util.HashBacked;
+import com.jbidwatcher.util.Record;
+import com.jbidwatcher.util.config.JConfig;
+import com.jbidwatcher.util.db.Table;
+import com.jbidwatcher.util.queue.TimerHandler;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * When each entry next needs to be updated from the server, kept in
+ * memory, so the updater doesn't have to ask the database every second.
+ *
+ * Entries are ordered by the time they're next due, and indexed by
+ * identifier, so rescheduling one is a removal and an insert.  The rules
+ * are the ones the update queries used to apply:
+ *
+ * - An entry which has never been updated (or was asked to be updated)
+ *   is due right away, even if it's ended.
+ * - An active entry is due 69 minutes after its last update.
+ * - In the 25 minutes before it ends (and for an hour afterwards, until
+ *   it's seen to have ended), it's due a minute after its last update.
+ * - An ended entry isn't due at all.
+ *
+ * The database is only read once, to seed the schedule; after that
+ * every save of an entry reschedules it, and deleting it drops it.
+ *
+ * Nothing is taken while updates are paused; the updater doesn't ask.
+ * If a pause starts partway through what it took, it puts the rest back
+ * as they were, still due, and still flagged if they were asked for.
+ */
+public class UpdateSchedule {
+  static final long REGULAR = Constants.ONE_MINUTE * 69;
+  static final long ENDING = Constants.ONE_MINUTE;
+  static final long ENDING_WINDOW = 25 * Constants.ONE_MINUTE;
+  static final long ENDED_GRACE = Constants.ONE_HOUR;
+
+  private static final UpdateSchedule sInstance = new UpdateSchedule();
+
+  private static final class Due implements Comparable<Due> {
+    private final String mIdentifier;
+    private final long mWhen;
+    private final long mEnding;
+    private final boolean mManual;
+
+    private Due(String identifier, long when, long ending, boolean manual) {
+      mIdentifier = identifier;
+      mWhen = when;
+      mEnding = ending;
+      mManual = manual;
+    }
+
+    public int compareTo(Due other) {
+      if(mWhen != other.mWhen) return mWhen < other.mWhen ? -1 : 1;
+      //  The updates due at the same time go in ending order, like the queries did.
+      if(mEnding != other.mEnding) return mEnding < other.mEnding ? -1 : 1;
+      return mIdentifier.compareTo(other.mIdentifier);
+    }
+  }
+
+  private final TreeSet<Due> mQueue = new TreeSet<Due>();
+  private final Map<String, Due> mByIdentifier = new HashMap<String, Due>();
+  //  What the last takeDue() took: { as it was, as it was put back }.
+  private final Map<String, Due[]> mTaken = new HashMap<String, Due[]>();
+  private boolean mSeeded = false;
+  private TimerHandler mTimer = null;
+
+  UpdateSchedule() { }
+
+  public static UpdateSchedule getInstance() { return sInstance; }
+
+  /**
+   * Tell the schedule which timer is waiting on it, so that timer can be
+   * woken when something comes due earlier than it expected.
+   *
+   * @param timer - The timer calling check() on the updater.
+   */
+  public void setTimer(TimerHandler timer) { mTimer = timer; }
+
+  /**
+   * Fill the schedule from the database, if it hasn't been already.
+   * Anything already scheduled (because it was saved since launch) is
+   * newer than what's on disk, and is left alone.
+   */
+  public void seed() {
+    synchronized(this) {
+      if(mSeeded) return;
+      mSeeded = true;
+    }
+
+    Table entries = EntryTable.getRealDatabase();
+    int count = entries.forEachPrepared(
+        "SELECT e.identifier, e.last_updated_at, e.ended, a.ending_at FROM entries e JOIN auctions a ON a.id = e.auction_id" +
+            "  WHERE (e.ended != 1 OR e.ended IS NULL) OR e.last_updated_at IS NULL",
+        new Table.RowHandler() {
+          public boolean handle(Record row) {
+            HashBacked entry = new HashBacked(row);
+            String identifier = entry.get("identifier");
+            if(identifier != null) {
+              synchronized(UpdateSchedule.this) {
+                if(!mByIdentifier.containsKey(identifier)) {
+                  place(identifier, entry.getDate("last_updated_at"), entry.getDate("ending_at"), entry.getBoolean("ended"));
+                }
+              }
+            }
+            return true;
+          }
+        });
+    JConfig.log().logDebug("Update schedule seeded with " + count + " entries.");
+    wakeTimer();
+  }
+
+  /**
+   * Work out when an entry is next due, from its current state.
+   *
+   * @param ae - The entry, as it's just been saved.
+   */
+  public void schedule(AuctionEntry ae) {
+    if(ae.getIdentifier() == null) return;
+    schedule(ae.getIdentifier(), ae.getLastUpdated(), ae.getEndDate(), ae.isComplete());
+  }
+
+  /**
+   * @param identifier - The auction identifier.
+   * @param lastUpdated - When it was last updated, or null if it needs an update now.
+   * @param ending - When the auction ends.
+   * @param ended - If the auction is known to have ended.
+   */
+  public void schedule(String identifier, Date lastUpdated, Date ending, boolean ended) {
+    boolean earlier;
+    synchronized(this) {
+      mTaken.remove(identifier);
+      Due first = mQueue.isEmpty() ? null : mQueue.first();
+      Due placed = place(identifier, lastUpdated, ending, ended);
+      earlier = placed != null && (first == null || placed.compareTo(first) < 0);
+    }
+    if(earlier) wakeTimer();
+  }
+
+  private Due place(String identifier, Date lastUpdated, Date ending, boolean ended) {
+    remove(identifier);
+    long endingAt = ending == null ? Long.MAX_VALUE : ending.getTime();
+    Due due;
+    if(lastUpdated == null) {
+      due = new Due(identifier, 0, endingAt, true);
+    } else if(ended) {
+      return null;
+    } else {
+      long last = lastUpdated.getTime();
+      long when = last + REGULAR;
+      if(ending != null) {
+        long fast = Math.max(last + ENDING, endingAt - ENDING_WINDOW);
+        if(fast < endingAt + ENDED_GRACE) when = Math.min(when, fast);
+      }
+      due = new Due(identifier, when, endingAt, false);
+    }
+    mQueue.add(due);
+    mByIdentifier.put(identifier, due);
+    return due;
+  }
+
+  private void remove(String identifier) {
+    Due old = mByIdentifier.remove(identifier);
+    if(old != null) mQueue.remove(old);
+  }
+
+  /**
+   * Flag every entry which hasn't ended as needing an update right away,
+   * to match 'UPDATE entries SET last_updated_at=NULL' on the active ones.
+   */
+  public void forceAll() {
+    synchronized(this) {
+      for(Due due : new ArrayList<Due>(mQueue)) {
+        if(!due.mManual) {
+          mQueue.remove(due);
+          Due now = new Due(due.mIdentifier, 0, due.mEnding, true);
+          mQueue.add(now);
+          mByIdentifier.put(due.mIdentifier, now);
+        }
+      }
+    }
+    wakeTimer();
+  }
+
+  /**
+   * @param identifier - The auction identifier of an entry which has been deleted.
+   */
+  public synchronized void unschedule(String identifier) {
+    mTaken.remove(identifier);
+    remove(identifier);
+  }
+
+  /**
+   * Take the entries which are due off the schedule.  Each is put back
+   * as if it had just been updated, in case its update never gets saved;
+   * normally the save reschedules it properly.
+   *
+   * @param now - The current time.
+   *
+   * @return The identifiers of the entries due, in the order they should be updated.
+   */
+  public synchronized List<String> takeDue(long now) {
+    mTaken.clear();
+    List<String> due = new ArrayList<String>();
+    List<Due> taken = new ArrayList<Due>();
+    for(Due next : mQueue) {
+      if(next.mWhen > now) break;
+      taken.add(next);
+    }
+    for(Due next : taken) {
+      due.add(next.mIdentifier);
+      Due provisional = place(next.mIdentifier, new Date(now), next.mEnding == Long.MAX_VALUE ? null : new Date(next.mEnding), false);
+      mTaken.put(next.mIdentifier, new Due[] { next, provisional });
+    }
+    return due;
+  }
+
+  /**
+   * Put an entry the last takeDue() handed out back as it was, because
+   * it wasn't updated after all.  If it's been saved or rescheduled since
+   * it was taken, that's left alone.
+   *
+   * @param identifier - The auction identifier of the entry that wasn't updated.
+   */
+  public void putBack(String identifier) {
+    synchronized(this) {
+      Due[] taken = mTaken.remove(identifier);
+      if(taken == null || mByIdentifier.get(identifier) != taken[1]) return;
+      remove(identifier);
+      mQueue.add(taken[0]);
+      mByIdentifier.put(identifier, taken[0]);
+    }
+    wakeTimer();
+  }
+
+  /**
+   * @return When the next entry is due, or TimerHandler.NO_DEADLINE if nothing is scheduled.
+   */
+  public synchronized long nextDue() {
+    if(mQueue.isEmpty()) return TimerHandler.NO_DEADLINE;
+    return mQueue.first().mWhen;
+  }
+
+  public synchronized int size() {
+    return mQueue.size();
+  }
+
+  private void wakeTimer() {
+    TimerHandler timer = mTimer;
+    if(timer != null) timer.reschedule();
+  }
+}
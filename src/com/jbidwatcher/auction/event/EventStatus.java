@@ -85,7 +85,7 @@ public class EventStatus extends ActiveRecord {
 
   public static List<EventStatus> findAllByEntry(Integer entryId, String identifier) {
     if(entryId == null) return null;
-    List<ActiveRecord> records = (List<ActiveRecord>) ActiveRecord.findAllBy(EventStatus.class, "entry_id", Integer.toString(entryId), "created_at ASC");
+    List<ActiveRecord> records = (List<ActiveRecord>) ActiveRecord.findAllWithArchive(EventStatus.class, "entry_id = ?", "created_at ASC", Integer.toString(entryId));
 
     if(records != null) {
       List<EventStatus> results = new ArrayList<EventStatus>(records.size());
@@ -63,6 +63,22 @@ public abstract class AuctionServer implements AuctionServerInterface {
   public abstract void setSnipe(String auctionId);
   public abstract void cancelSnipe(String identifier);
 
+  /**
+   * @brief Reload the snipe schedule saved the last time the program ran.
+   *
+   * @return The number of scheduled snipe events restored.
+   */
+  public abstract int restoreSnipes();
+
+  /**
+   * @param identifier - The auction identifier of a sniped listing.
+   * @param endDate - When the listing ends.
+   * @param snipeDelta - How long before the end the snipe should fire.
+   *
+   * @return true if every event of the snipe for that listing is already scheduled, for that end date and snipe time.
+   */
+  public abstract boolean isSnipeScheduled(String identifier, Date endDate, long snipeDelta);
+
 
   /**
    * @brief Get the string-form URL for a given item ID on this
@@ -11,9 +11,11 @@ import com.jbidwatcher.util.Constants;
 import com.jbidwatcher.util.PauseManager;
 import com.jbidwatcher.util.queue.MQFactory;
 import com.jbidwatcher.util.queue.MessageQueue;
+import com.jbidwatcher.util.queue.ProgressMessage;
 import com.jbidwatcher.search.SearchManager;
 import com.jbidwatcher.util.config.JConfig;
 import com.jbidwatcher.util.StringTools;
+import com.jbidwatcher.util.db.ActiveRecord;
 import com.jbidwatcher.auction.*;
 
 import java.util.*;
@@ -85,12 +87,9 @@ public class AuctionServerManager implements MessageQueue.Listener, Resolver {
   }
 
   public void loadAuctionsFromDB(final AuctionServer newServer) {
-    MQFactory.getConcrete("splash").enqueue("SET 0");
+    MQFactory.getConcrete("splash").enqueueObject(ProgressMessage.set(0));
 
     timeStart("counts");
-    // True up the Auction Entries first.  I want this to not be necessary anymore.
-    EntryCorral.trueUpEntries();
-
     int entryCount = EntryCorral.count();
     // Metrics
     JConfig.getMetrics().trackCustomData("categories", Integer.toString(Category.count(Category.class)));
@@ -118,7 +117,7 @@ public class AuctionServerManager implements MessageQueue.Listener, Resolver {
     JConfig.log().logMessage("Done with the initial load (got " + entries.size() + " active entries)");
     importListingsToUI(newServer, entries, new Report() {
       public void report(AuctionEntry ae, int count) {
-        MQFactory.getConcrete("splash").enqueue("SET " + count);
+        MQFactory.getConcrete("splash").enqueueObject(ProgressMessage.set(count));
         if (!ae.isComplete() && ae.isSniped()) {
           sniped.add(ae);
         }
@@ -129,9 +128,15 @@ public class AuctionServerManager implements MessageQueue.Listener, Resolver {
     spinOffCompletedLoader(newServer);
 
     JConfig.log().logDebug("Completed loader spun off");
+    timeStart("snipeRestore");
+    int restored = newServer.restoreSnipes();
+    timeStop("snipeRestore");
+    JConfig.log().logDebug("Restored " + restored + " scheduled snipe events");
     for(AuctionEntry snipable:sniped) {
       timeStart("snipeSetup");
-      if(!snipable.isComplete()) {
+      //  Only snipes which weren't in the saved schedule, or were saved for a different time, need
+      //  setting up from scratch; setSnipe erases whatever's left of the old schedule first.
+      if(!snipable.isComplete() && !newServer.isSnipeScheduled(snipable.getIdentifier(), snipable.getEndDate(), snipable.getSnipeTime())) {
         snipable.refreshSnipe();
       }
       timeStop("snipeSetup");
@@ -145,11 +150,13 @@ public class AuctionServerManager implements MessageQueue.Listener, Resolver {
     for(AuctionEntry entry : entries) {
       auctionIDs.add(entry.getAuctionId());
     }
-    List<AuctionInfo> auctions = AuctionInfo.findAllByIds(auctionIDs);
-    Map<String, AuctionInfo> joining = new HashMap<String, AuctionInfo>(entries.size());
-    for(AuctionInfo info : auctions) {
-      joining.put(info.getId().toString(), info);
-    }
+    final Map<String, AuctionInfo> joining = new HashMap<String, AuctionInfo>(entries.size());
+    AuctionInfo.forEachById(auctionIDs, new ActiveRecord.Visitor<AuctionInfo>() {
+      public boolean visit(AuctionInfo info) {
+        joining.put(info.getId().toString(), info);
+        return true;
+      }
+    });
     for (AuctionEntry entry : entries) {
       AuctionInfo ai = joining.get(entry.getAuctionId());
       entry.setAuctionInfo(ai);
@@ -163,16 +170,12 @@ public class AuctionServerManager implements MessageQueue.Listener, Resolver {
         tabQ.enqueue("REPORT Importing completed listings");
         tabQ.enqueue("SHOW");
 
-        timeStart("findEnded");
-        List<AuctionEntry> entries = EntryCorral.findEnded();//TODO EntryCorral these?
-        timeStop("findEnded");
-
-        int endedCount = entries.size();
+        int endedCount = EntryCorral.completedCount();
         final double percentStep = ((double)endedCount) / 100.0;
         final double percentMultiple = 100.0 / ((double)endedCount);
         tabQ.enqueue("PROGRESS");
         tabQ.enqueue("PROGRESS Loading...");
-        importListingsToUI(newServer, entries, new Report() {
+        final Report progress = new Report() {
           public void report(AuctionEntry ae, int count) {
             if(percentStep < 1.0) {
               tabQ.enqueue("PROGRESS " + Math.round(count * percentMultiple));
@@ -183,7 +186,20 @@ public class AuctionServerManager implements MessageQueue.Listener, Resolver {
             }
             try { Thread.sleep(50); } catch(InterruptedException ie) { /* ignore */ }
           }
+        };
+
+        //  There can be tens of thousands of these, so only hold a page of them at a time.
+        timeStart("importEnded");
+        EntryCorral.forEachEnded(new ActiveRecord.Visitor<AuctionEntry>() {
+          private int mCount = 0;
+
+          public boolean visit(AuctionEntry ae) {
+            importListingToUI(newServer, ae);
+            progress.report(ae, mCount++);
+            return true;
+          }
         });
+        timeStop("importEnded");
         tabQ.enqueue("HIDE");
         EntryTable.getRealDatabase().commit();
       }
@@ -215,40 +231,44 @@ public class AuctionServerManager implements MessageQueue.Listener, Resolver {
     int count = 0;
 
     for(AuctionEntry ae : entries) {
-      timeStart("setServer");
-      ae.setServer(newServer);
-      timeStop("setServer");
-
-      if (!ae.hasAuction()) {
-        JConfig.log().logMessage("We lost the underlying auction for: " + ae.dumpRecord());
-        boolean recentlyUpdated = ae.getLastUpdated() != null && ae.getLastUpdated().after(new Date(System.currentTimeMillis() - Constants.ONE_DAY * 45));
-        if(ae.getString("identifier") != null && recentlyUpdated) {
-          JConfig.log().logMessage("Trying to reload auction via its auction identifier.");
-          MQFactory.getConcrete("drop").enqueue(ae.getString("identifier"));
-        } else {
-          if(!recentlyUpdated) {
-            JConfig.log().logMessage("Auction entry " + ae.getString("identifier") + " is too old to reload, deleting.");
-          } else {
-            JConfig.log().logMessage("Auction entry id " + ae.getId() + " doesn't have enough detail to reload; deleting.");
-          }
-          timeStart("delete");
-          ae.delete();
-          timeStop("delete");
-        }
+      importListingToUI(newServer, ae);
+      if(r != null) r.report(ae, count++);
+    }
+  }
+
+  private void importListingToUI(AuctionServer newServer, AuctionEntry ae) {
+    timeStart("setServer");
+    ae.setServer(newServer);
+    timeStop("setServer");
+
+    if (!ae.hasAuction()) {
+      JConfig.log().logMessage("We lost the underlying auction for: " + ae.dumpRecord());
+      boolean recentlyUpdated = ae.getLastUpdated() != null && ae.getLastUpdated().after(new Date(System.currentTimeMillis() - Constants.ONE_DAY * 45));
+      if(ae.getString("identifier") != null && recentlyUpdated) {
+        JConfig.log().logMessage("Trying to reload auction via its auction identifier.");
+        MQFactory.getConcrete("drop").enqueue(ae.getString("identifier"));
       } else {
-        timeStart("addEntry");
-        timeStart("addEntry-" + ae.getCategory());
-        try {
-          entryManager.addEntry(ae);
-        } catch(Exception e) {
-          String errorMessage = "Failed to add an auction entry";
-          errorMessage += " for item " + ae.getIdentifier() + " (" + ae.getId() + ") ";
-          JConfig.log().handleException(errorMessage, e);
+        if(!recentlyUpdated) {
+          JConfig.log().logMessage("Auction entry " + ae.getString("identifier") + " is too old to reload, deleting.");
+        } else {
+          JConfig.log().logMessage("Auction entry id " + ae.getId() + " doesn't have enough detail to reload; deleting.");
         }
-        timeStop("addEntry-" + ae.getCategory());
-        timeStop("addEntry");
+        timeStart("delete");
+        ae.delete();
+        timeStop("delete");
       }
-      if(r != null) r.report(ae, count++);
+    } else {
+      timeStart("addEntry");
+      timeStart("addEntry-" + ae.getCategory());
+      try {
+        entryManager.addEntry(ae);
+      } catch(Exception e) {
+        String errorMessage = "Failed to add an auction entry";
+        errorMessage += " for item " + ae.getIdentifier() + " (" + ae.getId() + ") ";
+        JConfig.log().handleException(errorMessage, e);
+      }
+      timeStop("addEntry-" + ae.getCategory());
+      timeStop("addEntry");
     }
   }
 
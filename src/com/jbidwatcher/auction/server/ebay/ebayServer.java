@@ -16,6 +16,11 @@ import com.google.inject.assistedinject.Assisted;
 import com.jbidwatcher.auction.server.AuctionServerManager;
 import com.jbidwatcher.util.config.*;
 import com.jbidwatcher.auction.server.ServerMenu;
+import com.jbidwatcher.util.db.ConnectionPool;
+import com.jbidwatcher.util.db.QueryProfiler;
+import com.jbidwatcher.util.db.ResultCache;
+import com.jbidwatcher.util.db.Table;
+import com.jbidwatcher.util.db.WriteBehind;
 import com.jbidwatcher.util.queue.*;
 import com.jbidwatcher.util.html.JHTML;
 import com.jbidwatcher.util.http.CookieJar;
@@ -263,6 +268,14 @@ public final class ebayServer extends AuctionServer implements MessageQueue.List
 
       if(ac.getData().equals("Dump eBay Activity Queue")) {
         _etqm.dumpQueue(T.getBundle());
+        MQFactory.dumpQueues(T.getBundle());
+        JConfig.log().logDebug(T.getBundle() + ": " + ConnectionPool.getInstance());
+        if(WriteBehind.isEnabled()) JConfig.log().logDebug(T.getBundle() + ": " + WriteBehind.getInstance());
+        JConfig.log().logDebug(T.getBundle() + ": " + Table.getConflicts() + " writes found their row changed since it was read");
+        JConfig.log().logDebug(T.getBundle() + ": queries by total time\n" + QueryProfiler.getInstance().report(20, true));
+        JConfig.log().logDebug(T.getBundle() + ": result cache\n" + ResultCache.getInstance().report(20));
+        JConfig.log().logDebug(T.getBundle() + ": entries " + entryCorral.getCacheStats());
+        JConfig.log().logDebug(T.getBundle() + ": entries " + entryCorral.getLockStats());
         return;
       }
     }
@@ -331,12 +344,37 @@ public final class ebayServer extends AuctionServer implements MessageQueue.List
         JConfig.log().logMessage("Failing to set snipe for " + auctionId + ", endDate is null or in the far future (" + endDate + ")");
       }
 
-      MQFactory.getConcrete("my").enqueue("SNIPE " + auctionId);
+      MQFactory.getConcrete("my").enqueueObject(EntryMessage.sniped(auctionId));
     } finally {
       entryCorral.release(auctionId);
     }
   }
 
+  /**
+   * If 'snipe.persist' is on (the default), the snipe schedule is kept in
+   * the database, so it can be reloaded here instead of being rebuilt
+   * from every sniped entry at startup.
+   *
+   * @return The number of snipe events reloaded.
+   */
+  public int restoreSnipes() {
+    return _etqm.setPersistent(JConfig.queryConfiguration("snipe.persist", "true").equals("true"));
+  }
+
+  /**
+   * A restored schedule can only be trusted if it's exactly what setSnipe
+   * would set up now; if the end date or the snipe time changed since it
+   * was saved, or some of it already fired (the pre-snipe, say), it isn't.
+   */
+  public boolean isSnipeScheduled(String identifier, Date endDate, long snipeDelta) {
+    if (endDate == null || endDate == Constants.FAR_FUTURE) return false;
+    long snipeAt = endDate.getTime() - snipeDelta;
+
+    return _etqm.contains(identifier, mSnipeQueue.getQueueName(), snipeAt - TWO_MINUTES) &&
+           _etqm.contains(identifier, mSnipeQueue.getQueueName(), snipeAt) &&
+           _etqm.contains(identifier, "drop", endDate.getTime() + THIRTY_SECONDS);
+  }
+
   /**
    * Erase the pending snipe
    * @param identifier - The auction identifier of the listing whose snipe to cancel.
@@ -344,7 +382,7 @@ public final class ebayServer extends AuctionServer implements MessageQueue.List
   public void cancelSnipe(String identifier) {
     _etqm.erase(identifier);
     mSnipeQueue.delSnipe(identifier);
-    MQFactory.getConcrete("my").enqueue("CANCEL " + identifier);
+    MQFactory.getConcrete("my").enqueueObject(EntryMessage.cancelled(identifier));
   }
 
   /**
@@ -404,8 +442,9 @@ public final class ebayServer extends AuctionServer implements MessageQueue.List
     }
 
     _etqm = new eBayTimeQueueManager();
-    eQueue = new TimerHandler(_etqm);
+    eQueue = new TimerHandler(_etqm, TimeQueueManager.CHECK_INTERVAL);
     eQueue.setName("eBay SuperQueue");
+    _etqm.setTimer(eQueue);
     //noinspection CallToThreadStartDuringObjectConstruction
     eQueue.start();
 
@@ -691,10 +730,7 @@ public final class ebayServer extends AuctionServer implements MessageQueue.List
           mSnipeMap.remove(identifier);
           break;
         case Snipe.SUCCESSFUL:
-          if(!_etqm.contains(new TimeQueueManager.Matcher() {
-            public boolean match(Object payload, Object queue, long when) {
-              return payload.equals(identifier) && queue == mSnipeQueue;
-            }})) {
+          if(!_etqm.contains(identifier, getQueueName())) {
             resnipe(identifier, snipe, true);
           }
         default:
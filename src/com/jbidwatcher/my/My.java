@@ -35,11 +35,7 @@ public class My extends ActiveRecord {
     return (My) ActiveRecord.findFirstBy(My.class, key, value);
   }
 
-  private static ThreadLocal<Table> tDB = new ThreadLocal<Table>() {
-    protected synchronized Table initialValue() {
-      return openDB(getTableName());
-    }
-  };
+  private static Table sDB = null;
 
   @Override
   protected Table getDatabase() {
@@ -47,6 +43,9 @@ public class My extends ActiveRecord {
   }
 
   public static Table getRealDatabase() {
-    return tDB.get();
+    if (sDB == null) {
+      sDB = openDB(getTableName());
+    }
+    return sDB;
   }
 }
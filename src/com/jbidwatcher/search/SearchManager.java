@@ -21,7 +21,7 @@ import java.util.List;
 import java.util.ArrayList;
 
 @Singleton
-public class SearchManager extends XMLSerializeSimple implements SearchManagerInterface, TimerHandler.WakeupProcess {
+public class SearchManager extends XMLSerializeSimple implements SearchManagerInterface, TimerHandler.DeadlineProcess {
   private List<Searcher> _searches = new ArrayList<Searcher>();
   private static TimerHandler sTimer;
   private String destinationQueue;
@@ -100,6 +100,14 @@ public class SearchManager extends XMLSerializeSimple implements SearchManagerIn
     return fired;
   }
 
+  public long nextDeadline() {
+    long next = TimerHandler.NO_DEADLINE;
+    for (Searcher s : _searches) {
+      next = Math.min(next, s.getNextRun());
+    }
+    return next;
+  }
+
   /** 
    * @brief Save searches in a file.
    *
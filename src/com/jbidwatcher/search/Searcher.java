@@ -89,6 +89,15 @@ public abstract class Searcher extends XMLSerializeSimple {
     return false;
   }
 
+  /**
+   * @return The time this search is next due to run, or Long.MAX_VALUE if it doesn't repeat.
+   */
+  public long getNextRun() {
+    if(_enabled && _period != -1) return _last + (_period * Constants.ONE_HOUR);
+
+    return Long.MAX_VALUE;
+  }
+
   public abstract String getTypeName();
   public void execute() { setLastRun(); fire(); }
   protected abstract void fire();
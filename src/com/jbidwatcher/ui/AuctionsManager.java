@@ -31,7 +31,7 @@ import org.json.simple.JSONObject;
 import java.util.*;
 
 @Singleton
-public class AuctionsManager implements TimerHandler.WakeupProcess, EntryManager, JConfig.ConfigListener, MessageQueue.Listener {
+public class AuctionsManager implements TimerHandler.DeadlineProcess, EntryManager, JConfig.ConfigListener, MessageQueue.Listener {
   private FilterManager mFilter;
   private final PauseManager mPauseManager;
   private final EntryCorral entryCorral;
@@ -85,10 +85,11 @@ public class AuctionsManager implements TimerHandler.WakeupProcess, EntryManager
     }
   }
 
-  private List<AuctionEntry> normalizeEntries(List<AuctionEntry> entries) {
+  private List<AuctionEntry> loadEntries(List<String> identifiers) {
     List<AuctionEntry> output = new ArrayList<AuctionEntry>();
-    for(AuctionEntry ae : entries) {
-      output.add(entryCorral.takeForRead(ae.getIdentifier()));
+    for(String identifier : identifiers) {
+      AuctionEntry ae = entryCorral.takeForRead(identifier);
+      if(ae != null) output.add(ae);
     }
     return output;
   }
@@ -96,31 +97,31 @@ public class AuctionsManager implements TimerHandler.WakeupProcess, EntryManager
   /**
    * @brief Check all the auctions for active events, and check if we
    * should snapshot the auctions off to disk.
+   *
+   * What's due comes from the UpdateSchedule, not the database; while
+   * updates are paused nothing is taken, so everything due (including
+   * what the user asked to be updated) stays due until the pause ends.
    * 
    * @return True if any auctions updated.
    */
   public boolean check() throws InterruptedException {
-    boolean neededUpdate = false;
-    List<AuctionEntry> needUpdate;
-    if(!mPauseManager.isPaused()) {
-      needUpdate = normalizeEntries(EntryCorral.findAllNeedingUpdates(Constants.ONE_MINUTE * 69)); // TODO: Simplify to load just identifiers?
-      updateList(needUpdate);
-      neededUpdate = !needUpdate.isEmpty();
+    UpdateSchedule schedule = UpdateSchedule.getInstance();
+    schedule.seed();
 
-      //  These could be two separate threads, doing slow and fast updates.
-      needUpdate = normalizeEntries(EntryCorral.findEndingNeedingUpdates(Constants.ONE_MINUTE));
+    List<AuctionEntry> needUpdate = Collections.emptyList();
+    if(!mPauseManager.isPaused()) {
+      needUpdate = loadEntries(schedule.takeDue(System.currentTimeMillis()));
       updateList(needUpdate);
-      neededUpdate |= !needUpdate.isEmpty();
     }
 
-    //  Or three, doing slow, fast, and manual...
-    needUpdate = normalizeEntries(EntryCorral.findManualUpdates());
-    updateList(needUpdate);
-    neededUpdate |= !needUpdate.isEmpty();
-
     checkSnapshot();
 
-    return neededUpdate;
+    return !needUpdate.isEmpty();
+  }
+
+  public long nextDeadline() {
+    //  Nothing's taken while paused; look again in a little while.
+    return mPauseManager.isPaused() ? TimerHandler.NO_DEADLINE : UpdateSchedule.getInstance().nextDue();
   }
 
   /**
@@ -144,7 +145,7 @@ public class AuctionsManager implements TimerHandler.WakeupProcess, EntryManager
       //  TODO(mschweers) - This probably detects too much, like timestamp changes, etc...  Need to test.
       boolean same = JSONObject.toJSONString(after).equals(JSONObject.toJSONString(before));
 
-      MQFactory.getConcrete("my").enqueue("UPDATE " + ae.getIdentifier() + "," + Boolean.toString(!same));
+      MQFactory.getConcrete("my").enqueueObject(EntryMessage.updated(ae.getIdentifier(), !same));
       if (!same) {
         //  Forget any cached info we have; the on-disk version has changed.
         String category = ae.getCategory();
@@ -163,16 +164,18 @@ public class AuctionsManager implements TimerHandler.WakeupProcess, EntryManager
       if (Thread.interrupted()) throw new InterruptedException();
       // It's likely that we've pulled a big list of stuff to update before realizing the
       // networking is down; pause updating for a little bit until it's likely to have come
-      // back.
-      if (!mPauseManager.isPaused()) {
+      // back.  Whatever's left stays due, as it was, for when the pause is over.
+      if (mPauseManager.isPaused()) {
+        UpdateSchedule.getInstance().putBack(ae.getIdentifier());
+      } else {
         boolean forced = ae.isUpdateRequired();
 
-        MQFactory.getConcrete("update " + ae.getCategory()).enqueue("start " + ae.getIdentifier());
+        MQFactory.getConcrete("update " + ae.getCategory()).enqueueObject(EntryMessage.start(ae.getIdentifier()));
 
         doUpdate(ae);
         entryCorral.putWeakly(ae);
 
-        MQFactory.getConcrete("update " + ae.getCategory()).enqueue("stop " + ae.getIdentifier());
+        MQFactory.getConcrete("update " + ae.getCategory()).enqueueObject(EntryMessage.stop(ae.getIdentifier()));
 
         if (forced) MQFactory.getConcrete("redraw").enqueue(ae.getCategory()); // Redraw a tab that has a forced update.
       }
@@ -208,8 +211,8 @@ public class AuctionsManager implements TimerHandler.WakeupProcess, EntryManager
     int totalCount = AuctionInfo.count();
     int activeCount = EntryCorral.activeCount();
 
-    MQFactory.getConcrete("splash").enqueue("WIDTH " + activeCount);
-    MQFactory.getConcrete("splash").enqueue("SET 0");
+    MQFactory.getConcrete("splash").enqueueObject(ProgressMessage.width(activeCount));
+    MQFactory.getConcrete("splash").enqueueObject(ProgressMessage.set(0));
 
     AuctionServer newServer = serverManagerProvider.get().getServer();
     if (totalCount == 0) {
@@ -242,6 +245,7 @@ public class AuctionsManager implements TimerHandler.WakeupProcess, EntryManager
     if(sTimer == null) {
       sTimer = new TimerHandler(this);
       sTimer.setName("Updates");
+      UpdateSchedule.getInstance().setTimer(sTimer);
       sTimer.start();
     }
     JConfig.registerListener(this);
@@ -21,7 +21,7 @@ import java.util.*;
 import java.awt.Color;
 
 @Singleton
-public class FilterManager implements MessageQueue.Listener, FilterInterface {
+public class FilterManager implements MessageQueue.BatchListener, FilterInterface {
   private final ListManager mList;
   private final JTabManager tabs;
   private final EntryCorral corral;
@@ -46,6 +46,7 @@ public class FilterManager implements MessageQueue.Listener, FilterInterface {
         AuctionEntry ae = corral.takeForRead(deQ.toString());  //  Lock the item
         deleteAuction(ae);
         ae = (AuctionEntry) corral.takeForWrite(deQ.toString());  //  Lock the item
+        corral.hide(ae.getIdentifier());  //  It's gone from the UI for good
         corral.erase(ae.getIdentifier());  //  Remove and unlock it
       }
     });
@@ -93,7 +94,26 @@ public class FilterManager implements MessageQueue.Listener, FilterInterface {
   }
 
   public void messageAction(Object deQ) {
-    String cmd = deQ.toString();
+    messagesAction(Collections.singletonList(deQ));
+  }
+
+  /**
+   * Handle a batch of redraw requests; a tab that several of them touch
+   * is only redrawn once, at the end.
+   *
+   * @param batch - The identifiers, categories, colors, etc. to redraw.
+   */
+  public void messagesAction(List<Object> batch) {
+    Set<AuctionListHolder> toRedraw = new LinkedHashSet<AuctionListHolder>();
+    for(Object deQ : batch) {
+      redraw(deQ.toString(), toRedraw);
+    }
+    for(AuctionListHolder holder : toRedraw) {
+      holder.getUI().redrawAll();
+    }
+  }
+
+  private void redraw(String cmd, Set<AuctionListHolder> toRedraw) {
     if(StringTools.isNumberOnly(cmd)) {
       AuctionEntry ae = corral.takeForRead(cmd);
       if(ae != null) {
@@ -102,8 +122,8 @@ public class FilterManager implements MessageQueue.Listener, FilterInterface {
         AuctionListHolder newAuction = refilterAuction(ae);
         if (newAuction != null) {
           MQFactory.getConcrete("Swing").enqueue("Moved to " + newAuction.getList().getName() + " " + ae.getTitleAndComment());
-          if (old != null) old.getUI().redrawAll();
-          newAuction.getUI().redrawAll();
+          if (old != null) toRedraw.add(old);
+          toRedraw.add(newAuction);
         } else {
           auctionTableModel model = (auctionTableModel)tabs.getCurrentTable().getModel();
           int row = model.findRow(ae);
@@ -7,6 +7,7 @@ package com.jbidwatcher.ui;
 
 import com.jbidwatcher.util.queue.MQFactory;
 import com.jbidwatcher.util.queue.MessageQueue;
+import com.jbidwatcher.util.queue.ProgressMessage;
 
 import javax.swing.*;
 import javax.swing.border.BevelBorder;
@@ -84,6 +85,16 @@ public class JSplashScreen extends Window implements MessageQueue.Listener {
   }
 
   public void messageAction(Object deQ) {
+    if(deQ instanceof ProgressMessage) {
+      ProgressMessage progress = (ProgressMessage) deQ;
+      if(progress.isWidth()) {
+        setWidth(progress.getValue());
+      } else {
+        showStatus(progress.getValue());
+      }
+      return;
+    }
+
     String msg = (String) deQ;
     if(msg.startsWith("SET ")) {
       int amount = parseInt(msg.substring(4));
@@ -9,9 +9,33 @@ import com.jbidwatcher.util.queue.MessageQueue;
 import com.jbidwatcher.util.config.JConfig;
 
 import javax.swing.SwingUtilities;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * Delivers messages to its listeners on the Swing event thread.
+ *
+ * By default one runnable is posted to the EDT per batch, not per message.
+ * Each run drains everything queued since the last one, for up to
+ * 'queue.swing.budget' ms (default 16, about a frame), and leaves the
+ * remainder for the next run so painting isn't starved.  If the listener
+ * is Supersedable, messages replaced by newer ones in the same batch are
+ * skipped.  Setting 'queue.swing.mode' to 'each' restores one runnable per
+ * message.
+ */
 public class SwingMessageQueue extends MessageQueue
 {
+  private final boolean mDrain;
+  private final long mBudget;
+  private final AtomicBoolean mScheduled = new AtomicBoolean(false);
+  //  Messages a drain ran out of time for; only touched on the EDT.
+  private final List<Object> mLeftover = new ArrayList<Object>();
+
+  public SwingMessageQueue() {
+    mDrain = !JConfig.queryConfiguration("queue.swing.mode", "drain").equals("each");
+    mBudget = Long.parseLong(JConfig.queryConfiguration("queue.swing.budget", "16"));
+  }
+
   protected void handleListener() {
     //  Nothing to do here, unless we want to handle postponed messages
     // here too...  We don't appear to have as much of a problem with
@@ -19,11 +43,44 @@ public class SwingMessageQueue extends MessageQueue
   }
 
   public void run() {
-    Object data = dequeue();
+    if(!mDrain) {
+      deliver(dequeue());
+      return;
+    }
+
+    mScheduled.set(false);
+    List<Object> batch = new ArrayList<Object>(mLeftover);
+    mLeftover.clear();
+    Object data;
+    while((data = take()) != null) {
+      batch.add(data);
+    }
+    batch = dropSuperseded(batch);
+
+    long stop = System.currentTimeMillis() + mBudget;
+    int delivered = 0;
+    while(delivered < batch.size()) {
+      deliver(decode(batch.get(delivered++)));
+      if(System.currentTimeMillis() >= stop) break;
+    }
+
+    //  Out of time for this frame; keep the rest to go in front of anything newer, and come back for it.
+    if(delivered < batch.size()) {
+      mLeftover.addAll(batch.subList(delivered, batch.size()));
+      schedule();
+    }
+  }
+
+  private void deliver(Object data) {
     if(!_listeners.isEmpty()) {
       try {
         for (Listener l : _listeners) {
-          l.messageAction(data);
+          long start = beginDelivery(l);
+          try {
+            l.messageAction(data);
+          } finally {
+            endDelivery(start);
+          }
         }
       } catch(Exception e) {
         JConfig.log().handleException("SMQ Caught exception: " + e, e);
@@ -31,17 +88,56 @@ public class SwingMessageQueue extends MessageQueue
     }
   }
 
+  /**
+   * Skip any message which a later one in the batch replaces.
+   *
+   * @param batch - The messages waiting, oldest first.
+   *
+   * @return The messages to deliver, oldest first.
+   */
+  private List<Object> dropSuperseded(List<Object> batch) {
+    if(batch.size() < 2 || _listeners.isEmpty() || !(_listeners.get(0) instanceof Supersedable)) return batch;
+
+    Supersedable listener = (Supersedable) _listeners.get(0);
+    Set<String> seen = new HashSet<String>();
+    List<Object> kept = new ArrayList<Object>(batch.size());
+    for(int i = batch.size() - 1; i >= 0; i--) {
+      Object message = batch.get(i);
+      String key = listener.supersedeKey(message);
+      if(key == null || seen.add(key)) {
+        kept.add(message);
+      } else {
+        listener.superseded(message);
+      }
+    }
+    Collections.reverse(kept);
+    return kept;
+  }
+
+  private void schedule() {
+    if(mScheduled.compareAndSet(false, true)) {
+      SwingUtilities.invokeLater(this);
+    }
+  }
+
   public boolean enqueue(String obj) {
     if (JConfig.queryConfiguration("debug.queues", "false").equals("true")) {
       JConfig.log().logMessage(obj);
     }
-    synchronized(_queue) {
-      if (_queue.isEmpty() || _queue.getLast() != obj) {
-        _queue.addLast(obj);
-        SwingUtilities.invokeLater(this);
-        return true;
-      }
+    return enqueueObject(obj);
+  }
+
+  public boolean enqueueObject(Object obj) {
+    //noinspection ObjectEquality
+    if (_queue.peekLast() == obj) return false;
+
+    _queue.offer(obj);
+    enqueued();
+    if(mDrain) {
+      schedule();
+    } else {
+      SwingUtilities.invokeLater(this);
     }
-    return false;
+    return true;
   }
 }
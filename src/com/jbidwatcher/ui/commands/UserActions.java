@@ -8,6 +8,8 @@ package com.jbidwatcher.ui.commands;
 import java.awt.*;
 import java.awt.event.*;
 import javax.swing.*;
+import java.io.File;
+import java.io.IOException;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -27,7 +29,11 @@ import com.jbidwatcher.ui.*;
 import com.jbidwatcher.util.config.*;
 import com.jbidwatcher.ui.config.JConfigFrame;
 import com.jbidwatcher.ui.util.*;
+import com.jbidwatcher.util.db.ConnectionPool;
 import com.jbidwatcher.util.db.Database;
+import com.jbidwatcher.util.db.QueryProfiler;
+import com.jbidwatcher.util.db.ResultCache;
+import com.jbidwatcher.util.db.RowCounter;
 import com.jbidwatcher.util.db.Table;
 import com.jbidwatcher.util.queue.MQFactory;
 import com.jbidwatcher.util.queue.AuctionQObject;
@@ -427,9 +433,15 @@ public class UserActions implements MessageQueue.Listener {
     String sql = promptString(src, "Enter the command to run", "Executing");
     if (sql == null || sql.length() == 0) return;
     sql = sql.trim();
+    if(sql.toUpperCase().startsWith("PROFILE")) {
+      doProfile(sql.substring("PROFILE".length()).trim());
+      return;
+    }
 
+    ConnectionPool pool = ConnectionPool.getInstance();
+    Database db = null;
     try {
-      Database db = new Database(null);
+      db = pool.acquire();
       Statement s = db.getStatement();
       boolean resultType = db.executeCanonicalizedSQL(s, sql);
       if(resultType) {
@@ -437,16 +449,42 @@ public class UserActions implements MessageQueue.Listener {
         Record r = Table.getFirstResult(rs);
         MQFactory.getConcrete("Swing").enqueue("ALERT " + r.dump());
       } else {
+        //  Whatever it changed went around Table, so the kept counts and cached results can't be trusted.
+        RowCounter.invalidateAll();
+        ResultCache.getInstance().invalidateAll();
         MQFactory.getConcrete("Swing").enqueue("ALERT " + s.getUpdateCount());
       }
-    } catch (ClassNotFoundException e) {
-      e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
+      s.close();
     } catch (SQLException e) {
       e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
-    } catch (InstantiationException e) {
-      e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
-    } catch (IllegalAccessException e) {
-      e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
+    } finally {
+      pool.release(db);
+    }
+  }
+
+  /**
+   * Show or save the query profile, from the SQL prompt.  'PROFILE' shows
+   * the statements taking the most time, 'PROFILE DUMP' writes everything
+   * (with any captured plans) to sql_profile.txt in the home directory,
+   * and 'PROFILE RESET' starts counting over.
+   *
+   * @param command - What followed 'PROFILE'.
+   */
+  private void doProfile(String command) {
+    QueryProfiler profiler = QueryProfiler.getInstance();
+    if(command.equalsIgnoreCase("RESET")) {
+      profiler.reset();
+      MQFactory.getConcrete("Swing").enqueue("ALERT Query profile cleared.");
+    } else if(command.equalsIgnoreCase("DUMP")) {
+      File out = new File(JConfig.getHomeDirectory(), "sql_profile.txt");
+      try {
+        profiler.dump(out);
+        MQFactory.getConcrete("Swing").enqueue("ALERT Query profile written to " + out.getAbsolutePath());
+      } catch(IOException e) {
+        JConfig.log().handleException("Couldn't write the query profile to " + out.getAbsolutePath(), e);
+      }
+    } else {
+      MQFactory.getConcrete("Swing").enqueue("ALERT " + profiler.report(15, false));
     }
   }
 
@@ -5,6 +5,7 @@ import com.jbidwatcher.util.Comparison;
 import com.jbidwatcher.util.config.JConfig;
 import com.jbidwatcher.util.Constants;
 import com.jbidwatcher.util.Pair;
+import com.jbidwatcher.util.queue.EntryMessage;
 import com.jbidwatcher.util.queue.MQFactory;
 import com.jbidwatcher.util.queue.MessageQueue;
 import com.jbidwatcher.util.queue.SuperQueue;
@@ -89,12 +90,19 @@ public class AuctionTable extends JTable implements MessageQueue.Listener {
   }
 
   public void messageAction(Object deQ) {
-    int start = ((String)deQ).lastIndexOf(' ');
-    final String identifier = ((String)deQ).substring(start+1);
-    String command = ((String)deQ).substring(0, start);
+    final String identifier;
+    boolean starting;
+    if(deQ instanceof EntryMessage) {
+      identifier = ((EntryMessage)deQ).getIdentifier();
+      starting = ((EntryMessage)deQ).getKind() == EntryMessage.Kind.START;
+    } else {
+      int start = ((String)deQ).lastIndexOf(' ');
+      identifier = ((String)deQ).substring(start+1);
+      starting = ((String)deQ).substring(0, start).equals("start");
+    }
     int activeRow = currentRow == null ? 0 : currentRow.intValue();
 
-    if(command.equals("start")) {
+    if(starting) {
       currentRow = ((auctionTableModel)getModel()).findRow(new Comparison() {
         public boolean match(Object o) {
           String foundIdentifier = null;
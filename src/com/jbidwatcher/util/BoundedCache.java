@@ -0,0 +1,193 @@
+package com.jbidwatcher.util;
+
+/*
+ * Copyright (c) 2000-2007, CyberFOX Software, Inc. All Rights Reserved.
+ *
+ * Developed by mrs (Morgan Schweers)
+ */
+
+import java.util.*;
+
+/**
+ * A cache holding at most a fixed number of values, plus any which are
+ * pinned.
+ *
+ * It's a segmented LRU: a value starts out on probation, and is promoted
+ * to the protected segment (four fifths of the space) the second time
+ * it's asked for.  When it's full, the least recently used value on
+ * probation goes first, so a burst of values which are only looked at
+ * once (a search's hits, say) can't push out the ones in regular use.
+ * Pinned values are kept outside of both, and are never evicted until
+ * they're unpinned.
+ *
+ * Every method is synchronized on the cache itself; callers that need
+ * to check and then put can synchronize on it too.  The Listener is
+ * called with that lock held, so it should be quick.
+ */
+public class BoundedCache<K, V> {
+  /**
+   * Told about each value the cache drops to stay within its size.
+   */
+  public interface Listener<K, V> {
+    void evicted(K key, V value);
+  }
+
+  private final int mCapacity;
+  private final int mProtectedCapacity;
+  private final Listener<K, V> mListener;
+
+  private final Map<K, V> mPinned = new HashMap<K, V>();
+  private final LinkedHashMap<K, V> mProbation = new LinkedHashMap<K, V>(16, 0.75f, true);
+  private final LinkedHashMap<K, V> mProtected = new LinkedHashMap<K, V>(16, 0.75f, true);
+
+  private long mHits = 0;
+  private long mMisses = 0;
+  private long mEvictions = 0;
+
+  public BoundedCache(int capacity) {
+    this(capacity, null);
+  }
+
+  /**
+   * @param capacity - How many unpinned values to keep.
+   * @param listener - Told about evicted values; may be null.
+   */
+  public BoundedCache(int capacity, Listener<K, V> listener) {
+    mCapacity = Math.max(0, capacity);
+    mProtectedCapacity = mCapacity * 4 / 5;
+    mListener = listener;
+  }
+
+  /**
+   * @param key - The value's key.
+   *
+   * @return The value, or null if it's not in the cache.  Either way it counts as a hit or a miss.
+   */
+  public synchronized V get(K key) {
+    V value = mPinned.get(key);
+    if(value == null) value = mProtected.get(key);
+    if(value == null) {
+      value = mProbation.remove(key);
+      if(value != null) promote(key, value);
+    }
+    if(value == null) mMisses++; else mHits++;
+    return value;
+  }
+
+  /**
+   * @param key - The value's key.
+   *
+   * @return The value, or null; unlike get() it isn't counted, and doesn't change what's evicted next.
+   */
+  public synchronized V peek(K key) {
+    V value = mPinned.get(key);
+    if(value == null) value = mProtected.get(key);
+    if(value == null) value = mProbation.get(key);
+    return value;
+  }
+
+  public synchronized boolean containsKey(K key) {
+    return mPinned.containsKey(key) || mProtected.containsKey(key) || mProbation.containsKey(key);
+  }
+
+  /**
+   * Add or replace a value.  A replaced value keeps its place, and stays pinned if it was.
+   *
+   * @param key - The value's key.
+   * @param value - The value.
+   *
+   * @return The value it replaced, if any.
+   */
+  public synchronized V put(K key, V value) {
+    if(mPinned.containsKey(key)) return mPinned.put(key, value);
+    if(mProtected.containsKey(key)) return mProtected.put(key, value);
+    V old = mProbation.put(key, value);
+    if(old == null) trim();
+    return old;
+  }
+
+  /**
+   * Keep a value regardless of how many others there are.
+   *
+   * @param key - The value's key.
+   *
+   * @return true if there was a value to pin.
+   */
+  public synchronized boolean pin(K key) {
+    if(mPinned.containsKey(key)) return true;
+    V value = mProtected.remove(key);
+    if(value == null) value = mProbation.remove(key);
+    if(value == null) return false;
+    mPinned.put(key, value);
+    return true;
+  }
+
+  /**
+   * Let a pinned value be evicted again; it goes back on probation.
+   *
+   * @param key - The value's key.
+   */
+  public synchronized void unpin(K key) {
+    V value = mPinned.remove(key);
+    if(value != null) {
+      mProbation.put(key, value);
+      trim();
+    }
+  }
+
+  public synchronized boolean isPinned(K key) {
+    return mPinned.containsKey(key);
+  }
+
+  public synchronized V remove(K key) {
+    V value = mPinned.remove(key);
+    if(value == null) value = mProtected.remove(key);
+    if(value == null) value = mProbation.remove(key);
+    return value;
+  }
+
+  public synchronized void clear() {
+    mPinned.clear();
+    mProtected.clear();
+    mProbation.clear();
+  }
+
+  public synchronized int size() {
+    return mPinned.size() + mProtected.size() + mProbation.size();
+  }
+
+  public synchronized int pinnedCount() { return mPinned.size(); }
+  public synchronized long getHits() { return mHits; }
+  public synchronized long getMisses() { return mMisses; }
+  public synchronized long getEvictions() { return mEvictions; }
+
+  private void promote(K key, V value) {
+    mProtected.put(key, value);
+    if(mProtected.size() > mProtectedCapacity) {
+      //  The protected segment's least recently used value gets another chance on probation.
+      Iterator<Map.Entry<K, V>> it = mProtected.entrySet().iterator();
+      Map.Entry<K, V> eldest = it.next();
+      it.remove();
+      mProbation.put(eldest.getKey(), eldest.getValue());
+    }
+    trim();
+  }
+
+  private void trim() {
+    while(mProbation.size() + mProtected.size() > mCapacity) {
+      LinkedHashMap<K, V> from = mProbation.isEmpty() ? mProtected : mProbation;
+      Iterator<Map.Entry<K, V>> it = from.entrySet().iterator();
+      Map.Entry<K, V> eldest = it.next();
+      it.remove();
+      mEvictions++;
+      if(mListener != null) mListener.evicted(eldest.getKey(), eldest.getValue());
+    }
+  }
+
+  public synchronized String toString() {
+    long total = mHits + mMisses;
+    return size() + " of " + mCapacity + " cached (" + mPinned.size() + " pinned), " +
+        mHits + " hits, " + mMisses + " misses (" + (total == 0 ? 0 : Math.round(mHits * 100.0 / total)) + "%), " +
+        mEvictions + " evictions";
+  }
+}
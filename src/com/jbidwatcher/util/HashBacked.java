@@ -1,7 +1,11 @@
 package com.jbidwatcher.util;
 
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
 import java.text.SimpleDateFormat;
 
@@ -19,7 +23,12 @@ public class HashBacked {
   private SimpleDateFormat mDateFormat = new SimpleDateFormat(DB_DATE_FORMAT);
   private Map<String, String> mTranslationTable;
   private String mDefaultCurrency;
+  //  Set when something changed without saying which column, so the whole row has to be written.
   private boolean mDirty = false;
+  //  The columns set() has changed since the record was loaded or last saved.
+  private final Set<String> mDirtyColumns = new HashSet<String>();
+  //  What each of those columns held before it was first changed.
+  private final Map<String, String> mOriginals = new HashMap<String, String>();
   private static final Currency ONE_DOLLAR = Currency.getCurrency("$1.00");
 
   public HashBacked() {
@@ -35,14 +44,80 @@ public class HashBacked {
 
   public void setTranslationTable(Map<String, String> table) { if(mTranslationTable == null) mTranslationTable = table; }
 
-  public boolean isDirty() { return mDirty; }
-  protected void clearDirty() { mDirty = false; }
+  public boolean isDirty() { return mDirty || !mDirtyColumns.isEmpty(); }
+  protected void clearDirty() { mDirty = false; mDirtyColumns.clear(); mOriginals.clear(); }
   protected void setDirty() { mDirty = true; }
 
-  public Currency getMonetary(String key, int currencyType) {
+  /**
+   * @return The columns changed since the record was loaded or last saved,
+   * or null if the whole record has to be treated as changed.
+   */
+  public Set<String> getDirtyColumns() {
+    if(mDirty) return null;
+    return Collections.unmodifiableSet(new HashSet<String>(mDirtyColumns));
+  }
+
+  /**
+   * Bring the record up to date with the row as it is now, keeping the
+   * columns it has changed.  Those are treated as changed from what the
+   * row has now, so saving them again is a deliberate overwrite.
+   *
+   * @param current - The row as it is now.
+   */
+  protected void rebase(Record current) {
+    for(Map.Entry<String, String> column : current.entrySet()) {
+      String key = column.getKey();
+      if(key.equals("lock_version") || (!mDirty && !mDirtyColumns.contains(key))) {
+        mBacking.put(key, column.getValue());
+      } else if(mDirtyColumns.contains(key)) {
+        mOriginals.put(key, column.getValue());
+      }
+    }
+  }
+
+  /**
+   * @return A copy of the record as it was when it was loaded or last saved.
+   */
+  public Record getOriginal() {
+    Record original = new Record();
+    original.putAll(mBacking);
+    original.putAll(mOriginals);
+    return original;
+  }
+
+  /**
+   * @param key - The column to look up.
+   *
+   * @return The already-parsed value of the column, if the backing record has one.
+   */
+  private Object getTyped(String key) {
+    if (mTranslationTable != null && mTranslationTable.containsKey(key)) {
+      key = mTranslationTable.get(key);
+    }
+    return mBacking.getTyped(key);
+  }
+
+  private void cacheTyped(String key, String text, Object value) {
+    if (mTranslationTable != null && mTranslationTable.containsKey(key)) {
+      key = mTranslationTable.get(key);
+    }
+    mBacking.cacheTyped(key, text, value);
+  }
+
+  private Double getDouble(String key) {
+    Object typed = getTyped(key);
+    if(typed instanceof Double) return (Double) typed;
+
     String result = get(key);
+    if(result == null) return null;
+    Double value = Double.parseDouble(result);
+    cacheTyped(key, result, value);
+    return value;
+  }
+
+  public Currency getMonetary(String key, int currencyType) {
     try {
-      double value = Double.parseDouble(result);
+      double value = getDouble(key);
       return Currency.getCurrency(currencyType, value);
     } catch (Exception e) {
       return Currency.NoValue();
@@ -66,10 +141,9 @@ public class HashBacked {
   }
 
   public Currency getMonetary(String key) {
-    String result = get(key);
-    if(result == null) return Currency.NoValue();
     try {
-      double value = Double.parseDouble(result);
+      Double value = getDouble(key);
+      if(value == null) return Currency.NoValue();
       return Currency.getCurrency(mDefaultCurrency, value);
     } catch (Exception e) {
       return Currency.NoValue();
@@ -106,12 +180,17 @@ public class HashBacked {
   }
 
   public Date getDate(String key) {
+    Object typed = getTyped(key);
+    if(typed instanceof Date) return new Date(((Date) typed).getTime());
+
     String s_value = get(key);
     if (s_value == null || s_value.length() == 0) {
       return null;
     } else {
       try {
-        return mDateFormat.parse(s_value);
+        Date value = mDateFormat.parse(s_value);
+        cacheTyped(key, s_value, new Date(value.getTime()));
+        return value;
       } catch (Exception e) {
         return null;
       }
@@ -124,11 +203,17 @@ public class HashBacked {
     return result;
   }
   public Integer getInteger(String key) {
+    Object typed = getTyped(key);
+    if(typed instanceof Integer) return (Integer) typed;
+
     String s_value = get(key);
     if (s_value == null || s_value.length() == 0)
       return null;
-    else
-      return Integer.parseInt(s_value);
+    else {
+      Integer value = Integer.parseInt(s_value);
+      cacheTyped(key, s_value, value);
+      return value;
+    }
   }
 
   public void setInteger(String key, Integer value) {
@@ -202,7 +287,9 @@ public class HashBacked {
     }
     String prev = mBacking.put(key, value);
     if( (prev == null && value != null) ||
-        (prev != null && !prev.equals(value))) setDirty();
+        (prev != null && !prev.equals(value))) {
+      if(mDirtyColumns.add(key)) mOriginals.put(key, prev);
+    }
   }
 
   public Record getBacking() { return mBacking; }
@@ -0,0 +1,271 @@
+package com.jbidwatcher.util;
+
+/*
+ * Copyright (c) 2000-2007, CyberFOX Software, Inc. All Rights Reserved.
+ *
+ * Developed by mrs (Morgan Schweers)
+ */
+
+import com.jbidwatcher.util.config.JConfig;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Locks by name, each name with a lock of its own, so holding one name
+ * never keeps anyone from another, however long it's held.  A name's lock
+ * only exists while some thread holds it or is waiting for it; the last
+ * one to let go of it removes it, so there's no lock left behind for
+ * every name ever locked.
+ *
+ * A lock is re-entrant by name, and unlocking a name the thread doesn't
+ * hold does nothing, so a caller can always release in a finally block.
+ *
+ * It counts how often a lock had to be waited for, and for how long, and
+ * how long names are held.  A name held for longer than the warning time
+ * is logged when it's released, and anything waiting on it longer than
+ * that says what it's waiting for, so a slow holder shows up while it's
+ * still holding.
+ */
+public class NamedLocks {
+  /**
+   * A name's lock, and how many threads are holding or waiting for it.
+   */
+  private static final class Named {
+    private final ReentrantLock mLock = new ReentrantLock(true);
+    //  Guarded by mLocks.
+    private int mUsers = 0;
+    //  Who's holding it, and since when (0 if nobody); written only by the holder.
+    private volatile String mHolder = null;
+    private volatile long mHeldSince = 0;
+  }
+
+  /**
+   * A name this thread holds.
+   */
+  private static final class Hold {
+    private final Named mNamed;
+    private final long mSince;
+    private int mCount = 1;
+
+    private Hold(Named named, long since) {
+      mNamed = named;
+      mSince = since;
+    }
+  }
+
+  private final long mWarnAfter;
+  private final Map<String, Named> mLocks = new HashMap<String, Named>();
+
+  private final ThreadLocal<Map<String, Hold>> mHeld = new ThreadLocal<Map<String, Hold>>() {
+    protected Map<String, Hold> initialValue() { return new HashMap<String, Hold>(); }
+  };
+
+  private final LongAdder mAcquired = new LongAdder();
+  private final LongAdder mContended = new LongAdder();
+  private final LongAdder mTimedOut = new LongAdder();
+  private final LongAdder mWaitNanos = new LongAdder();
+  private final LongAdder mHolds = new LongAdder();
+  private final LongAdder mHoldMillis = new LongAdder();
+  private final LongAdder mLongHolds = new LongAdder();
+  private final AtomicLong mLongestHold = new AtomicLong();
+  private volatile String mLongestHolder = null;
+
+  /**
+   * @param warnAfter - How long, in milliseconds, a hold or a wait can go on before it's logged.
+   */
+  public NamedLocks(long warnAfter) {
+    mWarnAfter = Math.max(1, warnAfter);
+  }
+
+  /**
+   * Lock a name, waiting as long as it takes.
+   *
+   * @param name - What to lock.
+   */
+  public void lock(String name) {
+    acquire(name, -1);
+  }
+
+  /**
+   * Lock a name, if it can be done in time.
+   *
+   * @param name - What to lock.
+   * @param timeout - How long to wait, in milliseconds.
+   *
+   * @return true if it's locked; false if it timed out, or the thread was interrupted.
+   */
+  public boolean tryLock(String name, long timeout) {
+    return acquire(name, timeout);
+  }
+
+  private boolean acquire(String name, long timeout) {
+    Map<String, Hold> held = mHeld.get();
+    Hold hold = held.get(name);
+    if(hold != null) {
+      hold.mCount++;
+      mAcquired.increment();
+      return true;
+    }
+
+    Named named = use(name);
+    if(!named.mLock.tryLock()) {
+      mContended.increment();
+      long start = System.nanoTime();
+      try {
+        if(!waitFor(name, named, timeout)) {
+          mTimedOut.increment();
+          done(name, named);
+          return false;
+        }
+      } finally {
+        mWaitNanos.add(System.nanoTime() - start);
+      }
+    }
+
+    long now = System.currentTimeMillis();
+    named.mHolder = name + " (" + Thread.currentThread().getName() + ")";
+    named.mHeldSince = now;
+    held.put(name, new Hold(named, now));
+    mAcquired.increment();
+    return true;
+  }
+
+  private Named use(String name) {
+    synchronized(mLocks) {
+      Named named = mLocks.get(name);
+      if(named == null) {
+        named = new Named();
+        mLocks.put(name, named);
+      }
+      named.mUsers++;
+      return named;
+    }
+  }
+
+  private void done(String name, Named named) {
+    synchronized(mLocks) {
+      if(--named.mUsers == 0) mLocks.remove(name);
+    }
+  }
+
+  private boolean waitFor(String name, Named named, long timeout) {
+    long deadline = timeout < 0 ? Long.MAX_VALUE : System.currentTimeMillis() + timeout;
+    long waited = 0;
+    try {
+      while(true) {
+        long step = Math.min(mWarnAfter, deadline - System.currentTimeMillis());
+        if(step <= 0) return false;
+        if(named.mLock.tryLock(step, TimeUnit.MILLISECONDS)) return true;
+        waited += step;
+        if(step == mWarnAfter) {
+          String holder = named.mHolder;
+          long since = named.mHeldSince;
+          JConfig.log().logMessage("Waited " + (waited / 1000) + "s to lock " + name + "; " +
+              (holder == null || since == 0 ? "it's busy" : holder + " has been held for " + ((System.currentTimeMillis() - since) / 1000) + "s") + ".");
+        }
+      }
+    } catch(InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Unlock a name; if this thread doesn't hold it, nothing happens.
+   *
+   * @param name - What to unlock.
+   *
+   * @return true if it was held.
+   */
+  public boolean unlock(String name) {
+    Map<String, Hold> held = mHeld.get();
+    Hold hold = held.get(name);
+    if(hold == null) return false;
+    if(--hold.mCount != 0) return true;
+
+    held.remove(name);
+    Named named = hold.mNamed;
+    named.mHolder = null;
+    named.mHeldSince = 0;
+    named.mLock.unlock();
+    done(name, named);
+    recordHold(name, System.currentTimeMillis() - hold.mSince);
+    return true;
+  }
+
+  private void recordHold(String name, long took) {
+    mHolds.increment();
+    mHoldMillis.add(took);
+    long longest = mLongestHold.get();
+    while(took > longest) {
+      if(mLongestHold.compareAndSet(longest, took)) {
+        mLongestHolder = name;
+        break;
+      }
+      longest = mLongestHold.get();
+    }
+    if(took >= mWarnAfter) {
+      mLongHolds.increment();
+      JConfig.log().logMessage(name + " was held for " + (took / 1000.0) + "s by " + Thread.currentThread().getName() + ".");
+    }
+  }
+
+  /**
+   * @param name - A name.
+   *
+   * @return true if this thread holds it.
+   */
+  public boolean isHeldByCurrentThread(String name) {
+    return mHeld.get().containsKey(name);
+  }
+
+  /**
+   * @return How many names are held, or waited for, right now; that's how many locks there are.
+   */
+  public int size() {
+    synchronized(mLocks) {
+      return mLocks.size();
+    }
+  }
+
+  public long getAcquired() { return mAcquired.sum(); }
+  public long getContended() { return mContended.sum(); }
+  public long getTimedOut() { return mTimedOut.sum(); }
+  public long getLongHolds() { return mLongHolds.sum(); }
+
+  public String toString() {
+    long acquired = getAcquired();
+    long contended = getContended();
+    StringBuilder sb = new StringBuilder();
+    sb.append(size()).append(" locked now, ").append(acquired).append(" locks taken, ")
+        .append(contended).append(" waited for");
+    if(contended != 0) sb.append(" (").append(mWaitNanos.sum() / contended / 1000000).append("ms on average)");
+    sb.append(", ").append(getTimedOut()).append(" timed out");
+    long holds = mHolds.sum();
+    if(holds != 0) sb.append(", held ").append(mHoldMillis.sum() / holds).append("ms on average");
+    sb.append(", ").append(getLongHolds()).append(" held over ").append(mWarnAfter / 1000).append('s');
+    if(mLongestHolder != null) sb.append(", longest ").append(mLongestHold.get()).append("ms (").append(mLongestHolder).append(')');
+
+    //  Whatever's holding on now, the longest first.
+    long now = System.currentTimeMillis();
+    String current = null;
+    long currentFor = 0;
+    synchronized(mLocks) {
+      for(Named named : mLocks.values()) {
+        long since = named.mHeldSince;
+        String holder = named.mHolder;
+        if(since != 0 && holder != null && now - since > currentFor) {
+          currentFor = now - since;
+          current = holder;
+        }
+      }
+    }
+    if(current != null) sb.append("; ").append(current).append(" has been held for ").append(currentFor).append("ms");
+    return sb.toString();
+  }
+}
@@ -1,6 +1,7 @@
 package com.jbidwatcher.util;
 
 import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Created by IntelliJ IDEA.
@@ -10,6 +11,69 @@ import java.util.HashMap;
 * To change this template use File | Settings | File Templates.
 */
 public class Record extends HashMap<String, String> {
+  //  Parsed forms of some of the values, each dropped as soon as the text it came from changes.
+  private transient Map<String, Object> mTyped = null;
+
+  /**
+   * Store a value along with its already-parsed form.
+   *
+   * @param key - The column name.
+   * @param text - The value as a string, as it would normally be stored.
+   * @param value - The same value as an Integer, Double, Date, etc.
+   */
+  public void putTyped(String key, String text, Object value) {
+    super.put(key, text);
+    if(mTyped == null) mTyped = new HashMap<String, Object>();
+    mTyped.put(key, value);
+  }
+
+  /**
+   * Remember the parsed form of a value, if it's still the current one.
+   *
+   * @param key - The column name.
+   * @param text - The string which was parsed.
+   * @param value - What it parsed to.
+   */
+  public void cacheTyped(String key, String text, Object value) {
+    if(text != null && value != null && text.equals(get(key))) {
+      if(mTyped == null) mTyped = new HashMap<String, Object>();
+      mTyped.put(key, value);
+    }
+  }
+
+  /**
+   * @param key - The column name.
+   *
+   * @return The parsed form of the value, if it's known, or null.
+   */
+  public Object getTyped(String key) {
+    return mTyped == null ? null : mTyped.get(key);
+  }
+
+  public String put(String key, String value) {
+    if(mTyped != null) mTyped.remove(key);
+    return super.put(key, value);
+  }
+
+  public void putAll(Map<? extends String, ? extends String> m) {
+    if(mTyped != null) mTyped.keySet().removeAll(m.keySet());
+    super.putAll(m);
+    if(m instanceof Record && ((Record) m).mTyped != null) {
+      if(mTyped == null) mTyped = new HashMap<String, Object>();
+      mTyped.putAll(((Record) m).mTyped);
+    }
+  }
+
+  public String remove(Object key) {
+    if(mTyped != null) mTyped.remove(key);
+    return super.remove(key);
+  }
+
+  public void clear() {
+    mTyped = null;
+    super.clear();
+  }
+
   public String dump() {
     StringBuffer sb = dumpRecord(0);
     sb.append("\n");
@@ -2,6 +2,7 @@ package com.jbidwatcher.util.db;
 
 import com.jbidwatcher.util.HashBacked;
 import com.jbidwatcher.util.Record;
+import com.jbidwatcher.util.config.JConfig;
 
 import java.util.*;
 
@@ -14,7 +15,6 @@ import java.util.*;
  */
 public abstract class ActiveRecord extends HashBacked {
   private static boolean sDBDisabled = false;
-  private static ArrayList<Table> sTables = new ArrayList<Table>();
 
   public static void disableDatabase() {
     sDBDisabled = true;
@@ -26,7 +26,6 @@ public abstract class ActiveRecord extends HashBacked {
     Table db;
     try {
       db = new Table(tableName);
-      sTables.add(db);
     } catch (Exception e) {
       throw new RuntimeException("Can't access the " + tableName + " database table", e);
     }
@@ -34,13 +33,8 @@ public abstract class ActiveRecord extends HashBacked {
   }
 
   public static void shutdown() {
-    Set<Database> s = new HashSet<Database>();
-    for(Table t : sTables) {
-      s.add(t.shutdown());
-    }
-    for(Database db : s) {
-      db.shutdown();
-    }
+    WriteBehind.flushAll();
+    ConnectionPool.getInstance().shutdown();
   }
 
   protected static Table getTable(Object o) {
@@ -50,6 +44,13 @@ public abstract class ActiveRecord extends HashBacked {
 
   protected abstract Table getDatabase();
 
+  /**
+   * @return A column the table has a unique constraint on, so a new record
+   * with the same value saves over the existing row rather than adding a
+   * second one; or null if there isn't one.
+   */
+  protected String getUniqueColumn() { return null; }
+
   /**
    * This returns the count of entries in the table for an ActiveRecord descendant.
    *
@@ -77,6 +78,15 @@ public abstract class ActiveRecord extends HashBacked {
     return String.valueOf(className.charAt(0)).toUpperCase() + className.substring(1);
   }
 
+  /**
+   * Write the record's changes.  If they can't be written, because the
+   * row was changed by someone else in the same columns, or the write
+   * failed, the record keeps its changes, but is brought up to date with
+   * the rest of the row, so saving it again writes them over the other
+   * change.
+   *
+   * @return The record's id, or null if its changes couldn't be saved.
+   */
   public String saveDB() {
     if(sDBDisabled) return "0";
 
@@ -84,14 +94,55 @@ public abstract class ActiveRecord extends HashBacked {
     if(db.hasColumn("currency")) {
       setString("currency", getDefaultCurrency().fullCurrencyName());
     }
-    if(!isDirty() && get("id") != null && get("id").length() != 0) return get("id");
-    String id = getDatabase().insertOrUpdate(getBacking());
-    commit();
-    if(id != null && id.length() != 0) set("id", id); else id = get("id");
+    boolean existing = get("id") != null && get("id").length() != 0;
+    if(!isDirty() && existing) return get("id");
+    Set<String> dirty = getDirtyColumns();
+    if(existing && WriteBehind.isEnabled()) {
+      String version = WriteBehind.getInstance().save(db, getBacking(), dirty, getOriginal());
+      if(version != null) getBacking().put("lock_version", version);
+      clearDirty();
+      return get("id");
+    }
+    String id;
+    if(existing) {
+      //  Only the changed columns, and no need to read the row first.
+      id = db.update(getBacking(), dirty, getOriginal());
+    } else {
+      String unique = getUniqueColumn();
+      if(unique != null && get(unique) != null) {
+        id = db.upsert(getBacking(), unique);
+      } else {
+        id = db.insertOrUpdate(getBacking());
+        //  A new row starts at version 0.
+        if(id != null && db.isVersioned()) getBacking().put("lock_version", "0");
+      }
+      commit();
+    }
+    if(id == null) {
+      JConfig.log().logMessage("Couldn't save " + db.getTableName() + " row " + (existing ? get("id") : "(new)") + "; keeping its changes.");
+      if(existing) {
+        Record current = db.findByColumn("id", get("id"));
+        if(current != null) rebase(current);
+      }
+      return null;
+    }
+    if(id.length() != 0) set("id", id); else id = get("id");
     clearDirty();
     return id;
   }
 
+  /**
+   * Save, and don't return until this (and anything else saved before it)
+   * is committed, even if writes are otherwise being batched.
+   *
+   * @return The id of the saved record.
+   */
+  public String saveDBNow() {
+    String id = saveDB();
+    WriteBehind.flushAll();
+    return id;
+  }
+
   public static List<? extends ActiveRecord> findAllBy(Class klass, String key, String value) {
     return findAllBy(klass, key, value, null);
   }
@@ -113,7 +164,9 @@ public abstract class ActiveRecord extends HashBacked {
   protected static List<? extends ActiveRecord> findAllBy(Class klass, String key, String value, String order) {
     if(sDBDisabled) return new LinkedList<ActiveRecord>();
     ActiveRecord found = getExemplar(klass);
-    List<Record> results = getTable(found).findAll(key, value, order);
+    Table t = getTable(found);
+    String query = "SELECT * FROM " + t.getTableName() + " WHERE " + key + " = ?" + (order == null ? "" : " ORDER BY " + order);
+    List<Record> results = t.findAllCached(query, 0, value);
     return convertResultsToList(klass, results);
   }
 
@@ -128,13 +181,112 @@ public abstract class ActiveRecord extends HashBacked {
     return findAllBySQL(klass, query, 0);
   }
 
-  public static List<? extends ActiveRecord> findAllBySQL(Class klass, String query, int count) {
+  public static List<? extends ActiveRecord> findAllBySQL(Class klass, String query, int count, String... parameters) {
     if(sDBDisabled) return new LinkedList<ActiveRecord>();
     ActiveRecord found = getExemplar(klass);
-    List<Record> results = getTable(found).findAll(query, count);
+    List<Record> results = getTable(found).findAllPrepared(query, count, parameters);
     return convertResultsToList(klass, results);
   }
 
+  /**
+   * Called with each record of a query which is read a piece at a time, rather than all at once.
+   *
+   * @param <T> - The kind of record being read.
+   */
+  public interface Visitor<T extends ActiveRecord> {
+    /**
+     * @param record - The next record.
+     *
+     * @return true to go on to the next record, false to stop here.
+     */
+    boolean visit(T record);
+  }
+
+  /**
+   * Go through the records matching a condition in id order, only holding
+   * a page of them (Table.getFetchSize()) in memory at once.  The visitor
+   * can be slow, or use the database; nothing is held open while it runs.
+   *
+   * @param klass - The kind of record to read.
+   * @param where - The condition, with a '?' for each parameter, or null for every record.
+   * @param visitor - Called with each record in turn.
+   * @param parameters - The values for the condition's '?'s.
+   *
+   * @return How many records were visited.
+   */
+  public static <T extends ActiveRecord> int forEachBy(final Class<T> klass, String where, final Visitor<T> visitor, String... parameters) {
+    if(sDBDisabled) return 0;
+    return getExemplar(klass).getDatabase().forEach(where, 0, new Table.RowHandler() {
+      public boolean handle(Record row) {
+        return visitor.visit(convert(klass, row));
+      }
+    }, parameters);
+  }
+
+  /**
+   * Like forEachBy(), but for the records which have been moved to the
+   * table's archive.
+   *
+   * @param klass - The kind of record to read.
+   * @param where - The condition, with a '?' for each parameter, or null for every record.
+   * @param visitor - Called with each record in turn.
+   * @param parameters - The values for the condition's '?'s.
+   *
+   * @return How many records were visited; 0 if the table has no archive.
+   */
+  public static <T extends ActiveRecord> int forEachArchivedBy(final Class<T> klass, String where, final Visitor<T> visitor, String... parameters) {
+    if(sDBDisabled) return 0;
+    Table archive = getExemplar(klass).getDatabase().getArchive();
+    if(archive == null) return 0;
+    return archive.forEach(where, 0, new Table.RowHandler() {
+      public boolean handle(Record row) {
+        return visitor.visit(convert(klass, row));
+      }
+    }, parameters);
+  }
+
+  /**
+   * Find the records matching a condition, whether they're in the table or its archive.
+   *
+   * @param klass - The kind of record to read.
+   * @param where - The condition, with a '?' for each parameter.
+   * @param order - The columns to order by, or null for no particular order.
+   * @param parameters - The values for the condition's '?'s.
+   *
+   * @return The records found.
+   */
+  public static List<? extends ActiveRecord> findAllWithArchive(Class<? extends ActiveRecord> klass, String where, String order, String... parameters) {
+    if(sDBDisabled) return new LinkedList<ActiveRecord>();
+    List<Record> results = getExemplar(klass).getDatabase().findAllWithArchive(where, order, parameters);
+    return convertResultsToList(klass, results);
+  }
+
+  /**
+   * Run any query, handing over its records one at a time as they're read.
+   * A connection is held until it's done, so the visitor should be quick.
+   *
+   * @param klass - The kind of record to read.
+   * @param query - The query, with a '?' for each parameter.
+   * @param visitor - Called with each record in turn.
+   * @param parameters - The values for the query's '?'s.
+   *
+   * @return How many records were visited.
+   */
+  public static <T extends ActiveRecord> int forEachBySQL(final Class<T> klass, String query, final Visitor<T> visitor, String... parameters) {
+    if(sDBDisabled) return 0;
+    return getExemplar(klass).getDatabase().forEachPrepared(query, new Table.RowHandler() {
+      public boolean handle(Record row) {
+        return visitor.visit(convert(klass, row));
+      }
+    }, parameters);
+  }
+
+  private static <T extends ActiveRecord> T convert(Class<T> klass, Record record) {
+    T row = klass.cast(getExemplar(klass));
+    row.setBacking(record);
+    return row;
+  }
+
   private static List<ActiveRecord> convertResultsToList(Class klass, List<Record> results) {
     List<ActiveRecord> rval = new ArrayList<ActiveRecord>();
 
@@ -184,14 +336,14 @@ public abstract class ActiveRecord extends HashBacked {
   public boolean delete() {
     if(sDBDisabled) return false;
     String id = get("id");
-    return id != null && getDatabase().delete(Integer.parseInt(id));
+    return id != null && getDatabase().deleteRow(getOriginal());
   }
 
-  public static ActiveRecord findFirstBySQL(Class klass, String query) {
+  public static ActiveRecord findFirstBySQL(Class klass, String query, String... parameters) {
     if(sDBDisabled) return null;
     ActiveRecord found = getExemplar(klass);
     Table t = getTable(found);
-    Record result = t.findFirst(query);
+    Record result = t.findFirst(query, parameters);
     if (result != null && !result.isEmpty()) {
       found.setBacking(result);
     } else {
@@ -213,8 +365,20 @@ public abstract class ActiveRecord extends HashBacked {
     return found;
   }
 
+  /**
+   * Like findFirstByUncached(), but answered from the ResultCache if the table hasn't been written since it was last asked.
+   */
   public static ActiveRecord findFirstBy(Class klass, String key, String value) {
-    return findFirstByUncached(klass, key, value);
+    if(sDBDisabled) return null;
+    ActiveRecord found = getExemplar(klass);
+    Table t = getTable(found);
+    Record result = t.findFirstCached("SELECT * FROM " + t.getTableName() + " WHERE " + key + " = ?", value);
+    if (result != null && !result.isEmpty()) {
+      found.setBacking(result);
+    } else {
+      found = null;
+    }
+    return found;
   }
 
   public String getUnique() {
@@ -0,0 +1,183 @@
+package com.jbidwatcher.util.db;
+
+/*
+ * Copyright (c) 2000-2007, CyberFOX Software, Inc. All Rights Reserved.
+ *
+ * Developed by mrs (Morgan Schweers)
+ */
+
+import com.jbidwatcher.util.config.JConfig;
+import com.jbidwatcher.util.queue.LatencyHistogram;
+
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of database connections, shared by every Table.
+ *
+ * At most 'db.pool.size' (default 4) connections are ever open; a thread
+ * wanting one when they're all in use waits up to 'db.pool.timeout' ms
+ * (default 30000) for one to be released.  A thread which already holds a
+ * connection gets the same one back, so nested calls can't deadlock
+ * waiting on themselves.  Connections idle for more than
+ * 'db.pool.validate' ms (default 30000) are checked before being handed
+ * out, and replaced if they've gone bad.
+ *
+ * Every acquire() must be matched by a release(), in a finally block.
+ */
+public final class ConnectionPool {
+  private static final String DEFAULT_SIZE = "4";
+  private static final String DEFAULT_TIMEOUT = "30000";
+  private static final String DEFAULT_VALIDATE = "30000";
+  private static ConnectionPool sInstance = null;
+
+  private final int mMaxSize;
+  private final long mTimeout;
+  private final long mValidateAfter;
+  //  Most recently released first, so the same few connections stay warm.
+  private final Deque<Database> mIdle = new ArrayDeque<Database>();
+  private int mOpen = 0;
+  private final ThreadLocal<Database> mHeld = new ThreadLocal<Database>();
+
+  private final LatencyHistogram mAcquireWait = new LatencyHistogram();
+  private final AtomicLong mCreated = new AtomicLong();
+  private final AtomicLong mDiscarded = new AtomicLong();
+  private final AtomicLong mTimeouts = new AtomicLong();
+
+  private ConnectionPool() {
+    mMaxSize = Math.max(1, Integer.parseInt(JConfig.queryConfiguration("db.pool.size", DEFAULT_SIZE)));
+    mTimeout = Long.parseLong(JConfig.queryConfiguration("db.pool.timeout", DEFAULT_TIMEOUT));
+    mValidateAfter = Long.parseLong(JConfig.queryConfiguration("db.pool.validate", DEFAULT_VALIDATE));
+  }
+
+  public static synchronized ConnectionPool getInstance() {
+    if(sInstance == null) sInstance = new ConnectionPool();
+    return sInstance;
+  }
+
+  /**
+   * Check out a connection, waiting if they're all in use.
+   *
+   * @return A working connection, which must be passed to release() when done.
+   *
+   * @throws SQLException - If no connection became free in time, or a new one couldn't be opened.
+   */
+  public Database acquire() throws SQLException {
+    Database held = mHeld.get();
+    if(held != null) {
+      held.mLeases++;
+      return held;
+    }
+
+    long start = System.nanoTime();
+    Database db = null;
+    synchronized(this) {
+      long deadline = System.currentTimeMillis() + mTimeout;
+      while(mIdle.isEmpty() && mOpen >= mMaxSize) {
+        long left = deadline - System.currentTimeMillis();
+        if(left <= 0) {
+          mTimeouts.incrementAndGet();
+          throw new SQLException("Timed out after " + mTimeout + "ms waiting for one of " + mMaxSize + " database connections");
+        }
+        try {
+          wait(left);
+        } catch(InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new SQLException("Interrupted waiting for a database connection");
+        }
+      }
+      if(mIdle.isEmpty()) {
+        mOpen++;
+      } else {
+        db = mIdle.pop();
+      }
+    }
+
+    try {
+      if(db != null && !db.isHealthy(mValidateAfter)) {
+        JConfig.log().logDebug("Replacing a database connection which failed its health check");
+        mDiscarded.incrementAndGet();
+        db.close();
+        db = null;
+      }
+      if(db == null) db = open();
+    } catch(SQLException e) {
+      giveBackSlot();
+      throw e;
+    }
+
+    db.mLeases = 1;
+    mHeld.set(db);
+    mAcquireWait.record(System.nanoTime() - start);
+    return db;
+  }
+
+  /**
+   * Hand a connection back to the pool.
+   *
+   * @param db - A connection from acquire(); null is ignored, to make finally blocks simpler.
+   */
+  public void release(Database db) {
+    if(db == null || --db.mLeases > 0) return;
+
+    mHeld.remove();
+    db.mLastUsed = System.currentTimeMillis();
+    synchronized(this) {
+      mIdle.push(db);
+      notify();
+    }
+  }
+
+  private Database open() throws SQLException {
+    try {
+      Database db = new Database(null);
+      mCreated.incrementAndGet();
+      return db;
+    } catch(SQLException e) {
+      throw e;
+    } catch(Exception e) {
+      SQLException error = new SQLException("Can't open a database connection: " + e.getMessage());
+      error.initCause(e);
+      throw error;
+    }
+  }
+
+  private synchronized void giveBackSlot() {
+    mOpen--;
+    notify();
+  }
+
+  /**
+   * Close every idle connection, and then shut the database down.
+   * Anything still checked out will fail its health check next time.
+   */
+  public void shutdown() {
+    Database last = null;
+    synchronized(this) {
+      while(!mIdle.isEmpty()) {
+        Database db = mIdle.pop();
+        mOpen--;
+        if(last != null) last.close();
+        last = db;
+      }
+    }
+    if(last != null) last.shutdown();
+  }
+
+  /** @return How long callers waited in acquire(). */
+  public LatencyHistogram getAcquireWait() { return mAcquireWait; }
+
+  public long getCreated() { return mCreated.get(); }
+  public long getDiscarded() { return mDiscarded.get(); }
+  public long getTimeouts() { return mTimeouts.get(); }
+  public int getMaxSize() { return mMaxSize; }
+  public synchronized int getOpen() { return mOpen; }
+  public synchronized int getIdle() { return mIdle.size(); }
+
+  public String toString() {
+    return "database connections " + getOpen() + "/" + mMaxSize + " (" + getIdle() + " idle, " + getCreated() + " opened, " +
+        getDiscarded() + " replaced, " + getTimeouts() + " timeouts); acquire waited " + mAcquireWait;
+  }
+}
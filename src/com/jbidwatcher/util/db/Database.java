@@ -9,16 +9,37 @@ package com.jbidwatcher.util.db;
 import com.jbidwatcher.util.config.JConfig;
 
 import java.sql.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Database {
   private static boolean sFirst = true;
+  private static final AtomicLong sPrepared = new AtomicLong();
+  private static final AtomicLong sReused = new AtomicLong();
   private String framework;
   private String driver;
   private String protocol;
   private Connection mConn;
   private boolean mNew;
   private boolean mysql = false;
+  private final int mCacheSize = Math.max(1, Integer.parseInt(JConfig.queryConfiguration("db.statement.cache", "100")));
+  //  Statements kept for reuse on this connection, least recently used first; only used by whoever has it checked out of the pool.
+  private Map<String, PreparedStatement> mPrepared = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+    protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+      if(size() <= mCacheSize) return false;
+      try {
+        eldest.getValue().close();
+      } catch(SQLException ignored) {
+        //  It's being thrown away anyway.
+      }
+      return true;
+    }
+  };
+  //  Pool bookkeeping; how many times the holding thread has acquired it, and when it was last handed back.
+  int mLeases = 0;
+  long mLastUsed = System.currentTimeMillis();
 
   public boolean executeCanonicalizedSQL(Statement mS, String statement) throws SQLException {
     if(isMySQL()) {
@@ -32,6 +53,24 @@ public class Database {
 
   public boolean isMySQL() { return mysql; }
 
+  /**
+   * How much a connection locks while it reads, from 'db.isolation'.  The
+   * default, 'read_committed', only sees committed rows but doesn't hold
+   * read locks until the transaction ends, so the UI and the list loaders
+   * don't wait on (or block) the updater.  Lost updates are caught by the
+   * lock_version column on the tables that have one, rather than by
+   * serializing everything; 'serializable' brings the old behavior back.
+   *
+   * @return The JDBC isolation level to use.
+   */
+  private static int getIsolation() {
+    String level = JConfig.queryConfiguration("db.isolation", "read_committed");
+    if(level.equals("serializable")) return Connection.TRANSACTION_SERIALIZABLE;
+    if(level.equals("repeatable_read")) return Connection.TRANSACTION_REPEATABLE_READ;
+    if(level.equals("read_uncommitted")) return Connection.TRANSACTION_READ_UNCOMMITTED;
+    return Connection.TRANSACTION_READ_COMMITTED;
+  }
+
   public static void main(String[] args) {
     try {
       Database db = new Database("/Users/mrs/.jbidwatcher");
@@ -106,7 +145,7 @@ public class Database {
       JConfig.log().logDebug("Connected to " + (mNew?"and created ":"") + "database " + (isMySQL() ? JConfig.queryConfiguration("db.mysql.database", "jbidwatcher") : "jbdb") + " (JBidwatcher DataBase)");
     }
 
-    mConn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+    mConn.setTransactionIsolation(getIsolation());
     boolean autoCommit = JConfig.queryConfiguration("db.autocommit", "true").equals("true");
     mConn.setAutoCommit(autoCommit);
     sFirst = false;
@@ -134,8 +173,39 @@ public class Database {
     }
   }
 
+  /**
+   * Close just this connection, leaving the database running for any others.
+   */
+  public void close() {
+    mPrepared.clear();
+    try {
+      if(!mConn.isClosed()) mConn.close();
+    } catch(SQLException e) {
+      handleSQLException(e);
+    }
+  }
+
+  /**
+   * Check whether the connection still works.  Connections used recently
+   * are assumed to be fine, so the database is only asked about ones that
+   * have been sitting idle.
+   *
+   * @param idleMs - How long (in ms) a connection may be idle before it's checked.
+   *
+   * @return true if the connection can still be used.
+   */
+  boolean isHealthy(long idleMs) {
+    try {
+      if(mConn == null || mConn.isClosed()) return false;
+      return System.currentTimeMillis() - mLastUsed < idleMs || mConn.isValid(2);
+    } catch(SQLException e) {
+      return false;
+    }
+  }
+
   public void shutdown() {
     try {
+      mPrepared.clear();
       mConn.close();
       JConfig.log().logDebug("Closed connection");
 
@@ -186,11 +256,13 @@ public class Database {
   }
 
   public PreparedStatement prepare(String statement) throws SQLException {
+    sPrepared.incrementAndGet();
     try {
       return mConn.prepareStatement(statement, Statement.RETURN_GENERATED_KEYS);
     } catch(SQLException sqe) {
       if(mConn.isClosed() || sqe.getMessage().equals("No current connection.")) {
         try {
+          mPrepared.clear();
           setup();
           return mConn.prepareStatement(statement, Statement.RETURN_GENERATED_KEYS);
         } catch(Exception e) {
@@ -203,6 +275,33 @@ public class Database {
     }
   }
 
+  /**
+   * Prepare a statement which will be run many times, reusing the one
+   * already prepared on this connection if there is one.
+   *
+   * @param statement - The SQL to prepare.
+   *
+   * @return A prepared statement; don't close it, as it's kept for reuse.
+   *
+   * @throws SQLException - If the statement can't be prepared.
+   */
+  public PreparedStatement prepareCached(String statement) throws SQLException {
+    PreparedStatement ps = mPrepared.get(statement);
+    if(ps == null || ps.isClosed()) {
+      ps = prepare(statement);
+      mPrepared.put(statement, ps);
+    } else {
+      sReused.incrementAndGet();
+    }
+    return ps;
+  }
+
+  /** @return How many statements have been compiled, across all connections. */
+  public static long getPreparedCount() { return sPrepared.get(); }
+
+  /** @return How many times an already-prepared statement was reused instead. */
+  public static long getReusedCount() { return sReused.get(); }
+
   public Connection getConnection() {
     return mConn;
   }
@@ -30,14 +30,13 @@ public class Device extends ActiveRecord {
     return getRealDatabase();
   }
 
-  private static ThreadLocal<Table> tDB = new ThreadLocal<Table>() {
-    protected synchronized Table initialValue() {
-      return openDB(getTableName());
-    }
-  };
+  private static Table sDB = null;
 
   public static Table getRealDatabase() {
-    return tDB.get();
+    if (sDB == null) {
+      sDB = openDB(getTableName());
+    }
+    return sDB;
   }
 
   public static Device findByDevice(String deviceId) {
@@ -0,0 +1,223 @@
+package com.jbidwatcher.util.db;
+
+/*
+ * Copyright (c) 2000-2007, CyberFOX Software, Inc. All Rights Reserved.
+ *
+ * Developed by mrs (Morgan Schweers)
+ */
+
+import com.jbidwatcher.util.Constants;
+import com.jbidwatcher.util.config.JConfig;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Housekeeping for the embedded Derby database, which never does any of
+ * its own.
+ *
+ * For each table, the optimizer statistics are refreshed, so the plans
+ * for the joins keep up with how big the tables have become.  If more
+ * than 'db.maintenance.fragmentation' percent (default 25) of a table's
+ * pages are free, left behind by deletes, it's compressed in place; that
+ * works a page at a time, so the table stays usable while it runs.  The
+ * space each table takes is measured before and after, to report what
+ * was reclaimed.
+ *
+ * Each step asks a Gate first whether there's time for it, so a caller
+ * can keep it out of the way of anything time-critical.  A step's time
+ * is guessed at from how long it took last time.
+ *
+ * MySQL looks after itself, so none of this is done there.
+ */
+public final class Maintenance {
+  //  Tables smaller than this aren't worth compressing, whatever fraction of them is free.
+  private static final long MIN_PAGES = 64;
+  //  How long a step is assumed to take, the first time.
+  private static final long FIRST_GUESS = Constants.ONE_MINUTE;
+
+  //  How long each step took the last time, by 'table step'.
+  private static final Map<String, Long> sLastTook = new ConcurrentHashMap<String, Long>();
+
+  private Maintenance() { }
+
+  /**
+   * Decides whether maintenance can go ahead.
+   */
+  public interface Gate {
+    /**
+     * @param expected - How long the next step is expected to take.
+     *
+     * @return true if it can run now.
+     */
+    boolean mayRun(long expected);
+  }
+
+  /**
+   * What was done to one table.
+   */
+  public static final class Result {
+    private final String mTable;
+    private long mPagesBefore = 0;
+    private long mPagesAfter = 0;
+    private long mFreeBefore = 0;
+    private long mPageSize = 0;
+    private boolean mAnalyzed = false;
+    private boolean mCompressed = false;
+
+    private Result(String table) { mTable = table; }
+
+    public String getTable() { return mTable; }
+    public boolean isAnalyzed() { return mAnalyzed; }
+    public boolean isCompressed() { return mCompressed; }
+
+    /** @return How many bytes the table gave back to the file system. */
+    public long getReclaimed() {
+      return mCompressed ? Math.max(0, mPagesBefore - mPagesAfter) * mPageSize : 0;
+    }
+
+    public String toString() {
+      StringBuilder sb = new StringBuilder(mTable).append(": ").append(mPagesBefore).append(" pages, ").append(mFreeBefore).append(" free");
+      if(mAnalyzed) sb.append(", statistics refreshed");
+      if(mCompressed) sb.append(", compressed to ").append(mPagesAfter).append(" pages (").append(getReclaimed() / 1024).append("KB reclaimed)");
+      return sb.toString();
+    }
+  }
+
+  public static boolean isEnabled() {
+    return JConfig.queryConfiguration("db.maintenance", "true").equals("true");
+  }
+
+  private static double getFragmentationThreshold() {
+    return Double.parseDouble(JConfig.queryConfiguration("db.maintenance.fragmentation", "25")) / 100.0;
+  }
+
+  /**
+   * Refresh the statistics of every table, and compress the ones which are fragmented.
+   *
+   * @param gate - Asked before each step; if it says no, maintenance stops there.
+   *
+   * @return What was done to each table, or null if it was stopped before it finished.
+   */
+  public static List<Result> run(Gate gate) {
+    if(!isEnabled()) return new ArrayList<Result>(0);
+
+    ConnectionPool pool = ConnectionPool.getInstance();
+    List<Result> results = new ArrayList<Result>();
+    Database db = null;
+    try {
+      db = pool.acquire();
+      if(db.isMySQL()) return results;
+
+      Connection c = db.getConnection();
+      String schema = getSchema(c);
+      for(String table : getTables(c)) {
+        Result result = new Result(table);
+        measure(c, schema, result, true);
+
+        if(!gate.mayRun(expected(table, "statistics"))) return null;
+        long start = System.currentTimeMillis();
+        call(c, "CALL SYSCS_UTIL.SYSCS_UPDATE_STATISTICS(?, ?, NULL)", schema, table);
+        took(table, "statistics", start);
+        result.mAnalyzed = true;
+
+        if(result.mPagesBefore >= MIN_PAGES && result.mFreeBefore >= result.mPagesBefore * getFragmentationThreshold()) {
+          if(!gate.mayRun(expected(table, "compress"))) return null;
+          start = System.currentTimeMillis();
+          call(c, "CALL SYSCS_UTIL.SYSCS_INPLACE_COMPRESS_TABLE(?, ?, 1, 1, 1)", schema, table);
+          took(table, "compress", start);
+          result.mCompressed = true;
+          measure(c, schema, result, false);
+        }
+        results.add(result);
+      }
+    } catch(SQLException e) {
+      JConfig.log().handleException("Database maintenance failed.", e);
+      return null;
+    } finally {
+      pool.release(db);
+    }
+    return results;
+  }
+
+  private static long expected(String table, String step) {
+    Long last = sLastTook.get(table + ' ' + step);
+    //  Twice as long as last time, in case it's grown.
+    return last == null ? FIRST_GUESS : last * 2;
+  }
+
+  private static void took(String table, String step, long start) {
+    sLastTook.put(table + ' ' + step, System.currentTimeMillis() - start);
+  }
+
+  private static String getSchema(Connection c) throws SQLException {
+    Statement s = c.createStatement();
+    try {
+      ResultSet rs = s.executeQuery("VALUES CURRENT SCHEMA");
+      rs.next();
+      return rs.getString(1);
+    } finally {
+      s.close();
+    }
+  }
+
+  private static List<String> getTables(Connection c) throws SQLException {
+    List<String> tables = new ArrayList<String>();
+    PreparedStatement ps = c.prepareStatement("SELECT t.tablename FROM sys.systables t JOIN sys.sysschemas s ON s.schemaid = t.schemaid" +
+        " WHERE t.tabletype = 'T' AND s.schemaname = CURRENT SCHEMA ORDER BY t.tablename");
+    try {
+      ResultSet rs = ps.executeQuery();
+      while(rs.next()) tables.add(rs.getString(1));
+      rs.close();
+    } finally {
+      ps.close();
+    }
+    return tables;
+  }
+
+  /**
+   * How many pages the table and its indexes take, and how many of those are free.
+   */
+  private static void measure(Connection c, String schema, Result result, boolean before) throws SQLException {
+    PreparedStatement ps = c.prepareStatement("SELECT SUM(numallocatedpages), SUM(numfreepages), MAX(pagesize) FROM TABLE(SYSCS_DIAG.SPACE_TABLE(?, ?)) s");
+    try {
+      ps.setString(1, schema);
+      ps.setString(2, result.mTable);
+      ResultSet rs = ps.executeQuery();
+      if(rs.next()) {
+        //  The allocated pages are the ones in use; the free ones are on top of that.
+        long pages = rs.getLong(1) + rs.getLong(2);
+        if(before) {
+          result.mPagesBefore = pages;
+          result.mFreeBefore = rs.getLong(2);
+          result.mPageSize = rs.getLong(3);
+        } else {
+          result.mPagesAfter = pages;
+        }
+      }
+      rs.close();
+    } finally {
+      ps.close();
+    }
+  }
+
+  private static void call(Connection c, String sql, String schema, String table) throws SQLException {
+    CallableStatement cs = c.prepareCall(sql);
+    try {
+      cs.setString(1, schema);
+      cs.setString(2, table);
+      cs.execute();
+      if(!c.getAutoCommit()) c.commit();
+    } finally {
+      cs.close();
+    }
+  }
+}
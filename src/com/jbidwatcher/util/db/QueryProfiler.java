@@ -0,0 +1,274 @@
+package com.jbidwatcher.util.db;
+
+/*
+ * Copyright (c) 2000-2007, CyberFOX Software, Inc. All Rights Reserved.
+ *
+ * Developed by mrs (Morgan Schweers)
+ */
+
+import com.jbidwatcher.util.config.JConfig;
+import com.jbidwatcher.util.queue.LatencyHistogram;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps track of where the database time goes, by statement.
+ *
+ * Every statement Table runs is recorded under its shape: the SQL with
+ * literals replaced by '?', whitespace collapsed, and IN lists of any
+ * length folded into one, so the same query always lands in the same
+ * place.  Each shape counts its calls and the rows they returned or
+ * changed, and keeps a latency histogram.
+ *
+ * A statement taking longer than 'db.profile.slow' ms (default 250) is
+ * logged.  On Derby, the next run of that shape is made with runtime
+ * statistics on, and the plan Derby used is logged and kept with the
+ * shape, to show which indexes it did (or didn't) use.  Setting
+ * 'db.profile' to 'false' turns all of it off.
+ */
+public final class QueryProfiler {
+  private static final QueryProfiler sInstance = new QueryProfiler();
+  //  Past this many distinct statements, something is splicing values into SQL; stop remembering them.
+  private static final int MAX_NORMALIZED = 2000;
+
+  private static final Pattern STRINGS = Pattern.compile("'(?:[^']|'')*'");
+  private static final Pattern NUMBERS = Pattern.compile("(?<![\\w.])-?\\d+(?:\\.\\d+)?(?![\\w.])");
+  private static final Pattern IN_LIST = Pattern.compile("(?i)\\bIN\\s*\\(\\s*\\?(?:\\s*,\\s*\\?)*\\s*\\)");
+  private static final Pattern SPACES = Pattern.compile("\\s+");
+
+  /**
+   * What's known about one shape of statement.
+   */
+  public static final class Shape {
+    private final String mSql;
+    private final LongAdder mRows = new LongAdder();
+    private final LongAdder mSlow = new LongAdder();
+    private final LatencyHistogram mLatency = new LatencyHistogram();
+    private final AtomicBoolean mExplain = new AtomicBoolean(false);
+    private volatile String mPlan = null;
+
+    private Shape(String sql) { mSql = sql; }
+
+    public String getSQL() { return mSql; }
+    public long getCalls() { return mLatency.getCount(); }
+    public long getRows() { return mRows.sum(); }
+    public long getSlow() { return mSlow.sum(); }
+    public LatencyHistogram getLatency() { return mLatency; }
+
+    /** @return The plan Derby used the last time this was slow, or null if it hasn't been captured. */
+    public String getPlan() { return mPlan; }
+  }
+
+  private final ConcurrentMap<String, String> mNormalized = new ConcurrentHashMap<String, String>();
+  private final ConcurrentMap<String, Shape> mShapes = new ConcurrentHashMap<String, Shape>();
+  //  The connections with runtime statistics turned on, and the statement each is capturing the plan of.
+  private final ConcurrentMap<Database, Capture> mExplaining = new ConcurrentHashMap<Database, Capture>();
+
+  /**
+   * A plan being captured.  Derby only keeps the statistics of the last
+   * statement run on a connection, so if anything else runs on it before
+   * the statement finishes (a streaming query's handler, say), what's
+   * there afterwards isn't its plan.
+   */
+  private static final class Capture {
+    private final String mSql;
+    private volatile boolean mSpoiled = false;
+
+    private Capture(String sql) { mSql = sql; }
+  }
+
+  private QueryProfiler() { }
+
+  public static QueryProfiler getInstance() { return sInstance; }
+
+  public boolean isEnabled() {
+    return JConfig.queryConfiguration("db.profile", "true").equals("true");
+  }
+
+  /**
+   * @param sql - A statement, as it was run.
+   *
+   * @return The statement's shape; its text with the values taken out.
+   */
+  public static String normalize(String sql) {
+    String shape = STRINGS.matcher(sql).replaceAll("?");
+    shape = NUMBERS.matcher(shape).replaceAll("?");
+    shape = IN_LIST.matcher(shape).replaceAll("IN (...)");
+    return SPACES.matcher(shape).replaceAll(" ").trim();
+  }
+
+  private Shape getShape(String sql) {
+    String normal = mNormalized.get(sql);
+    if(normal == null) {
+      normal = normalize(sql);
+      if(mNormalized.size() < MAX_NORMALIZED) mNormalized.put(sql, normal);
+    }
+
+    Shape shape = mShapes.get(normal);
+    if(shape == null) {
+      Shape created = new Shape(normal);
+      shape = mShapes.putIfAbsent(normal, created);
+      if(shape == null) shape = created;
+    }
+    return shape;
+  }
+
+  /**
+   * Call just before running a statement.
+   *
+   * @param db - The connection it's going to run on.
+   * @param sql - The statement.
+   *
+   * @return The start time, to hand to end(); 0 if profiling is off.
+   */
+  long begin(Database db, String sql) {
+    if(!isEnabled()) return 0;
+
+    Shape shape = getShape(sql);
+    Capture capturing = mExplaining.get(db);
+    if(capturing != null) {
+      if(!capturing.mSql.equals(sql)) capturing.mSpoiled = true;
+    } else if(!db.isMySQL() && shape.mExplain.compareAndSet(true, false)) {
+      mExplaining.put(db, new Capture(sql));
+      setRuntimeStatistics(db, true);
+    }
+    return System.nanoTime();
+  }
+
+  /**
+   * Call once a statement is finished, including reading its results,
+   * whether or not it succeeded; a finally block is the place for it.
+   *
+   * @param db - The connection it ran on.
+   * @param sql - The statement.
+   * @param start - What begin() returned; to leave time spent elsewhere out, move it forward by that much.
+   * @param rows - How many rows it returned or changed, or -1 if it failed.
+   */
+  void end(Database db, String sql, long start, int rows) {
+    if(start == 0) return;
+    long elapsed = System.nanoTime() - start;
+
+    Shape shape = getShape(sql);
+    shape.mLatency.record(elapsed);
+    if(rows > 0) shape.mRows.add(rows);
+
+    Capture capturing = mExplaining.get(db);
+    if(capturing != null && capturing.mSql.equals(sql)) {
+      mExplaining.remove(db);
+      if(rows >= 0 && !capturing.mSpoiled) {
+        shape.mPlan = getRuntimeStatistics(db);
+        JConfig.log().logMessage("Plan for slow query (" + elapsed / 1000000 + "ms this time): " + shape.mSql + "\n" + shape.mPlan);
+      }
+      setRuntimeStatistics(db, false);
+    } else if(rows >= 0 && elapsed / 1000000 >= getSlowThreshold()) {
+      shape.mSlow.increment();
+      JConfig.log().logMessage("Slow query (" + elapsed / 1000000 + "ms, " + rows + " rows): " + sql);
+      //  Capture the plan the next time around, unless it's already been done.
+      if(shape.mPlan == null) shape.mExplain.set(true);
+    }
+  }
+
+  private static long getSlowThreshold() {
+    return Long.parseLong(JConfig.queryConfiguration("db.profile.slow", "250"));
+  }
+
+  private static void setRuntimeStatistics(Database db, boolean on) {
+    try {
+      Statement s = db.getConnection().createStatement();
+      try {
+        s.execute("CALL SYSCS_UTIL.SYSCS_SET_RUNTIMESTATISTICS(" + (on ? 1 : 0) + ")");
+      } finally {
+        s.close();
+      }
+    } catch(SQLException e) {
+      JConfig.log().handleDebugException("Couldn't turn " + (on ? "on" : "off") + " runtime statistics.", e);
+    }
+  }
+
+  private static String getRuntimeStatistics(Database db) {
+    try {
+      Statement s = db.getConnection().createStatement();
+      try {
+        ResultSet rs = s.executeQuery("VALUES SYSCS_UTIL.SYSCS_GET_RUNTIMESTATISTICS()");
+        return rs.next() ? rs.getString(1) : null;
+      } finally {
+        s.close();
+      }
+    } catch(SQLException e) {
+      JConfig.log().handleDebugException("Couldn't get the runtime statistics.", e);
+      return null;
+    }
+  }
+
+  /**
+   * @return Every shape seen, the ones which have taken the most time in total first.
+   */
+  public List<Shape> getShapes() {
+    List<Shape> shapes = new ArrayList<Shape>(mShapes.values());
+    Collections.sort(shapes, new Comparator<Shape>() {
+      public int compare(Shape a, Shape b) {
+        long aTotal = a.mLatency.getTotal();
+        long bTotal = b.mLatency.getTotal();
+        return aTotal < bTotal ? 1 : (aTotal == bTotal ? 0 : -1);
+      }
+    });
+    return shapes;
+  }
+
+  public void reset() {
+    mShapes.clear();
+    mNormalized.clear();
+  }
+
+  /**
+   * @param limit - How many shapes to include, at most; the ones taking the most time come first.
+   * @param plans - Whether to include any captured plans.
+   *
+   * @return A readable summary of where the database time has gone.
+   */
+  public String report(int limit, boolean plans) {
+    StringBuilder sb = new StringBuilder();
+    int shown = 0;
+    for(Shape shape : getShapes()) {
+      if(shown++ == limit) break;
+      sb.append(shape.getLatency().getTotal() / 1000).append("ms total, ").append(shape.getCalls()).append(" calls, ").append(shape.getRows()).append(" rows, ");
+      if(shape.getSlow() != 0) sb.append(shape.getSlow()).append(" slow, ");
+      sb.append("latency ").append(shape.getLatency()).append('\n');
+      sb.append("  ").append(shape.getSQL()).append('\n');
+      if(plans && shape.getPlan() != null) sb.append(shape.getPlan()).append('\n');
+    }
+    if(sb.length() == 0) sb.append("No queries recorded.\n");
+    return sb.toString();
+  }
+
+  /**
+   * Write the full report, plans included, to a file.
+   *
+   * @param out - Where to write it.
+   *
+   * @throws IOException - If the file can't be written.
+   */
+  public void dump(File out) throws IOException {
+    PrintWriter pw = new PrintWriter(new FileWriter(out));
+    try {
+      pw.print(report(Integer.MAX_VALUE, true));
+    } finally {
+      pw.close();
+    }
+  }
+}
@@ -0,0 +1,313 @@
+package com.jbidwatcher.util.db;
+
+/*
+ * Copyright (c) 2000-2007, CyberFOX Software, Inc. All Rights Reserved.
+ *
+ * Developed by mrs (Morgan Schweers)
+ */
+
+import com.jbidwatcher.util.Record;
+import com.jbidwatcher.util.config.JConfig;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Remembers the results of read-only finders, so asking the same thing
+ * twice doesn't go back to the database.
+ *
+ * Results are kept by statement and parameters.  Each table has a
+ * version, which every write through Table bumps once it's committed;
+ * a result remembers the versions of the tables its statement mentions,
+ * as they were before it was read, and is only handed out while they're
+ * all unchanged.  So a write to 'categories' throws away what was read
+ * from 'categories', and nothing else.  Anything which changes the
+ * database without Table knowing which table it wrote has to call
+ * invalidateAll().
+ *
+ * At most 'db.cache.size' results (default 500) are kept, the least
+ * recently used going first; setting it to 0 turns the cache off.  Hits
+ * and misses are counted by statement shape (see QueryProfiler).
+ *
+ * Every hit is a copy, so callers are free to change what they get.
+ */
+public final class ResultCache {
+  private static final ResultCache sInstance = new ResultCache();
+  //  Results bigger than this aren't worth the memory.
+  private static final int MAX_ROWS = 200;
+
+  private static final Pattern TARGET = Pattern.compile("^\\s*(?:UPDATE|DELETE\\s+FROM|INSERT\\s+INTO)\\s+(\\w+)", Pattern.CASE_INSENSITIVE);
+  private static final Pattern READ_ONLY = Pattern.compile("^\\s*(?:SELECT|VALUES)\\b", Pattern.CASE_INSENSITIVE);
+  private static final Pattern WORDS = Pattern.compile("\\w+");
+
+  /**
+   * How often one shape of statement was answered from the cache.
+   */
+  public static final class Ratio {
+    private final String mShape;
+    private final LongAdder mHits = new LongAdder();
+    private final LongAdder mMisses = new LongAdder();
+
+    private Ratio(String shape) { mShape = shape; }
+
+    public String getShape() { return mShape; }
+    public long getHits() { return mHits.sum(); }
+    public long getMisses() { return mMisses.sum(); }
+
+    public double getHitRatio() {
+      long hits = getHits();
+      long total = hits + getMisses();
+      return total == 0 ? 0.0 : (double) hits / total;
+    }
+  }
+
+  //  What the versions of the tables a statement reads were, when its results were read.
+  private static final class Stamp {
+    private final String[] mTables;
+    private final long[] mVersions;
+    private final long mEpoch;
+
+    private Stamp(String[] tables, long[] versions, long epoch) {
+      mTables = tables;
+      mVersions = versions;
+      mEpoch = epoch;
+    }
+  }
+
+  private static final class Cached {
+    private final Stamp mStamp;
+    private final List<Record> mRows;
+
+    private Cached(Stamp stamp, List<Record> rows) {
+      mStamp = stamp;
+      mRows = rows;
+    }
+  }
+
+  private final ConcurrentMap<String, AtomicLong> mVersions = new ConcurrentHashMap<String, AtomicLong>();
+  private final AtomicLong mEpoch = new AtomicLong();
+  private final ConcurrentMap<String, Ratio> mRatios = new ConcurrentHashMap<String, Ratio>();
+  //  Guarded by itself.
+  private final LinkedHashMap<String, Cached> mResults = new LinkedHashMap<String, Cached>(64, 0.75f, true) {
+    protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+      return size() > getCapacity();
+    }
+  };
+
+  private ResultCache() { }
+
+  public static ResultCache getInstance() { return sInstance; }
+
+  private static int getCapacity() {
+    return Integer.parseInt(JConfig.queryConfiguration("db.cache.size", "500"));
+  }
+
+  public boolean isEnabled() {
+    return getCapacity() > 0;
+  }
+
+  /**
+   * Know a table exists, so statements reading it are stamped with its version.
+   *
+   * @param tableName - The table.
+   */
+  void register(String tableName) {
+    version(tableName);
+  }
+
+  private AtomicLong version(String tableName) {
+    String key = tableName.toLowerCase();
+    AtomicLong version = mVersions.get(key);
+    if(version == null) {
+      AtomicLong created = new AtomicLong();
+      version = mVersions.putIfAbsent(key, created);
+      if(version == null) version = created;
+    }
+    return version;
+  }
+
+  /**
+   * A table has been written, and the write committed.
+   *
+   * @param tableName - The table written to.
+   */
+  public void bump(String tableName) {
+    version(tableName).incrementAndGet();
+  }
+
+  /**
+   * A statement has been run, and committed.  If it wrote to a table,
+   * that table's results are thrown away; if there's no telling what it
+   * did, all of them are.
+   *
+   * @param statement - The SQL which was run.
+   */
+  public void written(String statement) {
+    Matcher target = TARGET.matcher(statement);
+    if(target.find()) {
+      bump(target.group(1));
+    } else if(!READ_ONLY.matcher(statement).find()) {
+      invalidateAll();
+    }
+  }
+
+  /**
+   * The database has been changed behind Table's back; nothing cached can be trusted.
+   */
+  public void invalidateAll() {
+    mEpoch.incrementAndGet();
+  }
+
+  /**
+   * Note the versions of the tables a statement reads.  This has to be
+   * done before it's run, so a write landing while it runs makes the
+   * results stale, rather than being missed.
+   *
+   * @param statement - The SQL which is about to be run.
+   *
+   * @return The versions, to hand to put() along with the results.
+   */
+  Object stamp(String statement) {
+    List<String> tables = new ArrayList<String>();
+    Matcher words = WORDS.matcher(statement);
+    while(words.find()) {
+      String word = words.group().toLowerCase();
+      if(mVersions.containsKey(word) && !tables.contains(word)) tables.add(word);
+    }
+    long epoch = mEpoch.get();
+    long[] versions = new long[tables.size()];
+    for(int i = 0; i < versions.length; i++) {
+      versions[i] = mVersions.get(tables.get(i)).get();
+    }
+    return new Stamp(tables.toArray(new String[tables.size()]), versions, epoch);
+  }
+
+  private boolean isCurrent(Stamp stamp) {
+    if(stamp.mEpoch != mEpoch.get()) return false;
+    for(int i = 0; i < stamp.mTables.length; i++) {
+      if(mVersions.get(stamp.mTables[i]).get() != stamp.mVersions[i]) return false;
+    }
+    return true;
+  }
+
+  private static String key(String statement, int count, String... parameters) {
+    StringBuilder sb = new StringBuilder(statement).append('\u0000').append(count);
+    for(String parameter : parameters) {
+      sb.append('\u0000').append(parameter == null ? "\u0001" : parameter);
+    }
+    return sb.toString();
+  }
+
+  private Ratio getRatio(String statement) {
+    String shape = QueryProfiler.normalize(statement);
+    Ratio ratio = mRatios.get(shape);
+    if(ratio == null) {
+      Ratio created = new Ratio(shape);
+      ratio = mRatios.putIfAbsent(shape, created);
+      if(ratio == null) ratio = created;
+    }
+    return ratio;
+  }
+
+  /**
+   * @param statement - The query.
+   * @param count - The most rows it was asked for, or 0 for all of them.
+   * @param parameters - The values for its '?'s.
+   *
+   * @return A copy of the rows it returned last time, or null if they aren't known or might have changed.
+   */
+  List<Record> get(String statement, int count, String... parameters) {
+    String key = key(statement, count, parameters);
+    Cached cached;
+    synchronized(mResults) {
+      cached = mResults.get(key);
+      if(cached != null && !isCurrent(cached.mStamp)) {
+        mResults.remove(key);
+        cached = null;
+      }
+    }
+
+    Ratio ratio = getRatio(statement);
+    if(cached == null) {
+      ratio.mMisses.increment();
+      return null;
+    }
+    ratio.mHits.increment();
+    return copy(cached.mRows);
+  }
+
+  /**
+   * Remember what a query returned.
+   *
+   * @param statement - The query.
+   * @param count - The most rows it was asked for, or 0 for all of them.
+   * @param stamp - What stamp() returned just before it was run.
+   * @param rows - What it returned.
+   * @param parameters - The values for its '?'s.
+   */
+  void put(String statement, int count, Object stamp, List<Record> rows, String... parameters) {
+    if(rows == null || rows.size() > MAX_ROWS || !isCurrent((Stamp) stamp)) return;
+    Cached cached = new Cached((Stamp) stamp, copy(rows));
+    synchronized(mResults) {
+      mResults.put(key(statement, count, parameters), cached);
+    }
+  }
+
+  private static List<Record> copy(List<Record> rows) {
+    List<Record> copy = new ArrayList<Record>(rows.size());
+    for(Record row : rows) {
+      Record r = new Record();
+      r.putAll(row);
+      copy.add(r);
+    }
+    return copy;
+  }
+
+  public void clear() {
+    synchronized(mResults) {
+      mResults.clear();
+    }
+    mRatios.clear();
+  }
+
+  /**
+   * @return The hits and misses of each statement shape, the most asked-for first.
+   */
+  public List<Ratio> getRatios() {
+    List<Ratio> ratios = new ArrayList<Ratio>(mRatios.values());
+    Collections.sort(ratios, new Comparator<Ratio>() {
+      public int compare(Ratio a, Ratio b) {
+        long aTotal = a.getHits() + a.getMisses();
+        long bTotal = b.getHits() + b.getMisses();
+        return aTotal < bTotal ? 1 : (aTotal == bTotal ? 0 : -1);
+      }
+    });
+    return ratios;
+  }
+
+  /**
+   * @param limit - How many shapes to include, at most.
+   *
+   * @return A readable summary of how well the cache is doing.
+   */
+  public String report(int limit) {
+    StringBuilder sb = new StringBuilder();
+    int size;
+    synchronized(mResults) {
+      size = mResults.size();
+    }
+    sb.append(size).append(" results cached\n");
+    int shown = 0;
+    for(Ratio ratio : getRatios()) {
+      if(shown++ == limit) break;
+      sb.append(ratio.getHits()).append(" hits, ").append(ratio.getMisses()).append(" misses (")
+          .append(Math.round(ratio.getHitRatio() * 100)).append("%)\n  ").append(ratio.getShape()).append('\n');
+    }
+    return sb.toString();
+  }
+}
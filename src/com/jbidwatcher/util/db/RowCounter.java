@@ -0,0 +1,381 @@
+package com.jbidwatcher.util.db;
+
+/*
+ * Copyright (c) 2000-2007, CyberFOX Software, Inc. All Rights Reserved.
+ *
+ * Developed by mrs (Morgan Schweers)
+ */
+
+import com.jbidwatcher.util.Record;
+import com.jbidwatcher.util.config.JConfig;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A count of the rows in a table matching some condition, kept up to
+ * date in memory as rows are saved and deleted, so asking for it doesn't
+ * scan the table.
+ *
+ * Each counter has the SQL to count its rows from scratch, and the same
+ * condition in Java, along with the columns it depends on.  The count is
+ * read from the database the first time it's asked for; after that,
+ * inserts, deletes and saves which change those columns add to or take
+ * away from it.  Anything the counter can't follow (a bulk UPDATE or
+ * DELETE, or a count of distinct values, which can't be adjusted one row
+ * at a time) marks it stale, and the next request counts again.  Even
+ * without that, it's re-counted every 'db.counters.reconcile' minutes
+ * (default 60), in case something went around Table.
+ *
+ * A change is only reported once it's committed, and a recount on another
+ * thread can read the table in between, in which case the count already
+ * has it.  So each commit is bracketed by a Commit from committing(), and
+ * each recount notes the sequence before and after it reads.  A change
+ * committed before the recount started is left out, one which started
+ * committing after the recount finished is counted, and one in between
+ * can't be told apart, so the counter is recounted again.
+ *
+ * A grouped counter keeps one count per value of a column, like entries
+ * per category.
+ */
+public final class RowCounter {
+  private static final String UNGROUPED = "";
+  private static final ConcurrentMap<String, List<RowCounter>> sByTable = new ConcurrentHashMap<String, List<RowCounter>>();
+  private static final ConcurrentMap<String, RowCounter> sTotals = new ConcurrentHashMap<String, RowCounter>();
+  //  Orders commits against recounts; see committing().
+  private static final AtomicLong sSequence = new AtomicLong();
+
+  private static final Pattern TARGET = Pattern.compile("^\\s*(?:UPDATE|DELETE\\s+FROM|INSERT\\s+INTO)\\s+(\\w+)", Pattern.CASE_INSENSITIVE);
+  private static final Pattern UPDATE = Pattern.compile("^\\s*UPDATE\\s", Pattern.CASE_INSENSITIVE);
+  private static final Pattern SET_COLUMN = Pattern.compile("(?:\\bSET|,)\\s*(\\w+)\\s*=", Pattern.CASE_INSENSITIVE);
+
+  /**
+   * Where a commit fell, among any recounts; see committing().
+   */
+  public static final class Commit {
+    private final long mStarted = sSequence.incrementAndGet();
+    private volatile long mFinished = 0;
+
+    private Commit() { }
+
+    /**
+     * Call as soon as the commit returns.
+     */
+    public void finished() {
+      mFinished = sSequence.incrementAndGet();
+    }
+
+    private long getFinished() {
+      //  If it wasn't marked, all that's known is that it's finished by now.
+      return mFinished != 0 ? mFinished : sSequence.incrementAndGet();
+    }
+  }
+
+  /**
+   * Which rows are counted; it has to agree with the counter's SQL.
+   */
+  public interface Condition {
+    boolean matches(Record row);
+  }
+
+  /**
+   * Which group a row is counted in, for a grouped counter; it has to agree with the counter's SQL.
+   */
+  public interface Grouping {
+    /**
+     * @param row - The row to place.
+     *
+     * @return The group the row counts toward, or null if it isn't counted.
+     */
+    String groupOf(Record row);
+  }
+
+  private final String mTableName;
+  private final String mName;
+  private final String mSQL;
+  private final boolean mGrouped;
+  //  Null if the count can't be adjusted a row at a time.
+  private final Grouping mGrouping;
+  //  Null if any change at all can affect the count.
+  private final Set<String> mColumns;
+
+  //  Guarded by this.
+  private Map<String, Integer> mCounts = new HashMap<String, Integer>();
+  private boolean mStale = true;
+  private long mCountedAt = 0;
+  private long mRecounts = 0;
+  //  Where the sequence was just before and just after the last recount read the table.
+  private long mReadFrom = 0;
+  private long mReadTo = 0;
+
+  private RowCounter(String tableName, String name, String sql, boolean grouped, Grouping grouping, String... columns) {
+    mTableName = tableName.toLowerCase();
+    mName = name;
+    mSQL = sql;
+    mGrouped = grouped;
+    mGrouping = grouping;
+    mColumns = columns.length == 0 ? null : new HashSet<String>(Arrays.asList(columns));
+
+    List<RowCounter> counters = sByTable.get(mTableName);
+    if(counters == null) {
+      counters = new CopyOnWriteArrayList<RowCounter>();
+      List<RowCounter> prev = sByTable.putIfAbsent(mTableName, counters);
+      if(prev != null) counters = prev;
+    }
+    counters.add(this);
+  }
+
+  /**
+   * Keep count of the rows matching a condition.
+   *
+   * @param tableName - The table to count.
+   * @param name - What the counter is called, for reporting.
+   * @param sql - SQL returning the count; 'SELECT COUNT(*) FROM ... WHERE ...'.
+   * @param condition - The same test in Java, or null if the count can't be kept up a row at a time.
+   * @param columns - The columns the condition depends on.  None means any change to a row can matter.
+   *
+   * @return The new counter.
+   */
+  public static RowCounter create(String tableName, String name, String sql, final Condition condition, String... columns) {
+    Grouping grouping = condition == null ? null : new Grouping() {
+      public String groupOf(Record row) {
+        return condition.matches(row) ? UNGROUPED : null;
+      }
+    };
+    return new RowCounter(tableName, name, sql, false, grouping, columns);
+  }
+
+  /**
+   * Keep count of the rows in each of several groups.
+   *
+   * @param tableName - The table to count.
+   * @param name - What the counter is called, for reporting.
+   * @param sql - SQL returning the group as 'grp' and its count as 'cnt', one row per group.
+   * @param grouping - The same grouping in Java.
+   * @param columns - The columns the grouping depends on.
+   *
+   * @return The new counter.
+   */
+  public static RowCounter createGrouped(String tableName, String name, String sql, Grouping grouping, String... columns) {
+    return new RowCounter(tableName, name, sql, true, grouping, columns);
+  }
+
+  /**
+   * @param tableName - The table to count.
+   *
+   * @return The counter of every row in the table.
+   */
+  public static RowCounter total(String tableName) {
+    String key = tableName.toLowerCase();
+    RowCounter total = sTotals.get(key);
+    if(total == null) {
+      synchronized(sTotals) {
+        total = sTotals.get(key);
+        if(total == null) {
+          total = create(tableName, "total", "SELECT COUNT(*) FROM " + tableName, new Condition() {
+            public boolean matches(Record row) { return true; }
+          }, "id");
+          sTotals.put(key, total);
+        }
+      }
+    }
+    return total;
+  }
+
+  /**
+   * @return The count.
+   */
+  public int get() {
+    return get(UNGROUPED);
+  }
+
+  /**
+   * @param group - Which group to get the count of.
+   *
+   * @return The count for that group.
+   */
+  public synchronized int get(String group) {
+    if(mStale || System.currentTimeMillis() - mCountedAt > getReconcileInterval()) recount();
+    Integer count = mCounts.get(group);
+    return count == null ? 0 : count;
+  }
+
+  private static long getReconcileInterval() {
+    return Long.parseLong(JConfig.queryConfiguration("db.counters.reconcile", "60")) * 60 * 1000;
+  }
+
+  private void recount() {
+    Map<String, Integer> counts = new HashMap<String, Integer>();
+    mReadFrom = sSequence.incrementAndGet();
+    Table t = ActiveRecord.openDB(mTableName);
+    if(t != null) {
+      if(mGrouped) {
+        List<Record> rows = t.findAll(mSQL, 0);
+        if(rows != null) {
+          for(Record row : rows) {
+            if(row.get("grp") != null) counts.put(row.get("grp"), Integer.parseInt(row.get("cnt")));
+          }
+        }
+      } else {
+        counts.put(UNGROUPED, t.countBySQL(mSQL));
+      }
+    }
+    mReadTo = sSequence.incrementAndGet();
+    mCounts = counts;
+    mStale = false;
+    mCountedAt = System.currentTimeMillis();
+    mRecounts++;
+  }
+
+  private synchronized void markStale() {
+    mStale = true;
+  }
+
+  private synchronized void adjust(String group, int delta, Commit commit, long finished) {
+    if(mStale || group == null) return;
+    //  The last recount read it after it was committed, so it's already counted.
+    if(finished < mReadFrom) return;
+    //  It was being committed while the recount read; it may or may not be counted.
+    if(commit.mStarted < mReadTo) {
+      mStale = true;
+      return;
+    }
+    Integer count = mCounts.get(group);
+    mCounts.put(group, (count == null ? 0 : count) + delta);
+  }
+
+  private boolean dependsOn(Collection<String> columns) {
+    if(mColumns == null || columns == null) return true;
+    for(String column : columns) {
+      if(mColumns.contains(column)) return true;
+    }
+    return false;
+  }
+
+  private static List<RowCounter> getCounters(String tableName) {
+    List<RowCounter> counters = sByTable.get(tableName.toLowerCase());
+    return counters == null ? Collections.<RowCounter>emptyList() : counters;
+  }
+
+  /**
+   * Call just before committing a change which will be reported to
+   * inserted(), deleted() or updated(); call finished() on what it returns
+   * as soon as the commit returns, and then hand it to them.
+   *
+   * @return Where the commit falls among any recounts.
+   */
+  public static Commit committing() {
+    return new Commit();
+  }
+
+  /**
+   * A row has been added to a table, and committed.
+   *
+   * @param tableName - The table it went in.
+   * @param row - The row as it was stored.
+   * @param commit - What committing() returned, before the commit.
+   */
+  public static void inserted(String tableName, Record row, Commit commit) {
+    long finished = commit.getFinished();
+    for(RowCounter counter : getCounters(tableName)) {
+      if(counter.mGrouping == null) counter.markStale();
+      else counter.adjust(counter.mGrouping.groupOf(row), 1, commit, finished);
+    }
+  }
+
+  /**
+   * A row has been removed from a table, and committed.
+   *
+   * @param tableName - The table it was in.
+   * @param row - The row as it was stored.
+   * @param commit - What committing() returned, before the commit.
+   */
+  public static void deleted(String tableName, Record row, Commit commit) {
+    long finished = commit.getFinished();
+    for(RowCounter counter : getCounters(tableName)) {
+      if(counter.mGrouping == null) counter.markStale();
+      else counter.adjust(counter.mGrouping.groupOf(row), -1, commit, finished);
+    }
+  }
+
+  /**
+   * A row has been changed, and committed.
+   *
+   * @param tableName - The table it's in.
+   * @param before - The row as it was stored before, or null if it's not known.
+   * @param after - The row as it's stored now.
+   * @param columns - The columns which changed, or null if it's not known.
+   * @param commit - What committing() returned, before the commit.
+   */
+  public static void updated(String tableName, Record before, Record after, Collection<String> columns, Commit commit) {
+    long finished = commit.getFinished();
+    for(RowCounter counter : getCounters(tableName)) {
+      if(!counter.dependsOn(columns)) continue;
+      if(counter.mGrouping == null || before == null) {
+        counter.markStale();
+      } else {
+        String was = counter.mGrouping.groupOf(before);
+        String is = counter.mGrouping.groupOf(after);
+        if(was == null ? is != null : !was.equals(is)) {
+          counter.adjust(was, -1, commit, finished);
+          counter.adjust(is, 1, commit, finished);
+        }
+      }
+    }
+  }
+
+  /**
+   * A statement has changed some rows, and which ones isn't known.  Every
+   * counter it might have affected is recounted the next time it's needed.
+   *
+   * @param statement - The SQL which was run.
+   */
+  public static void executed(String statement) {
+    Matcher target = TARGET.matcher(statement);
+    if(!target.find()) {
+      invalidateAll();
+      return;
+    }
+
+    List<String> columns = null;
+    if(UPDATE.matcher(statement).find()) {
+      //  Only the top-level 'SET column =' (or ', column =') assignments; qualified names in subqueries don't match.
+      Matcher set = SET_COLUMN.matcher(statement);
+      columns = new ArrayList<String>();
+      while(set.find()) columns.add(set.group(1).toLowerCase());
+      if(columns.isEmpty()) columns = null;
+    }
+
+    for(RowCounter counter : getCounters(target.group(1))) {
+      if(counter.dependsOn(columns)) counter.markStale();
+    }
+  }
+
+  /**
+   * Rows of a table have changed, and which ones isn't known; its counters
+   * are recounted the next time they're needed.
+   *
+   * @param tableName - The table which changed.
+   */
+  public static void changed(String tableName) {
+    for(RowCounter counter : getCounters(tableName)) counter.markStale();
+  }
+
+  /**
+   * The database has been changed behind Table's back; recount everything when it's next needed.
+   */
+  public static void invalidateAll() {
+    for(List<RowCounter> counters : sByTable.values()) {
+      for(RowCounter counter : counters) counter.markStale();
+    }
+  }
+
+  public synchronized String toString() {
+    return mTableName + "." + mName + ": " + (mStale ? "stale" : (mGrouped ? mCounts.toString() : String.valueOf(mCounts.get(UNGROUPED)))) + " (counted " + mRecounts + " times)";
+  }
+}
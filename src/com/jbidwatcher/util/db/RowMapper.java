@@ -0,0 +1,142 @@
+package com.jbidwatcher.util.db;
+
+/*
+ * Copyright (c) 2000-2007, CyberFOX Software, Inc. All Rights Reserved.
+ *
+ * Developed by mrs (Morgan Schweers)
+ */
+
+import com.jbidwatcher.util.Record;
+
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns result set rows into Records.
+ *
+ * The column names and types of a query are looked up once, the first
+ * time it's run, rather than on every row.  Numbers and timestamps are
+ * read as their native JDBC types and handed to the Record along with
+ * their text, so HashBacked's getInteger(), getDate() and getMonetary()
+ * don't have to parse them back out of strings.  The text is what
+ * getString() would have returned, so nothing else changes.
+ */
+final class RowMapper {
+  private static final int CACHE_SIZE = 256;
+  private static final Map<String, RowMapper> sMappers = new LinkedHashMap<String, RowMapper>(16, 0.75f, true) {
+    protected boolean removeEldestEntry(Map.Entry<String, RowMapper> eldest) {
+      return size() > CACHE_SIZE;
+    }
+  };
+
+  private final String[] mNames;
+  private final int[] mTypes;
+
+  private RowMapper(ResultSetMetaData rsm) throws SQLException {
+    int count = rsm.getColumnCount();
+    mNames = new String[count];
+    mTypes = new int[count];
+    for(int i = 0; i < count; i++) {
+      mNames[i] = rsm.getColumnName(i + 1).toLowerCase();
+      mTypes[i] = rsm.getColumnType(i + 1);
+    }
+  }
+
+  /**
+   * @param query - The SQL which produced the result set, or null if it's a one-off.
+   * @param rs - The result set to map.
+   *
+   * @return The mapper for that query's columns.
+   */
+  static RowMapper forQuery(String query, ResultSet rs) throws SQLException {
+    RowMapper mapper = null;
+    if(query != null) {
+      synchronized(sMappers) {
+        mapper = sMappers.get(query);
+      }
+    }
+
+    ResultSetMetaData rsm = rs.getMetaData();
+    //  A schema upgrade can add columns to a 'SELECT *'.
+    if(mapper == null || mapper.mNames.length != rsm.getColumnCount()) {
+      mapper = new RowMapper(rsm);
+      if(query != null) {
+        synchronized(sMappers) {
+          sMappers.put(query, mapper);
+        }
+      }
+    }
+    return mapper;
+  }
+
+  /**
+   * Map rows until the result set runs out, or there are enough.
+   *
+   * @param rs - The result set to read.
+   * @param count - How many rows to return at most, or -1 for all of them.
+   *
+   * @return The rows read.
+   */
+  List<Record> mapAll(ResultSet rs, int count) throws SQLException {
+    List<Record> rval = new ArrayList<Record>();
+    while((count < 0 || rval.size() < count) && rs.next()) {
+      rval.add(map(rs));
+    }
+    return rval;
+  }
+
+  Record map(ResultSet rs) throws SQLException {
+    Record row = new Record();
+    for(int i = 0; i < mNames.length; i++) {
+      int column = i + 1;
+      switch(mTypes[i]) {
+        case Types.INTEGER:
+        case Types.SMALLINT:
+        case Types.TINYINT: {
+          int value = rs.getInt(column);
+          if(rs.wasNull()) row.put(mNames[i], null);
+          else row.putTyped(mNames[i], Integer.toString(value), value);
+          break;
+        }
+        case Types.BIGINT: {
+          long value = rs.getLong(column);
+          if(rs.wasNull()) row.put(mNames[i], null);
+          else row.putTyped(mNames[i], Long.toString(value), value);
+          break;
+        }
+        case Types.DECIMAL:
+        case Types.NUMERIC: {
+          BigDecimal value = rs.getBigDecimal(column);
+          if(value == null) row.put(mNames[i], null);
+          else row.putTyped(mNames[i], value.toPlainString(), value.doubleValue());
+          break;
+        }
+        case Types.DOUBLE:
+        case Types.FLOAT: {
+          double value = rs.getDouble(column);
+          if(rs.wasNull()) row.put(mNames[i], null);
+          else row.putTyped(mNames[i], Double.toString(value), value);
+          break;
+        }
+        case Types.TIMESTAMP: {
+          Timestamp value = rs.getTimestamp(column);
+          if(value == null) row.put(mNames[i], null);
+          else row.putTyped(mNames[i], value.toString(), new Date(value.getTime()));
+          break;
+        }
+        default:
+          row.put(mNames[i], rs.getString(column));
+      }
+    }
+    return row;
+  }
+}
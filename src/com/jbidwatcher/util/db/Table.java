@@ -7,20 +7,65 @@ import java.math.BigDecimal;
 import java.sql.*;
 import java.util.*;
 import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 
 /**
  * Wrap the auction information up in a database.
+ *
+ * A Table holds no connection of its own; each operation borrows one from
+ * the ConnectionPool and gives it back when it's done, so one Table can be
+ * shared by every thread.  Column metadata is read once per table name.
+ *
+ * Queries take their values as '?' parameters rather than spliced into
+ * the SQL, so each distinct query is compiled once per connection and the
+ * prepared statement reused from then on.
+ *
+ * Every statement is timed by the QueryProfiler; 'debug.sql' logs each
+ * one as it's run.  Every committed write bumps its table's version in
+ * the ResultCache, which findAllCached() and findFirstCached() use.
+ *
+ * Large result sets can be walked with forEach() or forEachPrepared()
+ * instead of being read into a list all at once.
+ *
+ * A table can have an archive, a table of the same shape named
+ * 'archived_' plus its name, for rows which are done with; archive()
+ * moves rows there, keeping their ids.  Writing to an archived row moves
+ * it back first, and deleting a row deletes it from both, so callers
+ * holding an archived record don't need to know where it lives.  Only
+ * readers which want archived rows too need to ask for them.
  */
 public class Table
 {
-  private static boolean STATEMENT_DEBUG = false;
+  private static boolean STATEMENT_DEBUG = JConfig.queryConfiguration("debug.sql", "false").equals("true");
+  //  Tables with this column are versioned; see update().
+  private static final String LOCK_VERSION = "lock_version";
+  private static final AtomicLong sConflicts = new AtomicLong();
+  private static final String ARCHIVE_PREFIX = "archived_";
+  //  Whether each table has an archive, once it's been looked for.
+  private static final ConcurrentMap<String, Boolean> sHasArchive = new ConcurrentHashMap<String, Boolean>();
 
   public boolean hasColumn(String colName) {
     return mColumnMap.containsKey(colName);
   }
 
+  /**
+   * @return true if the table has a 'lock_version' column, which every update bumps.
+   */
+  public boolean isVersioned() {
+    return mColumnMap.containsKey(LOCK_VERSION);
+  }
+
+  /**
+   * @return How many writes have found their row changed since it was read.
+   */
+  public static long getConflicts() {
+    return sConflicts.get();
+  }
+
   private static class TypeColumn {
     private String mType;
     private Integer mIndex;
@@ -39,11 +84,15 @@ public class Table
     }
   }
 
-  private Database mDB;
-  private Statement mS;
+  private static final ConcurrentMap<String, Map<String, TypeColumn>> sColumnMaps = new ConcurrentHashMap<String, Map<String, TypeColumn>>();
+  private final ConnectionPool mPool = ConnectionPool.getInstance();
+  private final QueryProfiler mProfiler = QueryProfiler.getInstance();
+  private final ResultCache mCache = ResultCache.getInstance();
   private Map<String, TypeColumn> mColumnMap;
   private String mTableName;
-  private DateFormat mDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+  //  Set up the first time it's asked for, by whichever thread asks.
+  private volatile Table mArchive = null;
+  private final DateFormat mDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 
   /**
    * Create or open a database for storing auction information.
@@ -56,87 +105,147 @@ public class Table
    * @throws ClassNotFoundException - If we can't find the JDBC driver for the database at all.
    */
   public Table(String tablename) throws SQLException, IllegalAccessException, InstantiationException, ClassNotFoundException {
-    mDB = new Database(null);
     mTableName = tablename;
     mDateFormat.setTimeZone(TimeZone.getDefault());
+    mCache.register(mTableName);
 
-    PreparedStatement query = mDB.prepare("SELECT * FROM " + mTableName);
-
-    establishMetadata(query.getMetaData());
-    mS = mDB.getStatement();
-  }
-
-  /**
-   * Close the statement, commit any last outstanding data (!?) and shut down the database.
-   * @return The database that was shut down.
-   */
-  public Database shutdown() {
-    synchronized (mS) {
+    mColumnMap = sColumnMaps.get(mTableName);
+    if(mColumnMap == null) {
+      Database db = mPool.acquire();
       try {
-        mS.close();
-      } catch (SQLException e) {
-        JConfig.log().handleException("Can't shut down database.", e);
+        PreparedStatement query = db.prepare("SELECT * FROM " + mTableName);
+        establishMetadata(query.getMetaData());
+        query.close();
+      } finally {
+        mPool.release(db);
       }
-      mDB.commit();
-      return mDB;
+      sColumnMaps.putIfAbsent(mTableName, mColumnMap);
     }
   }
 
   public void commit() {
-    mDB.commit();
+    Database db = null;
+    try {
+      db = mPool.acquire();
+      db.commit();
+    } catch (SQLException e) {
+      JConfig.log().handleException("Can't commit to " + mTableName + ".", e);
+    } finally {
+      mPool.release(db);
+    }
+  }
+
+  private String now() {
+    synchronized (mDateFormat) {
+      return mDateFormat.format(new Date());
+    }
   }
 
   public Record find(int id) {
-    return findFirst("SELECT * FROM " + mTableName + " where id = " + id);
+    return findFirst("SELECT * FROM " + mTableName + " WHERE id = ?", Integer.toString(id));
   }
 
   public boolean delete(int id) {
-    try {
-      PreparedStatement ps = mDB.prepare("DELETE FROM " + mTableName + " WHERE id = " + id);
-      ps.execute();
-      mDB.commit();
-    } catch (SQLException e) {
-      e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
-      return false;
-    }
-    return true;
+    Table archive = getArchive();
+    if(archive != null) archive.delete(id);
+    return execute("DELETE FROM " + mTableName + " WHERE id = ?", Integer.toString(id));
   }
 
-  public boolean deleteBy(String condition) {
-    return execute("DELETE FROM " + mTableName + " WHERE " + condition);
+  public boolean deleteBy(String condition, String... parameters) {
+    Table archive = getArchive();
+    if(archive != null) archive.deleteBy(condition, parameters);
+    return execute("DELETE FROM " + mTableName + " WHERE " + condition, parameters);
   }
 
-  public boolean execute(String statement) {
+  /**
+   * Delete a row, keeping the RowCounters of this table up to date.
+   *
+   * @param row - The row as it's stored, including its 'id'.
+   *
+   * @return true if the statement ran, whether or not the row was still there.
+   */
+  public boolean deleteRow(Record row) {
+    Table archive = getArchive();
+    if(archive != null) archive.deleteRow(row);
+    RowCounter.Commit commit = RowCounter.committing();
+    int deleted = executeUpdate("DELETE FROM " + mTableName + " WHERE id = ?", row.get("id"));
+    commit.finished();
+    if(deleted > 0) RowCounter.deleted(mTableName, row, commit);
+    return deleted != -1;
+  }
+
+  public boolean execute(String statement, String... parameters) {
+    int changed = executeUpdate(statement, parameters);
+    //  There's no telling which rows changed, so any counts they might affect have to be redone.
+    if(changed > 0) RowCounter.executed(statement);
+    return changed != -1;
+  }
+
+  /**
+   * @return The number of rows changed, 0 if it wasn't an update, or -1 if it failed.
+   */
+  private int executeUpdate(String statement, String... parameters) {
     if(STATEMENT_DEBUG) JConfig.log().logDebug("Executing: " + statement);
+    Database db = null;
     try {
-      PreparedStatement ps = mDB.prepare(statement);
-      ps.execute();
-      mDB.commit();
+      db = mPool.acquire();
+      PreparedStatement ps = db.prepareCached(statement);
+      bind(ps, parameters);
+      int changed = -1;
+      long start = mProfiler.begin(db, statement);
+      try {
+        ps.execute();
+        changed = Math.max(0, ps.getUpdateCount());
+      } finally {
+        mProfiler.end(db, statement, start, changed);
+      }
+      ps.clearParameters();
+      db.commit();
+      mCache.written(statement);
+      return changed;
     } catch (SQLException e) {
       e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
-      return false;
+      return -1;
+    } finally {
+      mPool.release(db);
     }
-    return true;
   }
 
-  public Record findFirst(String query) {
+  public Record findFirst(String query, String... parameters) {
     if(STATEMENT_DEBUG) JConfig.log().logDebug("Executing fF query: " + query);
 
-    synchronized (mS) {
-      try {
-        ResultSet rs = mS.executeQuery(query);
-        return getFirstResult(rs);
-      } catch (SQLException e) {
-        e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
-        return null;
-      }
-    }
+    List<Record> results = findAllPrepared(query, 1, parameters);
+    return results == null || results.isEmpty() ? null : results.get(0);
   }
 
   public Record findFirstBy(String key, String value) {
     return findByColumn(key, value);
   }
 
+  /**
+   * Like findFirst(), but answered from the ResultCache if this table hasn't been written since it was last asked.
+   */
+  public Record findFirstCached(String query, String... parameters) {
+    List<Record> results = findAllCached(query, 1, parameters);
+    return results == null || results.isEmpty() ? null : results.get(0);
+  }
+
+  /**
+   * Like findAllPrepared(), but answered from the ResultCache if none of
+   * the tables the query mentions have been written since it was last
+   * asked.  The rows are copies, so they can be changed freely.
+   */
+  public List<Record> findAllCached(String query, int count, String... parameters) {
+    if(!mCache.isEnabled()) return findAllPrepared(query, count, parameters);
+
+    List<Record> rows = mCache.get(query, count, parameters);
+    if(rows != null) return rows;
+    Object stamp = mCache.stamp(query);
+    rows = findAllPrepared(query, count, parameters);
+    mCache.put(query, count, stamp, rows, parameters);
+    return rows;
+  }
+
   public List<Record> findAllMulti(String[] keys, String[] values, String order) {
     return findAllMulti(keys, values, null, order);
   }
@@ -171,20 +280,34 @@ public class Table
 
     if(order != null) statement.append(" ORDER BY ").append(order);
 
+    Database db = null;
     try {
-      PreparedStatement ps = mDB.prepare(statement.toString());
+      db = mPool.acquire();
+      PreparedStatement ps = db.prepareCached(statement.toString());
+      ps.setMaxRows(0);
       if(keys != null && keys.length != 0) {
         int colnum = 1;
         for(int i=0; i<values.length; i++) {
-          setColumn(ps, colnum, keys[i], values[i]);
+          setColumn(ps, colnum++, keys[i], values[i]);
         }
       }
       if(STATEMENT_DEBUG) JConfig.log().logDebug("Executing fAM query: " + statement);
 
-      ResultSet rs = execute(ps);
-      return getAllResults(rs);
+      String sql = statement.toString();
+      List<Record> rows = null;
+      long start = mProfiler.begin(db, sql);
+      try {
+        ResultSet rs = execute(ps);
+        ps.clearParameters();
+        rows = getAllResults(sql, rs);
+      } finally {
+        mProfiler.end(db, sql, start, rows == null ? -1 : rows.size());
+      }
+      return rows;
     } catch (SQLException e) {
       e.printStackTrace();
+    } finally {
+      mPool.release(db);
     }
 
     return null;
@@ -208,52 +331,172 @@ public class Table
     return findAll("SELECT * FROM " + mTableName, 0);
   }
 
-  public List<Record> findAll(String query, int count) {
-    synchronized (mS) {
-      try {
-        mS.setMaxRows(count);
-        if (STATEMENT_DEBUG) JConfig.log().logDebug("Executing fA query: " + query);
-        ResultSet rs = mS.executeQuery(query);
-        return getAllResults(rs);
-      } catch (SQLException e) {
-        JConfig.log().handleDebugException("Error running query: " + query, e);
-        return null;
-      }
-    }
+  public List<Record> findAll(String query, int count, String... parameters) {
+    return findAllPrepared(query, count, parameters);
   }
 
-  private Map<String,PreparedStatement> mStatementMap = new HashMap<String,PreparedStatement>();
-
   public List<Record> findAllPrepared(String query, int count, String... parameters) {
+    Database db = null;
     try {
-      PreparedStatement ps = mStatementMap.get(query);
-      if(ps==null) {
-        ps = mDB.prepare(query);
-        mStatementMap.put(query, ps);
-      }
+      db = mPool.acquire();
+      PreparedStatement ps = db.prepareCached(query);
       ps.setMaxRows(count);
-
-      int paramIndex = 1;
-      for(String param : parameters) {
-        ps.setString(paramIndex++, param);
-      }
+      bind(ps, parameters);
 
       if(STATEMENT_DEBUG) JConfig.log().logDebug("Executing fAP query: " + query);
-      ResultSet rs = execute(ps);
-      ps.clearParameters();
-      return getAllResults(rs);
+      List<Record> rows = null;
+      long start = mProfiler.begin(db, query);
+      try {
+        ResultSet rs = execute(ps);
+        ps.clearParameters();
+        rows = getAllResults(query, rs);
+      } finally {
+        mProfiler.end(db, query, start, rows == null ? -1 : rows.size());
+      }
+      return rows;
     } catch (SQLException e) {
       JConfig.log().handleDebugException("Error preparing query: " + query, e);
       return null;
+    } finally {
+      mPool.release(db);
     }
   }
 
+  /**
+   * Called with each row of a query which is read a piece at a time, rather than all at once.
+   */
+  public interface RowHandler {
+    /**
+     * @param row - The next row.
+     *
+     * @return true to go on to the next row, false to stop here.
+     */
+    boolean handle(Record row);
+  }
+
+  /**
+   * @return How many rows to read from the database at a time when streaming, from 'db.fetch_size' (default 500).
+   */
+  public static int getFetchSize() {
+    return Math.max(1, Integer.parseInt(JConfig.queryConfiguration("db.fetch_size", "500")));
+  }
+
+  /**
+   * Go through the rows of this table which match a condition, in id
+   * order, reading a page of them at a time.  No connection is held while
+   * the handler runs, so it can be slow, or use the database itself.
+   *
+   * @param where - The condition, with a '?' for each parameter, or null for every row.
+   * @param pageSize - How many rows to read at a time, or 0 for getFetchSize().
+   * @param handler - Called with each row in turn.
+   * @param parameters - The values for the condition's '?'s.
+   *
+   * @return How many rows were handed to the handler.
+   */
+  public int forEach(String where, int pageSize, RowHandler handler, String... parameters) {
+    if(pageSize <= 0) pageSize = getFetchSize();
+    String query = "SELECT * FROM " + mTableName + " WHERE " + (where == null ? "" : "(" + where + ") AND ") + "id > ? ORDER BY id";
+    String[] bound = Arrays.copyOf(parameters, parameters.length + 1);
+    bound[parameters.length] = "0";
+
+    int handled = 0;
+    while(true) {
+      List<Record> page = findAllPrepared(query, pageSize, bound);
+      if(page == null) return handled;
+      for(Record row : page) {
+        handled++;
+        if(!handler.handle(row)) return handled;
+      }
+      if(page.size() < pageSize) return handled;
+      bound[parameters.length] = page.get(page.size() - 1).get("id");
+    }
+  }
+
+  /**
+   * Run any query, handing over its rows one at a time as they're read,
+   * getFetchSize() rows from the database at a time.  A connection is held
+   * until it's done, so the handler should be quick.
+   *
+   * @param query - The query, with a '?' for each parameter.
+   * @param handler - Called with each row in turn.
+   * @param parameters - The values for the query's '?'s.
+   *
+   * @return How many rows were handed to the handler.
+   */
+  public int forEachPrepared(String query, RowHandler handler, String... parameters) {
+    int handled = 0;
+    Database db = null;
+    PreparedStatement ps = null;
+    try {
+      db = mPool.acquire();
+      //  Not the cached statement; the handler might run this same query, which would close our results.
+      ps = db.prepare(query);
+      ps.setFetchSize(getFetchSize());
+      bind(ps, parameters);
+
+      if(STATEMENT_DEBUG) JConfig.log().logDebug("Executing fEP query: " + query);
+      //  The handler's time is left out; it's not the query's, however many rows there are.
+      long inHandler = 0;
+      boolean finished = false;
+      long start = mProfiler.begin(db, query);
+      try {
+        ResultSet rs = execute(ps);
+        try {
+          RowMapper mapper = RowMapper.forQuery(query, rs);
+          while(rs.next()) {
+            handled++;
+            long handling = System.nanoTime();
+            boolean more = handler.handle(mapper.map(rs));
+            inHandler += System.nanoTime() - handling;
+            if(!more) break;
+          }
+        } finally {
+          rs.close();
+        }
+        finished = true;
+      } finally {
+        mProfiler.end(db, query, start == 0 ? 0 : start + inHandler, finished ? handled : -1);
+      }
+    } catch (SQLException e) {
+      JConfig.log().handleDebugException("Error streaming query: " + query, e);
+    } finally {
+      if(ps != null) try { ps.close(); } catch(SQLException ignored) { /* It's going away regardless. */ }
+      mPool.release(db);
+    }
+    return handled;
+  }
+
   private ResultSet execute(PreparedStatement ps) throws SQLException {
     return ps.executeQuery();
   }
 
+  private static void bind(PreparedStatement ps, String... parameters) throws SQLException {
+    int paramIndex = 1;
+    for(String param : parameters) {
+      ps.setString(paramIndex++, param);
+    }
+  }
+
+  /**
+   * @param count - How many values will go in an IN (...) list.
+   *
+   * @return That many comma-separated '?' parameters.
+   */
+  public static String placeholders(int count) {
+    StringBuilder sb = new StringBuilder();
+    for(int i = 0; i < count; i++) {
+      if(i != 0) sb.append(", ");
+      sb.append('?');
+    }
+    return sb.toString();
+  }
+
   public static Record getFirstResult(ResultSet rs) throws SQLException {
-    List<Record> rval = getAllResults(rs, 1);
+    return getFirstResult(null, rs);
+  }
+
+  private static Record getFirstResult(String query, ResultSet rs) throws SQLException {
+    List<Record> rval = getAllResults(query, rs, 1);
     if(rval.size() > 0) {
       return rval.get(0);
     } else {
@@ -261,25 +504,23 @@ public class Table
     }
   }
 
-  private List<Record> getAllResults(ResultSet rs) throws SQLException {
-    return getAllResults(rs, -1);
+  private static List<Record> getAllResults(String query, ResultSet rs) throws SQLException {
+    return getAllResults(query, rs, -1);
   }
 
-  static private List<Record> getAllResults(ResultSet rs, int count) throws SQLException {
-    ArrayList<Record> rval = new ArrayList<Record>();
-    ResultSetMetaData rsm = rs.getMetaData();
-    if (rsm != null) {
-      while(rs.next()) {
-        Record row = new Record();
-        for (int i = 1; i <= rsm.getColumnCount(); i++) {
-          row.put(rs.getMetaData().getColumnName(i).toLowerCase(), rs.getString(i));
-        }
-        rval.add(row);
-        if(rval.size() == count) return rval;
-      }
+  /**
+   * @param query - The SQL the results came from, so its column layout can be reused; null for one-off results.
+   * @param rs - The results, which are closed afterwards.
+   * @param count - The most rows to return, or -1 for all of them.
+   *
+   * @return The rows, as Records.
+   */
+  private static List<Record> getAllResults(String query, ResultSet rs, int count) throws SQLException {
+    try {
+      return RowMapper.forQuery(query, rs).mapAll(rs, count);
+    } finally {
+      rs.close();
     }
-    rs.close();
-    return rval;
   }
 
   public String insertOrUpdate(Record row) {
@@ -289,46 +530,664 @@ public class Table
   }
 
   public String updateMap(String tableName, String columnKey, String value, Record newRow) {
+    //  Hold one connection for the read and the write, so the row lock carries over.
+    Database db = null;
+    try {
+      db = mPool.acquire();
+      return updateMap(db, tableName, columnKey, value, newRow);
+    } catch (SQLException e) {
+      JConfig.log().handleException("Can't get a connection to update a row in " + tableName + ".", e);
+      return null;
+    } finally {
+      mPool.release(db);
+    }
+  }
+
+  private String updateMap(Database db, String tableName, String columnKey, String value, Record newRow) throws SQLException {
     Record oldRow = null;
     if(value != null) {
-      oldRow = getRow(tableName, columnKey, value, true);
+      oldRow = getRow(db, tableName, columnKey, value, true);
     }
     newRow = cleanRow(newRow);
 
     if(value == null || oldRow == null) {
       //  Magic columns; created_at automatically gets set.
       if (mColumnMap.containsKey("created_at")) {
-        newRow.put("created_at", mDateFormat.format(new Date()));
+        newRow.put("created_at", now());
       }
-      return storeMap(newRow);
+      return storeMap(db, newRow);
+    }
+
+    if(!checkVersion(value, oldRow, newRow)) return null;
+    return writeUpdate(db, tableName, columnKey, value, oldRow, newRow);
+  }
+
+  /**
+   * If the table is versioned, make sure newRow was read at oldRow's
+   * version, and have it bump the version when it's written.
+   *
+   * @return false if the row has changed since newRow was read, so it mustn't be written.
+   */
+  private boolean checkVersion(String value, Record oldRow, Record newRow) {
+    if(!isVersioned()) return true;
+    String expected = newRow.remove(LOCK_VERSION);
+    int current = oldRow.get(LOCK_VERSION) == null ? 0 : Integer.parseInt(oldRow.get(LOCK_VERSION));
+    if(expected != null && Integer.parseInt(expected) != current) {
+      conflict(value, expected, current);
+      return false;
     }
+    newRow.put(LOCK_VERSION, Integer.toString(current + 1));
+    return true;
+  }
 
+  /**
+   * Write the columns of newRow which differ from oldRow; checkVersion() has to have been called first.
+   *
+   * @return The generated keys of the update, or null if nothing was different.
+   */
+  private String writeUpdate(Database db, String tableName, String columnKey, String value, Record oldRow, Record newRow) throws SQLException {
     //  Magic columns; updated_at automatically gets set.
     if(mColumnMap.containsKey("updated_at")) {
-      newRow.put("updated_at", mDateFormat.format(new Date()));
+      newRow.put("updated_at", now());
     }
     String sql = createPreparedUpdate(tableName, oldRow, newRow);
     if(sql == null) return null;
 
     sql += " WHERE " + columnKey + " = ?";
+    PreparedStatement ps = db.prepareCached(sql);
+    int colCount = setPreparedUpdate(ps, oldRow, newRow);
+    if(colCount != -1) {
+      //  Set the 'WHERE' value.
+      setColumn(ps, colCount, columnKey, value);
+      if(STATEMENT_DEBUG) JConfig.log().logDebug("Executing update on: " + sql);
+      int updated = -1;
+      long start = mProfiler.begin(db, sql);
+      try {
+        ps.execute();
+        updated = ps.getUpdateCount();
+      } finally {
+        mProfiler.end(db, sql, start, updated);
+      }
+      RowCounter.Commit commit = RowCounter.committing();
+      db.commit();
+      commit.finished();
+      mCache.bump(tableName);
+
+      Record after = new Record();
+      after.putAll(oldRow);
+      after.putAll(newRow);
+      RowCounter.updated(tableName, oldRow, after, newRow.keySet(), commit);
+      return findKeys(ps);
+    }
+    return null;
+  }
+
+  /**
+   * Insert a row, unless there's already one with the same value in a
+   * unique column, in which case that row is updated with this one's
+   * columns instead.  If another thread inserts the same value between
+   * the look and the insert, the unique constraint stops the insert, and
+   * the second pass updates the row it inserted.
+   *
+   * @param row - The row to store; any 'id' in it is ignored.
+   * @param key - The unique column to match on.
+   *
+   * @return The id of the row inserted or updated, or null if it couldn't be stored, or
+   * the row it would have updated had changed since this one was read.
+   */
+  public String upsert(Record row, String key) {
+    String value = row.get(key);
+    if(value == null || value.length() == 0) return insertOrUpdate(row);
+
+    Database db = null;
     try {
-      PreparedStatement ps = mDB.prepare(sql);
+      db = mPool.acquire();
+      for(int attempt = 0; attempt < 2; attempt++) {
+        Record existing = getRow(db, mTableName, key, value, true);
+        if(existing == null && restore(db, key, value)) existing = getRow(db, mTableName, key, value, true);
+        if(existing != null) {
+          String id = existing.get("id");
+          Record merged = cleanRow(row);
+          merged.remove("id");
+          boolean current = checkVersion(id, existing, merged);
+          if(current) writeUpdate(db, mTableName, "id", id, existing, merged);
+          //  Nothing may have changed, but the row was read for update; let it go.
+          db.commit();
+          if(!current) return null;
+          if(merged.containsKey(LOCK_VERSION)) row.put(LOCK_VERSION, merged.get(LOCK_VERSION));
+          return id;
+        }
 
-      int colCount = setPreparedUpdate(ps, oldRow, newRow);
-      if(colCount != -1) {
-        //  Set the 'WHERE' value.
-        setColumn(ps, colCount, columnKey, value);
-        if(STATEMENT_DEBUG) JConfig.log().logDebug("Executing update on: " + sql);
-        ps.execute();
-        mDB.commit();
-        return findKeys(ps);
+        Record fresh = cleanRow(row);
+        fresh.remove("id");
+        //  Magic columns; created_at automatically gets set.
+        if(mColumnMap.containsKey("created_at")) fresh.put("created_at", now());
+        try {
+          String id = insertRow(db, fresh);
+          if(isVersioned()) row.put(LOCK_VERSION, fresh.get(LOCK_VERSION));
+          return id;
+        } catch(SQLException e) {
+          if(!isDuplicateKey(e)) throw e;
+          if(STATEMENT_DEBUG) JConfig.log().logDebug("Lost the race to insert " + key + " = " + value + " into " + mTableName + "; updating instead.");
+        }
       }
-    } catch (SQLException e) {
-      e.printStackTrace();
+    } catch(SQLException e) {
+      JConfig.log().handleException("Can't store " + mTableName + " row (" + key + " = '" + value + "').", e);
+    } finally {
+      mPool.release(db);
     }
     return null;
   }
 
+  /**
+   * @param e - An exception from an insert or update.
+   *
+   * @return true if it was a unique constraint (or key) violation.
+   */
+  static boolean isDuplicateKey(SQLException e) {
+    //  Derby reports 23505; MySQL reports 23000 for any constraint, with error 1062 for duplicates.
+    return "23505".equals(e.getSQLState()) || ("23000".equals(e.getSQLState()) && e.getErrorCode() == 1062);
+  }
+
+  /**
+   * Write the changed columns of a row which is already in the table,
+   * without reading it back first.
+   *
+   * If the table is versioned and the row says which version it was read
+   * at, the update only applies to that version, and bumps it.  If the
+   * row has changed since, and only some columns are being written, it
+   * depends on what changed: if the other writer left this caller's
+   * columns as they were when they were read, they're written over the
+   * newer version, and nobody else's changes are touched.  If it changed
+   * any of them too, one of the two changes would be lost, so it's
+   * refused.  If the whole row is being written it's always refused.
+   *
+   * @param row - The row, including its 'id'.  Its 'lock_version' is kept up to date.
+   * @param columns - The columns which changed, or null to write every column in the row.
+   * @param original - The row as it was read, before any of the columns changed.
+   *
+   * @return The row's id, or if it's no longer in the table, the id it was inserted under;
+   * null if it couldn't be written, or it was changed since it was read.
+   */
+  public String update(Record row, Collection<String> columns, Record original) {
+    Record changed = narrowRow(row, columns);
+    String id = changed.remove("id");
+    if(id == null || id.length() == 0) return insertOrUpdate(row);
+    //  The version is only ever changed by the update itself.
+    changed.remove(LOCK_VERSION);
+    if(changed.isEmpty()) return id;
+    //  Magic columns; updated_at automatically gets set.
+    if(mColumnMap.containsKey("updated_at")) changed.put("updated_at", now());
+
+    String version = isVersioned() ? row.get(LOCK_VERSION) : null;
+    List<String> names = sortedColumns(changed);
+    String sql = updateSQL(names, isVersioned(), version != null);
+    Database db = null;
+    try {
+      db = mPool.acquire();
+      PreparedStatement ps = db.prepareCached(sql);
+      int column = 1;
+      for(String name : names) {
+        setColumn(ps, column++, name, changed.get(name));
+      }
+      setColumn(ps, column, "id", id);
+      if(version != null) setColumn(ps, column + 1, LOCK_VERSION, version);
+      if(STATEMENT_DEBUG) JConfig.log().logDebug("Executing update on: " + sql);
+      int updated = timedUpdate(db, ps, sql);
+      Record before = original;
+
+      //  A handful of tries, in case the row keeps changing underneath.
+      for(int tries = 0; updated == 0 && version != null && tries < 3; tries++) {
+        Record now = getRow(db, mTableName, "id", id, false);
+        if(now == null) break;
+        String current = now.get(LOCK_VERSION) == null ? "0" : now.get(LOCK_VERSION);
+        List<String> clashes = clashes(now, changed, columns == null ? null : original);
+        if(clashes == null || !clashes.isEmpty()) {
+          conflict(id, version, Integer.parseInt(current));
+          if(clashes != null) JConfig.log().logMessage("Both changed " + clashes + ".");
+          return null;
+        }
+        sConflicts.incrementAndGet();
+        if(STATEMENT_DEBUG) JConfig.log().logDebug(mTableName + " row " + id + " went from version " + version + " to " + current + "; writing " + names + " over it.");
+        version = current;
+        before = now;
+        setColumn(ps, column + 1, LOCK_VERSION, version);
+        updated = timedUpdate(db, ps, sql);
+      }
+
+      if(updated == 0 && restore(db, "id", id)) {
+        //  It had been archived; it's back now, so write it as usual.
+        return update(row, columns, original);
+      }
+
+      if(updated != 0) {
+        RowCounter.Commit commit = RowCounter.committing();
+        db.commit();
+        commit.finished();
+        mCache.bump(mTableName);
+        if(version != null) row.put(LOCK_VERSION, Integer.toString(Integer.parseInt(version) + 1));
+        RowCounter.updated(mTableName, before, merge(before, changed), columns == null ? null : changed.keySet(), commit);
+        return id;
+      }
+      if(version != null && currentVersion(db, id) != null) {
+        JConfig.log().logMessage("Gave up saving " + mTableName + " row " + id + "; it kept changing.");
+        return null;
+      }
+
+      //  Someone deleted it out from under us; put it back.
+      Record whole = cleanRow(row);
+      whole.remove("id");
+      if(mColumnMap.containsKey("created_at")) whole.put("created_at", now());
+      String newId = storeMap(db, whole);
+      if(isVersioned()) row.put(LOCK_VERSION, whole.get(LOCK_VERSION));
+      return newId;
+    } catch (SQLException e) {
+      JConfig.log().handleException("Can't update " + mTableName + " row " + id + ".", e);
+      return null;
+    } finally {
+      mPool.release(db);
+    }
+  }
+
+  /**
+   * @param row - The full row.
+   * @param columns - The columns to keep, or null for all of them.
+   *
+   * @return A copy of just the given columns (and 'id') which this table has.
+   */
+  Record narrowRow(Record row, Collection<String> columns) {
+    if(columns == null) return cleanRow(row);
+
+    Record narrow = new Record();
+    for(String column : columns) {
+      if(hasColumn(column) && row.containsKey(column)) narrow.put(column, row.get(column));
+    }
+    if(row.containsKey("id")) narrow.put("id", row.get("id"));
+    return narrow;
+  }
+
+  private static List<String> sortedColumns(Record row) {
+    List<String> columns = new ArrayList<String>(row.keySet());
+    Collections.sort(columns);
+    return columns;
+  }
+
+  /**
+   * @param columns - The columns to set, in order.
+   * @param bump - Whether to bump the row's version.
+   * @param check - Whether to only update the row if it's still at the version given after the id.
+   *
+   * @return The UPDATE statement.
+   */
+  private String updateSQL(List<String> columns, boolean bump, boolean check) {
+    StringBuilder sql = new StringBuilder("UPDATE " + mTableName + " SET ");
+    for(int i = 0; i < columns.size(); i++) {
+      if(i != 0) sql.append(',');
+      sql.append(columns.get(i)).append("=?");
+    }
+    if(bump) sql.append(',').append(LOCK_VERSION).append("=COALESCE(").append(LOCK_VERSION).append(",0)+1");
+    sql.append(" WHERE id = ?");
+    if(check) sql.append(" AND ").append(LOCK_VERSION).append(" = ?");
+    return sql.toString();
+  }
+
+  /**
+   * Which of the columns being written someone else has changed, since
+   * they were read.  A column they changed to the same value doesn't count.
+   *
+   * @param current - The row as it is now.
+   * @param changed - The columns being written, and their new values.
+   * @param original - The row as it was read, or null if that isn't known.
+   *
+   * @return The columns both have changed, or null if there's no telling.
+   */
+  private static List<String> clashes(Record current, Record changed, Record original) {
+    if(original == null) return null;
+    List<String> clashes = new ArrayList<String>();
+    for(String column : changed.keySet()) {
+      if(column.equals("updated_at")) continue;
+      String theirs = current.get(column);
+      if(!same(theirs, original.get(column)) && !same(theirs, changed.get(column))) clashes.add(column);
+    }
+    return clashes;
+  }
+
+  /**
+   * @return The row as it was, with the changes written over it; just the changes, if it isn't known.
+   */
+  private static Record merge(Record before, Record changed) {
+    Record after = new Record();
+    if(before != null) after.putAll(before);
+    after.putAll(changed);
+    return after;
+  }
+
+  private static boolean same(String a, String b) {
+    return a == null ? b == null : a.equals(b);
+  }
+
+  private String currentVersion(Database db, String id) throws SQLException {
+    String sql = "SELECT " + LOCK_VERSION + " FROM " + mTableName + " WHERE id = ?";
+    PreparedStatement ps = db.prepareCached(sql);
+    setColumn(ps, 1, "id", id);
+    int found = -1;
+    long start = mProfiler.begin(db, sql);
+    try {
+      ResultSet rs = ps.executeQuery();
+      try {
+        found = 0;
+        if(!rs.next()) return null;
+        found = 1;
+        String version = rs.getString(1);
+        return version == null ? "0" : version;
+      } finally {
+        rs.close();
+      }
+    } finally {
+      mProfiler.end(db, sql, start, found);
+    }
+  }
+
+  private void conflict(String id, String expected, int current) {
+    sConflicts.incrementAndGet();
+    JConfig.log().logMessage("Not saving " + mTableName + " row " + id + "; it was changed (now version " + current + ") after version " + expected + " was read.");
+  }
+
+  /**
+   * @return The table this one's archived rows are kept in, or null if it doesn't have one.
+   */
+  public Table getArchive() {
+    if(mArchive != null || mTableName.startsWith(ARCHIVE_PREFIX)) return mArchive;
+    Boolean exists = sHasArchive.get(mTableName);
+    if(exists != null && !exists) return null;
+
+    try {
+      mArchive = new Table(ARCHIVE_PREFIX + mTableName);
+      sHasArchive.put(mTableName, true);
+    } catch(Exception e) {
+      sHasArchive.put(mTableName, false);
+    }
+    return mArchive;
+  }
+
+  /**
+   * Move the rows matching a condition into this table's archive, with
+   * their ids, in one transaction.
+   *
+   * @param where - The condition, with a '?' for each parameter.
+   * @param parameters - The values for the condition's '?'s.
+   *
+   * @return How many rows were moved, or -1 if they couldn't be (and none were).
+   */
+  public int archive(String where, String... parameters) {
+    Table archive = getArchive();
+    if(archive == null) return 0;
+
+    Database db = null;
+    try {
+      db = mPool.acquire();
+      return move(db, this, archive, where, parameters);
+    } catch(SQLException e) {
+      JConfig.log().handleException("Can't archive " + mTableName + " rows (" + where + ").", e);
+      return -1;
+    } finally {
+      mPool.release(db);
+    }
+  }
+
+  /**
+   * Move any archived rows with the given value back into this table.
+   *
+   * @return true if any were moved back.
+   */
+  private boolean restore(Database db, String columnKey, String value) throws SQLException {
+    Table archive = getArchive();
+    if(archive == null || value == null) return false;
+    int restored = move(db, archive, this, columnKey + " = ?", value);
+    if(restored > 0 && STATEMENT_DEBUG) JConfig.log().logDebug("Restored " + restored + " archived " + mTableName + " rows (" + columnKey + " = " + value + ").");
+    return restored > 0;
+  }
+
+  /**
+   * Copy rows from one table to the other and delete the originals.  If
+   * the connection isn't in the middle of a transaction already, the
+   * move is its own transaction.
+   *
+   * @return How many rows were moved.
+   */
+  private static int move(Database db, Table from, Table to, String where, String... parameters) throws SQLException {
+    List<String> shared = sharedColumns(from, to);
+    String columns = join(shared);
+    String condition = " FROM " + from.mTableName + " WHERE " + where;
+    //  Write-lock the rows first with an update which changes nothing, so nothing can change between the copy and the delete.
+    String locked = shared.get(shared.size() - 1);
+    String lock = "UPDATE " + from.mTableName + " SET " + locked + "=" + locked + " WHERE " + where;
+    String copy = "INSERT INTO " + to.mTableName + " (" + columns + ") SELECT " + columns + condition;
+    String remove = "DELETE" + condition;
+
+    Connection c = db.getConnection();
+    boolean autoCommit = c.getAutoCommit();
+    if(autoCommit) c.setAutoCommit(false);
+    try {
+      int moved = from.run(db, lock, parameters);
+      if(moved != 0) {
+        from.run(db, copy, parameters);
+        moved = from.run(db, remove, parameters);
+      }
+      if(autoCommit) c.commit();
+      if(moved != 0) {
+        RowCounter.executed(copy);
+        RowCounter.executed(remove);
+        //  If it's not committed yet, whoever commits it bumps them again.
+        from.mCache.bump(from.mTableName);
+        to.mCache.bump(to.mTableName);
+      }
+      return moved;
+    } catch(SQLException e) {
+      if(autoCommit) c.rollback();
+      throw e;
+    } finally {
+      if(autoCommit) c.setAutoCommit(true);
+    }
+  }
+
+  private int timedUpdate(Database db, PreparedStatement ps, String sql) throws SQLException {
+    int updated = -1;
+    long start = mProfiler.begin(db, sql);
+    try {
+      updated = ps.executeUpdate();
+    } finally {
+      mProfiler.end(db, sql, start, updated);
+    }
+    return updated;
+  }
+
+  private int run(Database db, String statement, String... parameters) throws SQLException {
+    if(STATEMENT_DEBUG) JConfig.log().logDebug("Executing: " + statement);
+    PreparedStatement ps = db.prepareCached(statement);
+    bind(ps, parameters);
+    int changed = timedUpdate(db, ps, statement);
+    ps.clearParameters();
+    return changed;
+  }
+
+  /**
+   * @return The columns both tables have, in a fixed order with 'id' first.
+   */
+  private static List<String> sharedColumns(Table one, Table other) {
+    List<String> columns = new ArrayList<String>(one.getColumns());
+    columns.retainAll(other.getColumns());
+    columns.remove("id");
+    Collections.sort(columns);
+    columns.add(0, "id");
+    return columns;
+  }
+
+  private static String join(List<String> columns) {
+    StringBuilder sb = new StringBuilder();
+    for(String column : columns) {
+      if(sb.length() != 0) sb.append(", ");
+      sb.append(column);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Find the rows matching a condition in this table and its archive.
+   *
+   * @param where - The condition, with a '?' for each parameter, or null for every row.
+   * @param order - The columns to order by, or null for no particular order.
+   * @param parameters - The values for the condition's '?'s.
+   *
+   * @return The rows from both tables, with just the columns both have.
+   */
+  public List<Record> findAllWithArchive(String where, String order, String... parameters) {
+    Table archive = getArchive();
+    String condition = where == null ? "" : " WHERE " + where;
+    String sql;
+    String[] bound;
+    if(archive == null) {
+      sql = "SELECT * FROM " + mTableName + condition;
+      bound = parameters;
+    } else {
+      String columns = join(sharedColumns(this, archive));
+      sql = "SELECT " + columns + " FROM " + mTableName + condition +
+          " UNION ALL SELECT " + columns + " FROM " + archive.mTableName + condition;
+      bound = Arrays.copyOf(parameters, parameters.length * 2);
+      System.arraycopy(parameters, 0, bound, parameters.length, parameters.length);
+    }
+    if(order != null) sql += " ORDER BY " + order;
+    return findAllPrepared(sql, 0, bound);
+  }
+
+  /**
+   * Write rows which are already in the table, with one JDBC batch for
+   * each distinct set of columns being written.  This doesn't commit; the
+   * caller owns the transaction.
+   *
+   * Versions are checked and bumped as in update(); a row which changed
+   * since it was read, in any of the columns being written, is left as
+   * it is, and logged.
+   *
+   * @param db - The connection to write on.
+   * @param rows - The rows to write, each with its 'id', and its 'lock_version' if it's known.
+   * @param originals - Each row as it was read, before it was changed (or null, if that isn't known).
+   *
+   * @return What was written where it was, for countUpdated(); each row written, and what it was before.
+   *
+   * @throws SQLException - If any of the updates fail.
+   */
+  Map<Record, Record> updateBatch(Database db, List<Record> rows, List<Record> originals) throws SQLException {
+    Map<Record, Record> written = new IdentityHashMap<Record, Record>();
+    Map<String, List<Record>> bySQL = new LinkedHashMap<String, List<Record>>();
+    Map<String, List<String>> columnsBySQL = new HashMap<String, List<String>>();
+    Map<Record, Record> originalOf = new IdentityHashMap<Record, Record>();
+    for(int i = 0; i < rows.size(); i++) {
+      Record clean = cleanRow(rows.get(i));
+      String id = clean.remove("id");
+      String version = clean.remove(LOCK_VERSION);
+      if(id == null || id.length() == 0 || clean.isEmpty()) continue;
+      //  Magic columns; updated_at automatically gets set.
+      if(mColumnMap.containsKey("updated_at")) clean.put("updated_at", now());
+
+      List<String> columns = sortedColumns(clean);
+      String key = updateSQL(columns, isVersioned(), isVersioned() && version != null);
+      List<Record> same = bySQL.get(key);
+      if(same == null) {
+        same = new ArrayList<Record>();
+        bySQL.put(key, same);
+        columnsBySQL.put(key, columns);
+      }
+      clean.put("id", id);
+      if(isVersioned() && version != null) clean.put(LOCK_VERSION, version);
+      same.add(clean);
+      originalOf.put(clean, originals.get(i));
+    }
+
+    for(Map.Entry<String, List<Record>> batch : bySQL.entrySet()) {
+      List<String> columns = columnsBySQL.get(batch.getKey());
+      PreparedStatement ps = db.prepareCached(batch.getKey());
+      for(Record row : batch.getValue()) {
+        bindBatchRow(ps, columns, row);
+        ps.addBatch();
+      }
+      if(STATEMENT_DEBUG) JConfig.log().logDebug("Executing batch of " + batch.getValue().size() + ": " + batch.getKey());
+      int updated = -1;
+      int[] counts;
+      long start = mProfiler.begin(db, batch.getKey());
+      try {
+        counts = ps.executeBatch();
+        updated = 0;
+        for(int count : counts) if(count > 0) updated += count;
+      } finally {
+        mProfiler.end(db, batch.getKey(), start, updated);
+      }
+      List<Record> missing = new ArrayList<Record>();
+      for(int i = 0; i < counts.length; i++) {
+        Record row = batch.getValue().get(i);
+        if(counts[i] == 0) missing.add(row);
+        else written.put(row, originalOf.get(row));
+      }
+
+      for(Record row : missing) {
+        String id = row.get("id");
+        String version = row.get(LOCK_VERSION);
+        Record now = version == null ? null : getRow(db, mTableName, "id", id, false);
+        if(now == null) {
+          //  Rows which have been archived since they were read are brought back and written again.
+          if(restore(db, "id", id)) {
+            bindBatchRow(ps, columns, row);
+            ps.executeUpdate();
+          }
+          continue;
+        }
+
+        String current = now.get(LOCK_VERSION) == null ? "0" : now.get(LOCK_VERSION);
+        Record changed = new Record();
+        for(String column : columns) changed.put(column, row.get(column));
+        List<String> clashes = clashes(now, changed, originalOf.get(row));
+        if(clashes == null || !clashes.isEmpty()) {
+          conflict(id, version, Integer.parseInt(current));
+          if(clashes != null) JConfig.log().logMessage("Both changed " + clashes + ".");
+          continue;
+        }
+        sConflicts.incrementAndGet();
+        row.put(LOCK_VERSION, current);
+        bindBatchRow(ps, columns, row);
+        if(ps.executeUpdate() == 0) JConfig.log().logMessage("Gave up saving " + mTableName + " row " + id + "; it kept changing.");
+        else written.put(row, now);
+      }
+    }
+    return written;
+  }
+
+  /**
+   * Once what updateBatch() wrote is committed, keep the RowCounters up
+   * to date with it.  Rows it restored from the archive aren't included;
+   * restoring them already has the counts redone.
+   *
+   * @param written - What updateBatch() returned.
+   * @param commit - What RowCounter.committing() returned, before the commit.
+   */
+  void countUpdated(Map<Record, Record> written, RowCounter.Commit commit) {
+    for(Map.Entry<Record, Record> write : written.entrySet()) {
+      Record changed = new Record();
+      changed.putAll(write.getKey());
+      changed.remove("id");
+      changed.remove(LOCK_VERSION);
+      RowCounter.updated(mTableName, write.getValue(), merge(write.getValue(), changed), changed.keySet(), commit);
+    }
+  }
+
+  private void bindBatchRow(PreparedStatement ps, List<String> columns, Record row) throws SQLException {
+    int column = 1;
+    for(String key : columns) {
+      setColumn(ps, column++, key, row.get(key));
+    }
+    setColumn(ps, column, "id", row.get("id"));
+    if(row.get(LOCK_VERSION) != null) setColumn(ps, column + 1, LOCK_VERSION, row.get(LOCK_VERSION));
+  }
+
   private Record cleanRow(Record newRow) {
     Record cleanedNewRow = new Record();
     for(String column : newRow.keySet()) {
@@ -349,17 +1208,39 @@ public class Table
   }
 
   private Record getRow(String tableName, String columnKey, String value, boolean forUpdate) {
+    Database db = null;
+    try {
+      db = mPool.acquire();
+      return getRow(db, tableName, columnKey, value, forUpdate);
+    } catch (SQLException e) {
+      JConfig.log().handleException("Can't get a connection to read " + tableName + ".", e);
+      return null;
+    } finally {
+      mPool.release(db);
+    }
+  }
+
+  private Record getRow(Database db, String tableName, String columnKey, String value, boolean forUpdate) {
     Record oldRow = null;
 
     try {
       String statement = "SELECT * FROM " + tableName;
       statement += " WHERE " + columnKey + " = ?";
       if (forUpdate) statement += " FOR UPDATE";
-      PreparedStatement ps = mDB.prepare(statement);
+      PreparedStatement ps = db.prepareCached(statement);
+      ps.setMaxRows(0);
       setColumn(ps, 1, columnKey, value);
       if(STATEMENT_DEBUG) JConfig.log().logDebug("Executing gR statement: " + statement);
-      ResultSet rs = execute(ps);
-      oldRow = getFirstResult(rs);
+      boolean finished = false;
+      long start = mProfiler.begin(db, statement);
+      try {
+        ResultSet rs = execute(ps);
+        ps.clearParameters();
+        oldRow = getFirstResult(statement, rs);
+        finished = true;
+      } finally {
+        mProfiler.end(db, statement, start, !finished ? -1 : (oldRow == null ? 0 : 1));
+      }
     } catch (SQLException e) {
       JConfig.log().handleException("Can't get row" + (forUpdate? " for update":"") + " (" + columnKey + " = '" + value +"').", e);
     }
@@ -367,33 +1248,58 @@ public class Table
   }
 
   public String storeMap(Record newRow) {
-    String sql = createPreparedInsert(mTableName, newRow);
-    if(sql == null) return null;
-    StringBuffer values = new StringBuffer();
+    Database db = null;
+    try {
+      db = mPool.acquire();
+      return storeMap(db, newRow);
+    } catch (SQLException e) {
+      JConfig.log().handleException("Can't get a connection to store a row in " + mTableName + ".", e);
+      return null;
+    } finally {
+      mPool.release(db);
+    }
+  }
 
+  private String storeMap(Database db, Record newRow) {
     try {
-      PreparedStatement ps = mDB.prepare(sql);
+      return insertRow(db, newRow);
+    } catch (SQLException e) {
+      System.err.println("Command: " + createPreparedInsert(mTableName, newRow));
+      System.err.println("Values:  " + newRow.values());
+      JConfig.log().handleException("Can't store row in table.", e);
+    }
+    return null;
+  }
 
-      int column = 1;
-      for(String key: newRow.keySet()) {
-        if(key.equals("id")) continue;
-        if(values.length() != 0) values.append(", ");
-        if(!setColumn(ps, column++, key, newRow.get(key))) {
-          JConfig.log().logDebug("Error from columns: (" + column + ", " + key + ", " + mColumnMap.get(key).getType() + ", " + newRow.get(key) + ")");
-        }
-        values.append(newRow.get(key));
+  private String insertRow(Database db, Record newRow) throws SQLException {
+    if(isVersioned()) newRow.put(LOCK_VERSION, "0");
+    String sql = createPreparedInsert(mTableName, newRow);
+    if(sql == null) return null;
+
+    PreparedStatement ps = db.prepareCached(sql);
+    int column = 1;
+    for(String key: newRow.keySet()) {
+      if(key.equals("id")) continue;
+      if(!setColumn(ps, column++, key, newRow.get(key))) {
+        JConfig.log().logDebug("Error from columns: (" + column + ", " + key + ", " + mColumnMap.get(key).getType() + ", " + newRow.get(key) + ")");
       }
-      if(STATEMENT_DEBUG) JConfig.log().logDebug("Storing map: " + sql);
+    }
+    if(STATEMENT_DEBUG) JConfig.log().logDebug("Storing map: " + sql);
 
+    int inserted = -1;
+    long start = mProfiler.begin(db, sql);
+    try {
       ps.execute();
-      mDB.commit();
-      return findKeys(ps);
-    } catch (SQLException e) {
-      System.err.println("Command: " + sql);
-      System.err.println("Values:  " + values);
-      JConfig.log().handleException("Can't store row in table.", e);
+      inserted = ps.getUpdateCount();
+    } finally {
+      mProfiler.end(db, sql, start, inserted);
     }
-    return null;
+    RowCounter.Commit commit = RowCounter.committing();
+    db.commit();
+    commit.finished();
+    mCache.bump(mTableName);
+    RowCounter.inserted(mTableName, newRow, commit);
+    return findKeys(ps);
   }
 
   private String findKeys(PreparedStatement ps) throws SQLException {
@@ -541,22 +1447,25 @@ public class Table
     }
   }
 
+  /**
+   * @return The number of rows in the table, kept up to date in memory rather than counted each time.
+   */
   public int count() {
-    return countBySQL("SELECT COUNT(*) AS count FROM " + mTableName);
+    return RowCounter.total(mTableName).get();
   }
 
-  public int countBy(String condition) {
-    return countBySQL("SELECT COUNT(*) AS count FROM " + mTableName + " WHERE " + condition);
+  public int countBy(String condition, String... parameters) {
+    return countBySQL("SELECT COUNT(*) AS count FROM " + mTableName + " WHERE " + condition, parameters);
   }
 
-  public int countBySQL(String sql) {
-    Record rm = findFirst(sql);
+  public int countBySQL(String sql, String... parameters) {
+    Record rm = findFirst(sql, parameters);
     String count = (String) (rm.values().toArray()[0]);
     return Integer.parseInt(count);
   }
 
-  public Database getDB() {
-    return mDB;
+  public String getTableName() {
+    return mTableName;
   }
 
   public Set<String> getColumns() {
@@ -0,0 +1,251 @@
+package com.jbidwatcher.util.db;
+
+/*
+ * Copyright (c) 2000-2007, CyberFOX Software, Inc. All Rights Reserved.
+ *
+ * Developed by mrs (Morgan Schweers)
+ */
+
+import com.jbidwatcher.util.Record;
+import com.jbidwatcher.util.config.JConfig;
+import com.jbidwatcher.util.queue.TimerHandler;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An optional unit of work for ActiveRecord.saveDB(), turned on by setting
+ * 'db.write_behind' to 'true'.
+ *
+ * Instead of updating (and committing) each row as it's saved, saves of
+ * rows already in the database are collected here, with repeated saves of
+ * the same row collapsed into the latest one, writing every column any
+ * of them changed.  They're written as JDBC
+ * batches in a single transaction 'db.write_behind.delay' ms (default 250)
+ * after the first one arrives, or as soon as 'db.write_behind.batch'
+ * (default 100) different rows are waiting.  New rows are still inserted
+ * immediately, since the caller needs their id.
+ *
+ * Versions are checked as in Table.update(): the version a row is
+ * checked against is the one it had when it was first saved, since
+ * saves which are collapsed together are written once, and bump it once.
+ * A row someone else changed meanwhile, in the same columns, isn't
+ * written; that can only be logged, since its save has long returned.
+ *
+ * Anything which has to be in the database before going on (bids and
+ * snipes) calls flush(), which doesn't return until everything saved
+ * before it has been committed.  Until then, a row read back from the
+ * database may not show its latest save.
+ */
+public final class WriteBehind implements TimerHandler.DeadlineProcess {
+  private static final String DEFAULT_DELAY = "250";
+  private static final String DEFAULT_BATCH = "100";
+  private static final String LOCK_VERSION = "lock_version";
+  private static WriteBehind sInstance = null;
+
+  private static final class Pending {
+    private final Table mTable;
+    private final Record mRow;
+    //  The columns to write, or null for all of them.
+    private final Set<String> mColumns;
+    //  The row as it was read, before the first of the saves collapsed into this one.
+    private final Record mOriginal;
+
+    private Pending(Table table, Record row, Set<String> columns, Record original) {
+      mTable = table;
+      mRow = row;
+      mColumns = columns;
+      mOriginal = original;
+    }
+
+    private Record narrow() {
+      Record narrow = mTable.narrowRow(mRow, mColumns);
+      if(mRow.get(LOCK_VERSION) != null) narrow.put(LOCK_VERSION, mRow.get(LOCK_VERSION));
+      return narrow;
+    }
+  }
+
+  private final long mDelay;
+  private final int mBatchSize;
+  private final TimerHandler mTimer;
+  //  Only one flush writes at a time, so a flush() returning means everything before it is committed.
+  private final Object mFlushLock = new Object();
+  //  Guarded by this.
+  private Map<String, Pending> mPending = new LinkedHashMap<String, Pending>();
+  private long mFirstPendingAt = 0;
+
+  private final AtomicLong mSaves = new AtomicLong();
+  private final AtomicLong mCoalesced = new AtomicLong();
+  private final AtomicLong mWritten = new AtomicLong();
+  private final AtomicLong mFlushes = new AtomicLong();
+  private final AtomicLong mFailures = new AtomicLong();
+
+  private WriteBehind() {
+    mDelay = Long.parseLong(JConfig.queryConfiguration("db.write_behind.delay", DEFAULT_DELAY));
+    mBatchSize = Integer.parseInt(JConfig.queryConfiguration("db.write_behind.batch", DEFAULT_BATCH));
+    mTimer = new TimerHandler(this, mDelay);
+    mTimer.setName("WriteBehind");
+    mTimer.start();
+  }
+
+  public static boolean isEnabled() {
+    return JConfig.queryConfiguration("db.write_behind", "false").equals("true");
+  }
+
+  public static synchronized WriteBehind getInstance() {
+    if(sInstance == null) sInstance = new WriteBehind();
+    return sInstance;
+  }
+
+  /**
+   * Write out anything pending, if write-behind has ever been used.
+   */
+  public static void flushAll() {
+    WriteBehind wb;
+    synchronized(WriteBehind.class) {
+      wb = sInstance;
+    }
+    if(wb != null) wb.flush();
+  }
+
+  /**
+   * Queue a row to be written.
+   *
+   * @param table - The table the row belongs in.
+   * @param row - The row, including its 'id'; it's copied, so the caller can keep changing it.
+   * @param columns - The columns which changed, or null if they all should be written.
+   * @param original - The row as it was read, before the columns changed.
+   *
+   * @return The version the row will have once it's written, or null if it isn't versioned.
+   */
+  String save(Table table, Record row, Set<String> columns, Record original) {
+    Record copy = new Record();
+    copy.putAll(row);
+    String key = table.getTableName() + ':' + row.get("id");
+    String expected = table.isVersioned() ? row.get(LOCK_VERSION) : null;
+
+    boolean wake;
+    boolean full;
+    synchronized(this) {
+      mSaves.incrementAndGet();
+      Pending prev = mPending.get(key);
+      if(prev != null) {
+        mCoalesced.incrementAndGet();
+        //  Not written yet, so it's still at the version the first save saw.
+        expected = prev.mRow.get(LOCK_VERSION);
+        original = prev.mOriginal;
+        if(prev.mColumns == null) {
+          columns = null;
+        } else if(columns != null) {
+          Set<String> merged = new HashSet<String>(prev.mColumns);
+          merged.addAll(columns);
+          columns = merged;
+        }
+      }
+      if(expected == null) copy.remove(LOCK_VERSION); else copy.put(LOCK_VERSION, expected);
+      mPending.put(key, new Pending(table, copy, columns, original));
+      wake = mPending.size() == 1;
+      if(wake) mFirstPendingAt = System.currentTimeMillis();
+      full = mPending.size() >= mBatchSize;
+    }
+
+    if(full) {
+      flush();
+    } else if(wake) {
+      mTimer.reschedule();
+    }
+    return expected == null ? null : Integer.toString(Integer.parseInt(expected) + 1);
+  }
+
+  /**
+   * Write everything saved so far, in one transaction, and wait for it to commit.
+   */
+  public void flush() {
+    synchronized(mFlushLock) {
+      Map<String, Pending> batch;
+      synchronized(this) {
+        if(mPending.isEmpty()) return;
+        batch = mPending;
+        mPending = new LinkedHashMap<String, Pending>();
+        mFirstPendingAt = 0;
+      }
+      write(batch.values());
+    }
+  }
+
+  private void write(Collection<Pending> batch) {
+    Map<Table, List<Record>> byTable = new LinkedHashMap<Table, List<Record>>();
+    Map<Table, List<Record>> originals = new HashMap<Table, List<Record>>();
+    for(Pending p : batch) {
+      List<Record> rows = byTable.get(p.mTable);
+      if(rows == null) {
+        rows = new ArrayList<Record>();
+        byTable.put(p.mTable, rows);
+        originals.put(p.mTable, new ArrayList<Record>());
+      }
+      rows.add(p.narrow());
+      originals.get(p.mTable).add(p.mOriginal);
+    }
+
+    ConnectionPool pool = ConnectionPool.getInstance();
+    Database db = null;
+    try {
+      db = pool.acquire();
+      Connection c = db.getConnection();
+      boolean autoCommit = c.getAutoCommit();
+      c.setAutoCommit(false);
+      try {
+        Map<Table, Map<Record, Record>> written = new LinkedHashMap<Table, Map<Record, Record>>();
+        for(Map.Entry<Table, List<Record>> rows : byTable.entrySet()) {
+          written.put(rows.getKey(), rows.getKey().updateBatch(db, rows.getValue(), originals.get(rows.getKey())));
+        }
+        RowCounter.Commit commit = RowCounter.committing();
+        c.commit();
+        commit.finished();
+        //  Rows which had been archived were moved back in the same transaction.
+        for(Table table : byTable.keySet()) {
+          ResultCache.getInstance().bump(table.getTableName());
+          if(table.getArchive() != null) ResultCache.getInstance().bump(table.getArchive().getTableName());
+          table.countUpdated(written.get(table), commit);
+        }
+      } catch(SQLException e) {
+        c.rollback();
+        throw e;
+      } finally {
+        c.setAutoCommit(autoCommit);
+      }
+      mWritten.addAndGet(batch.size());
+      mFlushes.incrementAndGet();
+    } catch(SQLException e) {
+      mFailures.incrementAndGet();
+      JConfig.log().handleException("Batched write of " + batch.size() + " rows failed; writing them one at a time.", e);
+      pool.release(db);
+      db = null;
+      for(Pending p : batch) {
+        p.mTable.update(p.mRow, p.mColumns, p.mOriginal);
+      }
+    } finally {
+      pool.release(db);
+    }
+  }
+
+  public synchronized long nextDeadline() {
+    return mPending.isEmpty() ? TimerHandler.NO_DEADLINE : mFirstPendingAt + mDelay;
+  }
+
+  public boolean check() {
+    if(nextDeadline() <= System.currentTimeMillis()) flush();
+    return true;
+  }
+
+  public String toString() {
+    int pending;
+    synchronized(this) {
+      pending = mPending.size();
+    }
+    return "write-behind: " + mSaves.get() + " saves, " + mCoalesced.get() + " coalesced, " + mWritten.get() + " rows written in " +
+        mFlushes.get() + " transactions, " + mFailures.get() + " failed batches, " + pending + " pending";
+  }
+}
@@ -0,0 +1,160 @@
+package com.jbidwatcher.util.queue;
+/*
+ * Copyright (c) 2000-2007, CyberFOX Software, Inc. All Rights Reserved.
+ *
+ * Developed by mrs (Morgan Schweers)
+ */
+
+import com.jbidwatcher.util.config.JConfig;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A message queue for 'something changed, go look at it' messages, like
+ * redraws, where only the latest request for any given key matters.
+ *
+ * When the first message arrives, the queue waits out a short window
+ * (about a UI frame), collecting everything else that's sent, with
+ * duplicates collapsed.  Then it hands over the whole batch, in the order
+ * keys were first seen.  A BatchListener gets the batch in one call;
+ * any other listener is called once per distinct key.
+ *
+ * @noinspection ThisEscapedInObjectConstruction,CallToThreadStartDuringObjectConstruction
+ */
+public final class CoalescingMessageQueue extends MessageQueue {
+  private final Set<Object> mPending = new LinkedHashSet<Object>();
+  private final String mName;
+  private final long mWindow;
+  private List<Object> _postpone = new ArrayList<Object>();
+  private final AtomicLong mDelivered = new AtomicLong();
+  //  When the first message of the current batch arrived; guarded by mPending.
+  private long mBatchStart = 0;
+
+  protected void handleListener() {
+    if(_postpone != null) {
+      for (Object data : _postpone) {
+        enqueueObject(data);
+      }
+      _postpone.clear();
+      _postpone = null;
+    }
+  }
+
+  /**
+   * @param qName - The name of the queue; this also becomes its thread name.
+   * @param window - How long (in ms) to collect messages after the first one arrives.
+   */
+  public CoalescingMessageQueue(Object qName, long window) {
+    mName = "MQ_" + qName;
+    mWindow = window;
+    Thread myself = new Thread(this);
+    myself.setDaemon(true);
+    myself.setName(mName);
+    myself.start();
+  }
+
+  public String getName() { return mName; }
+
+  /** @return How many messages were actually delivered, after collapsing duplicates. */
+  public long getDelivered() { return mDelivered.get(); }
+
+  public void run() {
+    //noinspection InfiniteLoopStatement
+    while(true) {
+      try {
+        synchronized(mPending) {
+          while(mPending.isEmpty()) mPending.wait();
+        }
+        //  Let the rest of this frame's messages arrive, so they collapse into this batch.
+        Thread.sleep(mWindow);
+      } catch(InterruptedException ignore) {
+        //  Ignore the interrupted exception, it just wakes us up.
+      }
+
+      List<Object> batch;
+      long batchStart;
+      synchronized(mPending) {
+        batch = new ArrayList<Object>(mPending);
+        batchStart = mBatchStart;
+        mPending.clear();
+      }
+      if(!batch.isEmpty()) {
+        mStats.waited(System.nanoTime() - batchStart);
+        deliver(batch);
+      }
+    }
+  }
+
+  private void deliver(List<Object> batch) {
+    mDelivered.addAndGet(batch.size());
+
+    boolean heard = false;
+    try {
+      for(Listener l : _listeners) {
+        if(l != null) {
+          heard = true;
+          long start = beginDelivery(l);
+          try {
+            if(l instanceof BatchListener) {
+              ((BatchListener) l).messagesAction(batch);
+            } else {
+              for(Object data : batch) l.messageAction(data);
+            }
+          } finally {
+            endDelivery(start);
+          }
+        }
+      }
+    } catch (Exception e) {
+      JConfig.log().handleException("CMQ Caught exception: " + e, e);
+    }
+    if(!heard) {
+      JConfig.log().logDebug(mName + ": Postponing " + batch.size() + " messages");
+      mStats.postponed(batch.size());
+      if(_postpone != null) _postpone.addAll(batch);
+    }
+  }
+
+  public boolean enqueue(String entry) {
+    if(JConfig.queryConfiguration("debug.queues", "false").equals("true")) {
+      JConfig.log().logMessage(entry);
+    }
+    return enqueueObject(entry);
+  }
+
+  /**
+   * Add a key to the current batch.
+   *
+   * @param objToEnqueue - The key to deliver.
+   *
+   * @return false if the key was already waiting in the current batch.
+   */
+  public boolean enqueueObject(Object objToEnqueue) {
+    synchronized(mPending) {
+      boolean added = mPending.add(objToEnqueue);
+      mStats.enqueued(mPending.size());
+      if(!added) return false;
+      if(mPending.size() == 1) {
+        mBatchStart = System.nanoTime();
+        mPending.notifyAll();
+      }
+    }
+    return true;
+  }
+
+  public int size() {
+    synchronized(mPending) {
+      return mPending.size();
+    }
+  }
+
+  public void clear() {
+    synchronized(mPending) {
+      mPending.clear();
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package com.jbidwatcher.util.queue;
+/*
+ * Copyright (c) 2000-2007, CyberFOX Software, Inc. All Rights Reserved.
+ *
+ * Developed by mrs (Morgan Schweers)
+ */
+
+/**
+ * A typed, in-process message about a single auction entry, used on the
+ * busy queues instead of building and re-parsing command strings like
+ * "start 12345" or "UPDATE 12345,true".
+ */
+public final class EntryMessage {
+  public enum Kind { START, STOP, UPDATED, SNIPED, CANCELLED }
+
+  private final Kind mKind;
+  private final String mIdentifier;
+  private final boolean mChanged;
+
+  private EntryMessage(Kind kind, String identifier, boolean changed) {
+    mKind = kind;
+    mIdentifier = identifier;
+    mChanged = changed;
+  }
+
+  /** An entry has started updating. */
+  public static EntryMessage start(String identifier) { return new EntryMessage(Kind.START, identifier, false); }
+
+  /** An entry has finished updating. */
+  public static EntryMessage stop(String identifier) { return new EntryMessage(Kind.STOP, identifier, false); }
+
+  /** An entry was updated, and its stored data did (or didn't) change. */
+  public static EntryMessage updated(String identifier, boolean changed) { return new EntryMessage(Kind.UPDATED, identifier, changed); }
+
+  /** A snipe was set up on an entry. */
+  public static EntryMessage sniped(String identifier) { return new EntryMessage(Kind.SNIPED, identifier, false); }
+
+  /** A snipe on an entry was cancelled. */
+  public static EntryMessage cancelled(String identifier) { return new EntryMessage(Kind.CANCELLED, identifier, false); }
+
+  public Kind getKind() { return mKind; }
+  public String getIdentifier() { return mIdentifier; }
+  public boolean isChanged() { return mChanged; }
+
+  /**
+   * @return The message in the older string-command form, for logging
+   * and for any listener which still only understands strings.
+   */
+  public String toString() {
+    switch(mKind) {
+      case START: return "start " + mIdentifier;
+      case STOP: return "stop " + mIdentifier;
+      case UPDATED: return "UPDATE " + mIdentifier + "," + mChanged;
+      case SNIPED: return "SNIPE " + mIdentifier;
+      case CANCELLED: return "CANCEL " + mIdentifier;
+      default: return mKind + " " + mIdentifier;
+    }
+  }
+}
@@ -0,0 +1,78 @@
+package com.jbidwatcher.util.queue;
+/*
+ * Copyright (c) 2000-2007, CyberFOX Software, Inc. All Rights Reserved.
+ *
+ * Developed by mrs (Morgan Schweers)
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A cheap, thread-safe histogram of durations, in power-of-two
+ * microsecond buckets (under 2us, under 4us, under 8us, ... up to about
+ * 36 minutes).  Percentiles are reported as the top of the bucket they
+ * fall in, so they're within a factor of two, which is plenty to tell a
+ * healthy queue from a backed up one.
+ */
+public final class LatencyHistogram {
+  private static final int BUCKETS = 32;
+  private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+  private final AtomicLong mCount = new AtomicLong();
+  private final AtomicLong mTotal = new AtomicLong();
+  private final AtomicLong mMax = new AtomicLong();
+
+  /**
+   * @param nanos - The duration to record, in nanoseconds.
+   */
+  public void record(long nanos) {
+    if(nanos < 0) nanos = 0;
+    long micros = nanos / 1000;
+    int bucket = micros < 2 ? 0 : Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+    mBuckets.incrementAndGet(bucket);
+    mCount.incrementAndGet();
+    mTotal.addAndGet(nanos);
+
+    long max;
+    while(nanos > (max = mMax.get())) {
+      if(mMax.compareAndSet(max, nanos)) break;
+    }
+  }
+
+  public long getCount() { return mCount.get(); }
+
+  /** @return The longest duration recorded, in microseconds. */
+  public long getMax() { return mMax.get() / 1000; }
+
+  /** @return All the durations recorded, added up, in microseconds. */
+  public long getTotal() { return mTotal.get() / 1000; }
+
+  /** @return The average duration, in microseconds. */
+  public long getMean() {
+    long count = mCount.get();
+    return count == 0 ? 0 : mTotal.get() / count / 1000;
+  }
+
+  /**
+   * @param percentile - Which percentile to report, from 0 to 100.
+   *
+   * @return The upper bound (in microseconds) of the bucket holding that percentile.
+   */
+  public long getPercentile(double percentile) {
+    long count = mCount.get();
+    if(count == 0) return 0;
+
+    long target = (long) Math.ceil(count * percentile / 100.0);
+    long seen = 0;
+    for(int i = 0; i < BUCKETS; i++) {
+      seen += mBuckets.get(i);
+      if(seen >= target) return 2L << i;
+    }
+    return getMax();
+  }
+
+  public String toString() {
+    if(getCount() == 0) return "none";
+    return getCount() + " (mean " + getMean() + "us, p50 <" + getPercentile(50) + "us, p99 <" + getPercentile(99) + "us, max " + getMax() + "us)";
+  }
+}
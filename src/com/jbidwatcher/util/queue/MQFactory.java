@@ -5,25 +5,42 @@ package com.jbidwatcher.util.queue;
  * Developed by mrs (Morgan Schweers)
  */
 
+import com.jbidwatcher.util.config.JConfig;
+
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /** MQFactory is a factory class, returning MessageQueue objects from a pool.
  *  The object returned is based on the object passed in to the getConcrete()
  *  method.  This will usually be a string, but there are times when you want
  *  to pass a more fundamental object.
+ *
+ *  If 'queue.dispatch' is set to 'pool', new queues are mailboxes served by
+ *  a shared QueueDispatcher rather than each getting a thread of their own.
+ *  Queues named in 'queue.dispatch.dedicated' (the ones which block on the
+ *  user or need to fire on time) still get their own thread.
+ *
+ *  Queues named in 'queue.coalesce' (by default just 'redraw') collapse
+ *  duplicate messages sent within 'queue.coalesce.window' ms of each other,
+ *  and deliver them as a batch.
+ *
+ *  Every queue's QueueStats are available by name from getStats(), and
+ *  a StallDetector watches all of them for listeners that get stuck.
  */
 @SuppressWarnings({"UtilityClass"})
 public class MQFactory {
-  private static Map<Object, MessageQueue> MQs = null;
+  private static final String DEFAULT_DEDICATED = "user,login,ebay sniper";
+  private static final String DEFAULT_COALESCED = "redraw";
+  private static final String DEFAULT_COALESCE_WINDOW = "30";
+  private static final ConcurrentMap<Object, MessageQueue> MQs = new ConcurrentHashMap<Object, MessageQueue>();
 
   private MQFactory() { }
 
   public static void addQueue(String queueName, MessageQueue whatQueue) {
-    if(MQs == null) {
-      MQs = new HashMap<Object, MessageQueue>();
-    }
-
+    whatQueue.setQueueName(queueName);
     MQs.put(queueName, whatQueue);
+    StallDetector.start();
   }
 
   /**
@@ -35,17 +52,110 @@ public class MQFactory {
    * @return A queue addressable by the provided name.
    */
   public static MessageQueue getConcrete(String whatConcrete) {
-    if(MQs == null) {
-      MQs = new HashMap<Object, MessageQueue>();
-    }
-
     MessageQueue foundMQ = MQs.get(whatConcrete);
+    if(foundMQ != null) return foundMQ;
 
-    if(foundMQ == null) {
-      foundMQ = new PlainMessageQueue(whatConcrete);
-      MQs.put(whatConcrete, foundMQ);
+    //  Creating a queue may start a thread, so make sure only one gets made per name.
+    synchronized(MQs) {
+      foundMQ = MQs.get(whatConcrete);
+      if(foundMQ == null) {
+        foundMQ = createQueue(whatConcrete);
+        foundMQ.setQueueName(whatConcrete);
+        MQs.put(whatConcrete, foundMQ);
+        StallDetector.start();
+      }
     }
 
     return foundMQ;
   }
+
+  private static MessageQueue createQueue(String queueName) {
+    if(isListed(queueName, "queue.coalesce", DEFAULT_COALESCED)) {
+      long window = Long.parseLong(JConfig.queryConfiguration("queue.coalesce.window", DEFAULT_COALESCE_WINDOW));
+      return new CoalescingMessageQueue(queueName, window);
+    }
+    if(isPooled() && !isDedicated(queueName)) {
+      return new PlainMessageQueue(queueName, QueueDispatcher.getInstance());
+    }
+    return new PlainMessageQueue(queueName);
+  }
+
+  private static boolean isPooled() {
+    return JConfig.queryConfiguration("queue.dispatch", "thread").equals("pool");
+  }
+
+  private static boolean isDedicated(String queueName) {
+    return isListed(queueName, "queue.dispatch.dedicated", DEFAULT_DEDICATED);
+  }
+
+  private static boolean isListed(String queueName, String configKey, String defaultList) {
+    String listed = JConfig.queryConfiguration(configKey, defaultList);
+    for(String name : listed.split(",")) {
+      if(name.trim().equals(queueName)) return true;
+    }
+    return false;
+  }
+
+  /** @return Every queue created so far. */
+  static Collection<MessageQueue> getQueues() {
+    return MQs.values();
+  }
+
+  /**
+   * @return The statistics for each queue, by queue name.
+   */
+  public static Map<String, QueueStats> getStats() {
+    Map<String, QueueStats> stats = new TreeMap<String, QueueStats>();
+    for(Map.Entry<Object, MessageQueue> entry : MQs.entrySet()) {
+      stats.put(entry.getKey().toString(), entry.getValue().getStats());
+    }
+    return stats;
+  }
+
+  /**
+   * @return The number of messages waiting in each queue, by queue name.
+   */
+  public static Map<String, Integer> getDepths() {
+    Map<String, Integer> depths = new TreeMap<String, Integer>();
+    for(Map.Entry<Object, MessageQueue> entry : MQs.entrySet()) {
+      depths.put(entry.getKey().toString(), entry.getValue().size());
+    }
+    return depths;
+  }
+
+  /**
+   * Log how many threads the queues are using, and how deep each
+   * queue's mailbox is and how it's been doing, in order to help size
+   * the dispatcher pool and find slow listeners.
+   *
+   * @param prefix - A prefix for each line logged.
+   */
+  public static void dumpQueues(String prefix) {
+    if(MQs.isEmpty()) {
+      JConfig.log().logDebug(prefix + ": no queues");
+      return;
+    }
+
+    int dedicated = 0;
+    int dispatched = 0;
+    for(MessageQueue q : MQs.values()) {
+      if(q instanceof PlainMessageQueue) {
+        if(((PlainMessageQueue)q).isDispatched()) dispatched++; else dedicated++;
+      } else if(q instanceof CoalescingMessageQueue) {
+        CoalescingMessageQueue cq = (CoalescingMessageQueue) q;
+        JConfig.log().logDebug(prefix + ": " + cq.getName() + " delivered " + cq.getDelivered() + " of " + cq.getStats().getEnqueued() + " messages sent");
+      }
+    }
+
+    JConfig.log().logDebug(prefix + ": " + dedicated + " dedicated queue threads, " + dispatched + " dispatched mailboxes");
+    if(dispatched != 0) {
+      QueueDispatcher qd = QueueDispatcher.getInstance();
+      JConfig.log().logDebug(prefix + ": dispatcher threads " + qd.getThreadCount() + "/" + qd.getMaxThreads() +
+          " (" + qd.getActiveCount() + " active, " + qd.getWaitingCount() + " mailboxes waiting)");
+    }
+    Map<String, QueueStats> stats = getStats();
+    for(Map.Entry<String, Integer> depth : getDepths().entrySet()) {
+      JConfig.log().logDebug(prefix + ": " + depth.getKey() + " has " + depth.getValue() + " waiting; " + stats.get(depth.getKey()));
+    }
+  }
 }
@@ -5,21 +5,74 @@ package com.jbidwatcher.util.queue;
  * Developed by mrs (Morgan Schweers)
  */
 
+import com.jbidwatcher.util.config.JConfig;
+
 import java.util.*;
-import java.beans.*;
-import java.io.ByteArrayOutputStream;
-import java.io.ByteArrayInputStream;
-import com.jbidwatcher.util.Currency;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+/**
+ * The base of all message queues.  Messages wait in a lock-free
+ * MpscQueue, so any number of threads can send without contending on a
+ * lock; only the queue's own delivery thread takes them off.
+ *
+ * Every queue keeps QueueStats on how deep it gets, how long messages
+ * wait, and how long its listeners take, and notes which listener it's
+ * currently in so the StallDetector can report one that's stuck.
+ */
 public abstract class MessageQueue implements Runnable {
-  protected final LinkedList<Object> _queue = new LinkedList<Object>();
-  protected List<MessageQueue.Listener> _listeners = new ArrayList<Listener>(1);
+  protected final MpscQueue<Object> _queue = new MpscQueue<Object>();
+  protected List<MessageQueue.Listener> _listeners = new CopyOnWriteArrayList<Listener>();
+  protected final QueueStats mStats = new QueueStats();
+  private volatile String mQueueName = getClass().getSimpleName();
+  private volatile Delivery mDelivering = null;
   protected abstract void handleListener();
 
+  /**
+   * The listener call a queue is in the middle of.
+   */
+  private static final class Delivery {
+    private final Thread mThread = Thread.currentThread();
+    private final Listener mListener;
+    private final long mStart = System.nanoTime();
+    private volatile boolean mReported = false;
+
+    private Delivery(Listener listener) { mListener = listener; }
+  }
+
   public interface Listener {
     void messageAction(Object deQ);
   }
 
+  /**
+   * A listener which can handle a whole batch of messages at once, for
+   * queues (like CoalescingMessageQueue) which deliver them that way.
+   */
+  public interface BatchListener extends Listener {
+    void messagesAction(List<Object> batch);
+  }
+
+  /**
+   * A listener for which some messages only matter if nothing newer of
+   * the same kind is waiting behind them (i.e. status line updates), so
+   * a queue draining several at once can skip the stale ones.
+   */
+  public interface Supersedable extends Listener {
+    /**
+     * @param message - A queued message.
+     *
+     * @return A key identifying what the message replaces; of the waiting messages
+     * with the same key, only the last is delivered.  Null if it must always be delivered.
+     */
+    String supersedeKey(Object message);
+
+    /**
+     * Called instead of messageAction for a message that was skipped.
+     *
+     * @param message - The message which was superseded.
+     */
+    void superseded(Object message);
+  }
+
   /**
    * registerListener treats the message queue as if it is a 1-entry list,
    * replacing all existing listeners (expected to be one or zero) with the
@@ -37,45 +90,134 @@ public abstract class MessageQueue implements Runnable {
     return old;
   }
 
-  //  TODO -- Should end up only allowing String and XMLEncode'able objects (which get converted to a String?).
   public abstract boolean enqueue(String objToEnqueue);
 
-  //  Maybe XML queues are different?  MQFactory.getXMLQueue()?
+  /**
+   * Put an arbitrary object on the queue, to be handed to the listeners
+   * as-is.  This is the in-process path; nothing is serialized.
+   *
+   * @param objToEnqueue - The message to deliver.
+   *
+   * @return true if the object was added, false if it was the same object as the last one queued.
+   */
+  public abstract boolean enqueueObject(Object objToEnqueue);
+
+  /**
+   * Queue a QObject for the listeners.  Queues are in-process, so the
+   * bean is delivered directly; use QObjectCodec for anything that has
+   * to leave the process.
+   *
+   * @param xe - The bean to deliver.
+   */
   public void enqueueBean(QObject xe) {
-    // Create output stream.
-    ByteArrayOutputStream fos = new ByteArrayOutputStream();
-    XMLEncoder xe2 = new XMLEncoder(fos);
-    xe2.setPersistenceDelegate(Currency.class, Currency.getDelegate());
-    xe2.writeObject(xe);
-    xe2.close();
-    enqueue(fos.toString());
+    enqueueObject(xe);
   }
 
-  private Object convertBean(String obj) {
-    ByteArrayInputStream fis = new ByteArrayInputStream(obj.getBytes());
-    XMLDecoder xd = new XMLDecoder(fis);
-    Object rval = xd.readObject();
-    xd.close();
-    return rval;
+  /**
+   * Take the next message off the queue.  Only the thread delivering
+   * this queue's messages may call this.
+   *
+   * @return The next message, or null if there isn't one.
+   */
+  public Object dequeue() {
+    return decode(take());
   }
 
-  public Object dequeue() {
-    Object out;
-    synchronized(_queue) {
-      out = _queue.removeFirst();
+  /**
+   * Take the next message off the queue as it was sent, without decoding
+   * it, and note how long it waited.  Delivery thread only.
+   *
+   * @return The next message, or null if there isn't one.
+   */
+  protected Object take() {
+    Object out = _queue.poll();
+    if(out != null) mStats.waited(System.nanoTime() - _queue.lastEnqueuedAt());
+    return out;
+  }
+
+  /**
+   * Subclasses call this after adding a message, to track the queue depth.
+   */
+  protected void enqueued() {
+    mStats.enqueued(size());
+  }
+
+  /**
+   * Note that the current thread is about to hand a message (or batch) to
+   * a listener, so a stall can be reported.
+   *
+   * @param l - The listener being called.
+   *
+   * @return The start time, to pass to endDelivery().
+   */
+  protected long beginDelivery(Listener l) {
+    Delivery d = new Delivery(l);
+    mDelivering = d;
+    return d.mStart;
+  }
+
+  /**
+   * @param start - The value beginDelivery() returned.
+   */
+  protected void endDelivery(long start) {
+    mDelivering = null;
+    mStats.handled(System.nanoTime() - start);
+  }
+
+  /**
+   * Report (once) a listener which has been handling the same message for
+   * longer than the threshold, along with what its thread is doing.
+   *
+   * @param now - The current time, as System.nanoTime().
+   * @param thresholdNanos - How long a listener may take before it's considered stalled.
+   *
+   * @return true if a new stall was reported.
+   */
+  boolean checkStall(long now, long thresholdNanos) {
+    Delivery d = mDelivering;
+    if(d == null || d.mReported || now - d.mStart < thresholdNanos) return false;
+
+    d.mReported = true;
+    mStats.stalled();
+    StringBuilder sb = new StringBuilder();
+    sb.append(mQueueName).append(": ").append(d.mListener == null ? "listener" : d.mListener.getClass().getName());
+    sb.append(" has been handling one message for ").append((now - d.mStart) / 1000000).append("ms on ").append(d.mThread.getName());
+    for(StackTraceElement frame : d.mThread.getStackTrace()) {
+      sb.append("\n\tat ").append(frame);
     }
-    if(out instanceof String) {
-      if( ((String)out).contains("java.beans.XMLDecoder") ) {
-        out = convertBean((String)out);
-      }
+    JConfig.log().logMessage(sb.toString());
+    return true;
+  }
+
+  /** @return The name this queue is registered under in MQFactory. */
+  public String getQueueName() { return mQueueName; }
+
+  void setQueueName(String name) { mQueueName = name; }
+
+  /** @return How this queue has been doing since it was created. */
+  public QueueStats getStats() { return mStats; }
+
+  /**
+   * Strings may still carry an encoded QObject from outside the process.
+   *
+   * @param out - A message taken off the queue.
+   *
+   * @return The message, with any encoded QObject decoded.
+   */
+  protected static Object decode(Object out) {
+    if(out instanceof String && QObjectCodec.isEncoded((String)out)) {
+      out = QObjectCodec.decode((String)out);
     }
     return out;
   }
 
+  /** @return The number of messages waiting to be delivered. */
+  public int size() {
+    return _queue.size();
+  }
+
   public void clear() {
-    synchronized(_queue) {
-      _queue.clear();
-    }
+    _queue.clear();
   }
 
   public void removeListener(Listener listener) {
@@ -0,0 +1,165 @@
+package com.jbidwatcher.util.queue;
+/*
+ * Copyright (c) 2000-2007, CyberFOX Software, Inc. All Rights Reserved.
+ *
+ * Developed by mrs (Morgan Schweers)
+ */
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A lock-free mailbox for many producers and a single consumer; the
+ * core of every MessageQueue.
+ *
+ * Producers swap themselves in as the new tail with one atomic exchange
+ * and then link the old tail to it, so enqueueing never blocks or
+ * retries no matter how many threads are sending.  Only the one thread
+ * delivering a queue's messages may call poll() or await().
+ *
+ * There's a brief window after a producer swaps in its node but before
+ * it links it, where the consumer sees the queue as empty.  The producer
+ * wakes a waiting consumer after linking, so nothing is lost.
+ *
+ * clear() may be called from any thread; it sends a marker, and the
+ * consumer throws away everything in front of it as it goes by.
+ *
+ * @param <E> - The type of message held.
+ */
+public final class MpscQueue<E> {
+  //  How many times the consumer checks again before parking, since parking and unparking cost far more.
+  private static final int SPINS = 64;
+  private static final Object CLEAR = new Object();
+
+  private static final class Node {
+    private Object mItem;
+    private final long mEnqueuedAt = System.nanoTime();
+    private volatile Node mNext;
+
+    Node(Object item) { mItem = item; }
+  }
+
+  //  The node before the first message; only the consumer moves it.
+  private volatile Node mHead;
+  private final AtomicReference<Node> mTail;
+  //  Counted in stripes, so producers don't all contend on one counter.
+  private final LongAdder mOffered = new LongAdder();
+  //  Only written by the consumer.
+  private volatile long mTaken = 0;
+  //  When the message last returned by poll() was added; only the consumer touches it.
+  private long mLastEnqueuedAt = 0;
+  private final AtomicInteger mClearsPending = new AtomicInteger();
+  private final AtomicReference<Thread> mWaiter = new AtomicReference<Thread>();
+
+  public MpscQueue() {
+    mHead = new Node(null);
+    mTail = new AtomicReference<Node>(mHead);
+  }
+
+  /**
+   * Add a message to the end of the queue.  Safe from any thread.
+   *
+   * @param item - The message to add; must not be null.
+   */
+  public void offer(E item) {
+    mOffered.increment();
+    append(item);
+  }
+
+  private void append(Object item) {
+    Node node = new Node(item);
+    Node prev = mTail.getAndSet(node);
+    prev.mNext = node;
+
+    //  Only one producer needs to wake the consumer.
+    if(mWaiter.get() != null) {
+      Thread waiter = mWaiter.getAndSet(null);
+      if(waiter != null) LockSupport.unpark(waiter);
+    }
+  }
+
+  /**
+   * Take the first message off the queue.  Consumer thread only.
+   *
+   * @return The first message, or null if the queue is empty.
+   */
+  @SuppressWarnings({"unchecked"})
+  public E poll() {
+    while(true) {
+      Node next = mHead.mNext;
+      if(next == null) return null;
+
+      Object item = next.mItem;
+      next.mItem = null;
+      mHead = next;
+      if(item == CLEAR) {
+        mClearsPending.decrementAndGet();
+      } else {
+        mTaken++;
+        if(mClearsPending.get() == 0) {
+          mLastEnqueuedAt = next.mEnqueuedAt;
+          return (E) item;
+        }
+      }
+    }
+  }
+
+  /**
+   * @return When (as System.nanoTime()) the message most recently taken by poll()
+   * was added.  Consumer thread only.
+   */
+  public long lastEnqueuedAt() {
+    return mLastEnqueuedAt;
+  }
+
+  /**
+   * Park the calling (consumer) thread until there's a message waiting,
+   * or it's interrupted.
+   */
+  public void await() throws InterruptedException {
+    for(int i = 0; i < SPINS; i++) {
+      if(mHead.mNext != null) return;
+    }
+
+    Thread me = Thread.currentThread();
+    try {
+      while(mHead.mNext == null) {
+        if(Thread.interrupted()) throw new InterruptedException();
+        mWaiter.set(me);
+        //  Check again after announcing, in case a producer finished linking in between.
+        if(mHead.mNext == null) LockSupport.park(this);
+      }
+    } finally {
+      mWaiter.set(null);
+    }
+  }
+
+  public boolean isEmpty() {
+    return mTail.get() == mHead && mHead.mNext == null;
+  }
+
+  /** @return The number of messages waiting; approximate while producers are adding. */
+  public int size() {
+    return (int) Math.max(0, mOffered.sum() - mTaken);
+  }
+
+  /**
+   * @return The most recently added message, if it hasn't been taken yet; null otherwise.
+   */
+  @SuppressWarnings({"unchecked"})
+  public E peekLast() {
+    Node tail = mTail.get();
+    Object item = tail.mItem;
+    return tail == mHead || item == CLEAR ? null : (E) item;
+  }
+
+  /**
+   * Throw away everything waiting.  Safe from any thread.
+   */
+  public void clear() {
+    mClearsPending.incrementAndGet();
+    append(CLEAR);
+  }
+}
@@ -9,11 +9,25 @@ import com.jbidwatcher.util.config.JConfig;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-/** @noinspection ThisEscapedInObjectConstruction,CallToThreadStartDuringObjectConstruction*/
+/**
+ * A message queue delivering to its listeners off of the Swing thread.
+ *
+ * By default each queue owns a thread of its own.  If it's constructed
+ * with a QueueDispatcher, it's instead a lightweight mailbox, drained a
+ * batch at a time by the dispatcher's shared workers.
+ *
+ * @noinspection ThisEscapedInObjectConstruction,CallToThreadStartDuringObjectConstruction
+ */
 public final class PlainMessageQueue extends MessageQueue {
+  //  How many messages to deliver before giving a shared worker back to the other mailboxes.
+  private static final int DISPATCH_BATCH = 32;
   List<Object> _postpone = new ArrayList<Object>();
   Thread _myself;
+  private final String mName;
+  private final QueueDispatcher mDispatcher;
+  private final AtomicBoolean mScheduled = new AtomicBoolean(false);
 
   protected void handleListener() {
     if(_postpone != null) {
@@ -26,56 +40,93 @@ public final class PlainMessageQueue extends MessageQueue {
   }
 
   public PlainMessageQueue(Object qName) {
+    mName = "MQ_" + qName;
+    mDispatcher = null;
     _myself = new Thread(this);
     //  Go ahead and die if all other threads are closed!
     _myself.setDaemon(true);
-    _myself.setName("MQ_" + qName);
+    _myself.setName(mName);
     _myself.start();
   }
 
+  public PlainMessageQueue(Object qName, QueueDispatcher dispatcher) {
+    mName = "MQ_" + qName;
+    mDispatcher = dispatcher;
+  }
+
+  /** @return true if this queue is served by a shared dispatcher, rather than its own thread. */
+  public boolean isDispatched() { return mDispatcher != null; }
+
+  public String getName() { return mName; }
+
   /** @noinspection StringContatenationInLoop*/
   public void run() {
+    if(isDispatched()) {
+      drain();
+      return;
+    }
+
     //noinspection InfiniteLoopStatement
     while(true) {
-      Object data = null;
       try {
-        synchronized(_queue) {
-          if(_queue.isEmpty()) _queue.wait();
-          data = dequeue();
-        }
+        _queue.await();
       } catch(InterruptedException ignore) {
         //  Ignore the interrupted exception, it just wakes us up.
       }
 
-      if(data != null) {
-        boolean empty;
-        do {
-          boolean listeners = !_listeners.isEmpty();
-          boolean heard = false;
-          if (listeners) {
+      Object data;
+      while((data = dequeue()) != null) {
+        deliver(data);
+      }
+    }
+  }
+
+  /**
+   * Deliver a batch of messages on a dispatcher worker, then either give
+   * the worker back (if the mailbox is empty) or go to the back of the
+   * line so other mailboxes get a turn.
+   */
+  private void drain() {
+    for(int delivered = 0; delivered < DISPATCH_BATCH; delivered++) {
+      Object data = dequeue();
+      if(data == null) {
+        mScheduled.set(false);
+        //  A sender may have added something after the last dequeue but before it could see mScheduled cleared.
+        if(_queue.isEmpty() || !mScheduled.compareAndSet(false, true)) return;
+      } else {
+        deliver(data);
+      }
+    }
+
+    mDispatcher.execute(this);
+  }
+
+  private void deliver(Object data) {
+    boolean listeners = !_listeners.isEmpty();
+    boolean heard = false;
+    if (listeners) {
+      try {
+        for(Listener l : _listeners) {
+          if(l != null) {
+            heard = true;
+            long start = beginDelivery(l);
             try {
-              for(Listener l : _listeners) {
-                if(l != null) {
-                  heard = true;
-                  l.messageAction(data);
-                }
-              }
-            } catch (Exception e) {
-              JConfig.log().handleException("PMQ Caught exception: " + e, e);
-              clear();
+              l.messageAction(data);
+            } finally {
+              endDelivery(start);
             }
           }
-          if(!heard) {
-            JConfig.log().logDebug(_myself.getName() + ": Postponing Message: " + data);
-            if(_postpone != null) _postpone.add(data);
-          }
-          synchronized (_queue) {
-            empty = _queue.isEmpty();
-            if(!empty) data = dequeue();
-          }
-        } while (!empty);
+        }
+      } catch (Exception e) {
+        JConfig.log().handleException("PMQ Caught exception: " + e, e);
+        clear();
       }
     }
+    if(!heard) {
+      JConfig.log().logDebug(mName + ": Postponing Message: " + data);
+      mStats.postponed(1);
+      if(_postpone != null) _postpone.add(data);
+    }
   }
 
   public boolean enqueue(String entry) {
@@ -86,15 +137,13 @@ public final class PlainMessageQueue extends MessageQueue {
   }
 
   public boolean enqueueObject(Object objToEnqueue) {
-    synchronized(_queue) {
-      //  We really do want to make sure the exact same object isn't enqueued multiple times.
-      //noinspection ObjectEquality
-      if(_queue.isEmpty() || _queue.getLast() != objToEnqueue) {
-        _queue.addLast(objToEnqueue);
-        _queue.notifyAll();
-        return true;
-      }
-    }
-    return false;
+    //  We really do want to make sure the exact same object isn't enqueued multiple times.
+    //noinspection ObjectEquality
+    if(_queue.peekLast() == objToEnqueue) return false;
+
+    _queue.offer(objToEnqueue);
+    enqueued();
+    if(isDispatched() && mScheduled.compareAndSet(false, true)) mDispatcher.execute(this);
+    return true;
   }
 }
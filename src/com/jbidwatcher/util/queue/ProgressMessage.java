@@ -0,0 +1,33 @@
+package com.jbidwatcher.util.queue;
+/*
+ * Copyright (c) 2000-2007, CyberFOX Software, Inc. All Rights Reserved.
+ *
+ * Developed by mrs (Morgan Schweers)
+ */
+
+/**
+ * A typed progress update (e.g. for the splash screen), replacing the
+ * "SET n" and "WIDTH n" string commands.
+ */
+public final class ProgressMessage {
+  private final boolean mWidth;
+  private final int mValue;
+
+  private ProgressMessage(boolean width, int value) {
+    mWidth = width;
+    mValue = value;
+  }
+
+  /** Set the current progress to the given amount. */
+  public static ProgressMessage set(int amount) { return new ProgressMessage(false, amount); }
+
+  /** Set the total amount of progress that can be made. */
+  public static ProgressMessage width(int total) { return new ProgressMessage(true, total); }
+
+  public boolean isWidth() { return mWidth; }
+  public int getValue() { return mValue; }
+
+  public String toString() {
+    return (mWidth ? "WIDTH " : "SET ") + mValue;
+  }
+}
@@ -0,0 +1,141 @@
+package com.jbidwatcher.util.queue;
+/*
+ * Copyright (c) 2000-2007, CyberFOX Software, Inc. All Rights Reserved.
+ *
+ * Developed by mrs (Morgan Schweers)
+ */
+
+import com.jbidwatcher.util.Currency;
+
+import java.beans.XMLDecoder;
+import java.beans.XMLEncoder;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Turns QObjects into strings and back, for the few cases where a
+ * message has to leave the process (or the in-memory queues) and come
+ * back again.  In-process queues pass QObjects directly, and never use
+ * this.
+ *
+ * QObjects carrying only string data are written in a compact
+ * tab-separated form; anything else falls back to the XMLEncoder form
+ * that queues used to use for everything.  Both forms are decoded.
+ */
+public final class QObjectCodec {
+  private static final String COMPACT_PREFIX = "QOBJ\t";
+  private static final String XML_PREFIX = "<?xml";
+  private static final String NULL_FIELD = "\\0";
+
+  private QObjectCodec() { }
+
+  /**
+   * Quick check whether a string payload is an encoded QObject, rather
+   * than a plain string command.
+   *
+   * @param payload - The string dequeued or loaded.
+   *
+   * @return true if decode() should be used to turn it back into a QObject.
+   */
+  public static boolean isEncoded(String payload) {
+    return payload.startsWith(COMPACT_PREFIX) ||
+        (payload.startsWith(XML_PREFIX) && payload.contains("java.beans.XMLDecoder"));
+  }
+
+  public static String encode(QObject qo) {
+    if(qo.getData() != null && !(qo.getData() instanceof String)) return encodeXML(qo);
+    if(qo.getClass() != QObject.class && qo.getClass() != AuctionQObject.class && qo.getClass() != DropQObject.class) return encodeXML(qo);
+
+    StringBuilder sb = new StringBuilder(COMPACT_PREFIX);
+    if(qo instanceof AuctionQObject) {
+      sb.append('A').append('\t').append(((AuctionQObject) qo).getCommand());
+    } else if(qo instanceof DropQObject) {
+      sb.append('D').append('\t').append(((DropQObject) qo).isInteractive() ? 1 : 0);
+    } else {
+      sb.append('Q').append('\t').append(0);
+    }
+    sb.append('\t');
+    escape(sb, qo.getLabel());
+    sb.append('\t');
+    escape(sb, (String) qo.getData());
+
+    return sb.toString();
+  }
+
+  public static Object decode(String payload) {
+    if(!payload.startsWith(COMPACT_PREFIX)) return decodeXML(payload);
+
+    String[] fields = payload.split("\t", -1);
+    if(fields.length != 5) throw new IllegalArgumentException("Malformed queue payload: " + payload);
+
+    int flags = Integer.parseInt(fields[2]);
+    String label = unescape(fields[3]);
+    String data = unescape(fields[4]);
+
+    switch(fields[1].charAt(0)) {
+      case 'A':
+        return new AuctionQObject(flags, data, label);
+      case 'D':
+        return new DropQObject(data, label, flags != 0);
+      default:
+        return new QObject(data, label);
+    }
+  }
+
+  private static void escape(StringBuilder sb, String field) {
+    if(field == null) {
+      sb.append(NULL_FIELD);
+      return;
+    }
+
+    for(int i = 0; i < field.length(); i++) {
+      char c = field.charAt(i);
+      switch(c) {
+        case '\\': sb.append("\\\\"); break;
+        case '\t': sb.append("\\t"); break;
+        case '\n': sb.append("\\n"); break;
+        case '\r': sb.append("\\r"); break;
+        default: sb.append(c);
+      }
+    }
+  }
+
+  private static String unescape(String field) {
+    if(field.equals(NULL_FIELD)) return null;
+    if(field.indexOf('\\') == -1) return field;
+
+    StringBuilder sb = new StringBuilder(field.length());
+    for(int i = 0; i < field.length(); i++) {
+      char c = field.charAt(i);
+      if(c == '\\' && i + 1 < field.length()) {
+        char next = field.charAt(++i);
+        switch(next) {
+          case 't': sb.append('\t'); break;
+          case 'n': sb.append('\n'); break;
+          case 'r': sb.append('\r'); break;
+          default: sb.append(next);
+        }
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+
+  private static String encodeXML(QObject qo) {
+    ByteArrayOutputStream fos = new ByteArrayOutputStream();
+    XMLEncoder xe = new XMLEncoder(fos);
+    xe.setPersistenceDelegate(Currency.class, Currency.getDelegate());
+    xe.writeObject(qo);
+    xe.close();
+    return fos.toString();
+  }
+
+  private static Object decodeXML(String payload) {
+    ByteArrayInputStream fis = new ByteArrayInputStream(payload.getBytes());
+    XMLDecoder xd = new XMLDecoder(fis);
+    Object rval = xd.readObject();
+    xd.close();
+    return rval;
+  }
+}
@@ -0,0 +1,84 @@
+package com.jbidwatcher.util.queue;
+/*
+ * Copyright (c) 2000-2007, CyberFOX Software, Inc. All Rights Reserved.
+ *
+ * Developed by mrs (Morgan Schweers)
+ */
+
+import com.jbidwatcher.util.config.JConfig;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small, bounded pool of worker threads shared by all the message
+ * queues which don't need a thread of their own.  Each queue acts as a
+ * mailbox; when it has something in it, it asks the dispatcher for a
+ * worker, which drains a batch of messages and then gives the worker
+ * back.  A mailbox is only ever scheduled once at a time, so messages
+ * on any single queue are still delivered in order, on one thread.
+ */
+public class QueueDispatcher {
+  private static final int DEFAULT_THREADS = 4;
+  private static QueueDispatcher sInstance = null;
+
+  private final ThreadPoolExecutor mPool;
+  private final int mMaxThreads;
+
+  public static synchronized QueueDispatcher getInstance() {
+    if(sInstance == null) {
+      int threads = DEFAULT_THREADS;
+      try {
+        threads = Integer.parseInt(JConfig.queryConfiguration("queue.dispatch.threads", Integer.toString(DEFAULT_THREADS)));
+      } catch(NumberFormatException ignored) {
+        //  Fall back to the default pool size.
+      }
+      sInstance = new QueueDispatcher(Math.max(1, threads));
+    }
+
+    return sInstance;
+  }
+
+  public QueueDispatcher(int maxThreads) {
+    mMaxThreads = maxThreads;
+    mPool = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new DispatchThreadFactory());
+    //  Let idle workers go away entirely when nothing is happening.
+    mPool.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Schedule a mailbox to be drained on one of the shared workers.
+   *
+   * @param mailbox - The drain operation for a single message queue.
+   */
+  public void execute(Runnable mailbox) {
+    mPool.execute(mailbox);
+  }
+
+  /** @return The most worker threads the dispatcher will ever run at once. */
+  public int getMaxThreads() { return mMaxThreads; }
+
+  /** @return The number of worker threads currently alive. */
+  public int getThreadCount() { return mPool.getPoolSize(); }
+
+  /** @return The number of worker threads currently delivering messages. */
+  public int getActiveCount() { return mPool.getActiveCount(); }
+
+  /** @return The number of mailboxes waiting for a free worker. */
+  public int getWaitingCount() { return mPool.getQueue().size(); }
+
+  private static class DispatchThreadFactory implements ThreadFactory {
+    private final AtomicInteger mCount = new AtomicInteger(0);
+
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "MQ-dispatch-" + mCount.incrementAndGet());
+      //  Go ahead and die if all other threads are closed!
+      t.setDaemon(true);
+      return t;
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package com.jbidwatcher.util.queue;
+/*
+ * Copyright (c) 2000-2007, CyberFOX Software, Inc. All Rights Reserved.
+ *
+ * Developed by mrs (Morgan Schweers)
+ */
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What one MessageQueue has been doing: how much has been sent to it,
+ * how deep it has gotten, how long messages waited before being picked
+ * up, how long its listeners took with them, and how many had to be
+ * postponed for lack of a listener or stalled a listener.
+ */
+public final class QueueStats {
+  private final LongAdder mEnqueued = new LongAdder();
+  private final AtomicInteger mHighWater = new AtomicInteger();
+  private final AtomicLong mPostponed = new AtomicLong();
+  private final AtomicLong mStalls = new AtomicLong();
+  private final LatencyHistogram mWait = new LatencyHistogram();
+  private final LatencyHistogram mListener = new LatencyHistogram();
+
+  void enqueued(int depth) {
+    mEnqueued.increment();
+    int high;
+    while(depth > (high = mHighWater.get())) {
+      if(mHighWater.compareAndSet(high, depth)) break;
+    }
+  }
+
+  void waited(long nanos) { mWait.record(nanos); }
+  void handled(long nanos) { mListener.record(nanos); }
+  void postponed(int count) { mPostponed.addAndGet(count); }
+  void stalled() { mStalls.incrementAndGet(); }
+
+  /** @return How many messages have been sent to the queue. */
+  public long getEnqueued() { return mEnqueued.sum(); }
+
+  /** @return The deepest the queue has been. */
+  public int getHighWater() { return mHighWater.get(); }
+
+  /** @return How many messages arrived before anything was listening. */
+  public long getPostponed() { return mPostponed.get(); }
+
+  /** @return How many times a listener ran past the stall threshold. */
+  public long getStalls() { return mStalls.get(); }
+
+  /** @return How long messages waited between being sent and being picked up. */
+  public LatencyHistogram getWait() { return mWait; }
+
+  /** @return How long the listeners took to handle each message (or batch). */
+  public LatencyHistogram getListener() { return mListener; }
+
+  public String toString() {
+    return "sent " + getEnqueued() + ", high water " + getHighWater() + ", postponed " + getPostponed() + ", stalls " + getStalls() +
+        "; waited " + mWait + "; handled " + mListener;
+  }
+}
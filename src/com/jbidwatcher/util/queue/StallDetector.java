@@ -0,0 +1,41 @@
+package com.jbidwatcher.util.queue;
+/*
+ * Copyright (c) 2000-2007, CyberFOX Software, Inc. All Rights Reserved.
+ *
+ * Developed by mrs (Morgan Schweers)
+ */
+
+import com.jbidwatcher.util.config.JConfig;
+
+/**
+ * Once a second, looks through all the message queues for a listener
+ * that's been working on a single message for longer than
+ * 'queue.stall.threshold' ms (default 5000), and logs what its thread is
+ * doing.  Each stuck message is only reported once.
+ */
+public final class StallDetector implements TimerHandler.WakeupProcess {
+  private static final String DEFAULT_THRESHOLD = "5000";
+  private static TimerHandler sTimer = null;
+
+  private StallDetector() { }
+
+  /**
+   * Start watching the queues, if that hasn't already been done.
+   */
+  public static synchronized void start() {
+    if(sTimer == null) {
+      sTimer = new TimerHandler(new StallDetector(), 1000);
+      sTimer.setName("QueueStallDetector");
+      sTimer.start();
+    }
+  }
+
+  public boolean check() {
+    long threshold = Long.parseLong(JConfig.queryConfiguration("queue.stall.threshold", DEFAULT_THRESHOLD)) * 1000000;
+    long now = System.nanoTime();
+    for(MessageQueue q : MQFactory.getQueues()) {
+      q.checkStall(now, threshold);
+    }
+    return true;
+  }
+}
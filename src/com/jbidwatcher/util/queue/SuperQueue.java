@@ -35,8 +35,9 @@ public class SuperQueue {
   }
 
   public TimerHandler start() {
-    TimerHandler timeQueue = new TimerHandler(mTQM);
+    TimerHandler timeQueue = new TimerHandler(mTQM, TimeQueueManager.CHECK_INTERVAL);
     timeQueue.setName("SuperQueue");
+    mTQM.setTimer(timeQueue);
     timeQueue.start();
 
     return timeQueue;
@@ -6,7 +6,10 @@ package com.jbidwatcher.util.queue;
  * Developed by mrs (Morgan Schweers)
  */
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.PriorityQueue;
 
 /**
  * Created by IntelliJ IDEA.
@@ -14,17 +17,65 @@ import java.util.List;
  * Date: May 10, 2005
  * Time: 11:07:18 PM
  *
+ * A hierarchical timing wheel of timed events.
+ *
+ * Events are dropped into one-second buckets on the first wheel if they
+ * are due within 64 seconds, or into the coarser buckets of the outer
+ * wheels (about 68 minutes, 3 days and 194 days) otherwise, and cascade
+ * inward as time advances.  Anything further out than that waits in the
+ * last bucket of the outermost wheel, and gets re-placed each time that
+ * bucket comes around.  Insert and erase are O(1); erasing just unlinks
+ * the event from whichever bucket holds it.
+ *
+ * Once an event's second arrives it moves into the 'due' lane, a small
+ * heap ordered by exact millisecond, so events (i.e. snipes) within the
+ * same second still come out at their precise time and in order.
  */
 public class TimeQueue {
-  private Heap m_heap = new Heap(11);
+  private static final long TICK = 1000;
+  private static final int WHEEL_BITS = 6;
+  private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+  private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+  private static final int WHEELS = 4;
+  private static final long MAX_DELTA = (1L << (WHEEL_BITS * WHEELS)) - 1;
+
+  private final Bucket[][] mWheels = new Bucket[WHEELS][WHEEL_SIZE];
+  private final PriorityQueue<QObject> mDue = new PriorityQueue<QObject>();
+  //  The next tick to be processed; every event due before it is in the due lane.
+  private long mCurrentTick;
+  private long mSequence = 0;
+  private int mCount = 0;
+
+  public TimeQueue() {
+    this(System.currentTimeMillis());
+  }
+
+  public TimeQueue(long now) {
+    for(Bucket[] wheel : mWheels) {
+      for(int i = 0; i < WHEEL_SIZE; i++) wheel[i] = new Bucket();
+    }
+    mCurrentTick = now / TICK;
+  }
+
+  public synchronized boolean erase(QObject tqo) {
+    if(tqo.mCancelled || tqo.mFired) return false;
 
-  public boolean erase(QObject tqo) {
-    return m_heap.erase(tqo);
+    tqo.mCancelled = true;
+    if(tqo.mBucket != null) tqo.mBucket.remove(tqo);
+    //  Events in the due lane are skipped when they reach the top of the heap.
+    mCount--;
+    return true;
   }
 
-  public class QObject implements Comparable {
+  public static class QObject implements Comparable<QObject> {
     private long m_when;
     private Object m_event;
+    private long mSequence;
+    private Bucket mBucket;
+    private QObject mPrev;
+    private QObject mNext;
+    private boolean mCancelled = false;
+    private boolean mFired = false;
 
     public QObject(long when, Object o) {
         m_when = when;
@@ -37,10 +88,11 @@ public class TimeQueue {
 
     public Object getEvent() { return m_event; }
 
-    public int compareTo(Object o) {
-        QObject cmp = (QObject) o;
+    public int compareTo(QObject cmp) {
         if(m_when < cmp.m_when) return -1;
         if(m_when > cmp.m_when) return 1;
+        if(mSequence < cmp.mSequence) return -1;
+        if(mSequence > cmp.mSequence) return 1;
 
         return 0;
     }
@@ -50,23 +102,246 @@ public class TimeQueue {
     }
   }
 
-  public void addEvent(long when, Object o) {
-      m_heap.insert(new QObject(when, o));
+  /**
+   * An intrusive doubly-linked list of events, so an event can be
+   * unlinked from its bucket without searching for it.
+   */
+  private static class Bucket {
+    private QObject mHead = null;
+
+    void add(QObject qo) {
+      qo.mBucket = this;
+      qo.mPrev = null;
+      qo.mNext = mHead;
+      if(mHead != null) mHead.mPrev = qo;
+      mHead = qo;
+    }
+
+    void remove(QObject qo) {
+      if(qo.mPrev != null) qo.mPrev.mNext = qo.mNext; else mHead = qo.mNext;
+      if(qo.mNext != null) qo.mNext.mPrev = qo.mPrev;
+      qo.mPrev = qo.mNext = null;
+      qo.mBucket = null;
+    }
+
+    /** Detach and return the whole list, leaving the bucket empty. */
+    QObject takeAll() {
+      QObject head = mHead;
+      mHead = null;
+      return head;
+    }
+  }
+
+  public QObject addEvent(long when, Object o) {
+    QObject qo = new QObject(when, o);
+    addEvent(qo);
+    return qo;
+  }
+
+  private synchronized void addEvent(QObject qo) {
+    qo.mSequence = mSequence++;
+    place(qo);
+    mCount++;
+  }
+
+  private void place(QObject qo) {
+    long tick = qo.m_when / TICK;
+    long delta = tick - mCurrentTick;
+
+    if(delta < 0) {
+      qo.mBucket = null;
+      mDue.add(qo);
+      return;
+    }
+
+    if(delta > MAX_DELTA) {
+      tick = mCurrentTick + MAX_DELTA;
+      delta = MAX_DELTA;
+    }
+
+    int level = 0;
+    while(delta >= (1L << (WHEEL_BITS * (level + 1)))) level++;
+    int slot = (int) ((tick >> (WHEEL_BITS * level)) & WHEEL_MASK);
+    mWheels[level][slot].add(qo);
+  }
+
+  /**
+   * Move the wheels forward so that everything due up to and including
+   * the tick containing 'when' is in the due lane.
+   *
+   * @param when - The time (in milliseconds) to advance to.
+   */
+  private void advance(long when) {
+    long target = when / TICK;
+    if(target < mCurrentTick) return;
+
+    if(mCount == 0) {
+      mCurrentTick = target + 1;
+      return;
+    }
+
+    //  After a long sleep it's cheaper to re-place everything than to step through every tick.
+    if(target - mCurrentTick > WHEEL_SIZE * WHEEL_SIZE) {
+      List<QObject> all = collectScheduled();
+      mCurrentTick = target + 1;
+      for(QObject qo : all) place(qo);
+      return;
+    }
+
+    while(mCurrentTick <= target) {
+      int slot = (int) (mCurrentTick & WHEEL_MASK);
+      if(slot == 0) cascade(1);
+      expire(mWheels[0][slot]);
+      mCurrentTick++;
+    }
   }
 
-  public List getSorted() {
-    return m_heap.getSorted();
+  /**
+   * Re-place the events in the current bucket of an outer wheel, which
+   * moves them onto the next wheel in.  If that bucket is the first of
+   * its wheel, the next wheel out cascades first.
+   */
+  private void cascade(int level) {
+    if(level == WHEELS) return;
+
+    int slot = (int) ((mCurrentTick >> (WHEEL_BITS * level)) & WHEEL_MASK);
+    if(slot == 0) cascade(level + 1);
+    replace(mWheels[level][slot]);
+  }
+
+  private void replace(Bucket bucket) {
+    QObject qo = bucket.takeAll();
+    while(qo != null) {
+      QObject next = qo.mNext;
+      qo.mPrev = qo.mNext = null;
+      place(qo);
+      qo = next;
+    }
+  }
+
+  private void expire(Bucket bucket) {
+    QObject qo = bucket.takeAll();
+    while(qo != null) {
+      QObject next = qo.mNext;
+      qo.mPrev = qo.mNext = null;
+      qo.mBucket = null;
+      mDue.add(qo);
+      qo = next;
+    }
+  }
+
+  private QObject peekDue() {
+    QObject top = mDue.peek();
+    while(top != null && top.mCancelled) {
+      mDue.poll();
+      top = mDue.peek();
+    }
+    return top;
+  }
+
+  private List<QObject> collectScheduled() {
+    List<QObject> rval = new ArrayList<QObject>(mCount);
+    for(Bucket[] wheel : mWheels) {
+      for(Bucket bucket : wheel) collect(bucket, rval);
+    }
+    return rval;
+  }
+
+  private static void collect(Bucket bucket, List<QObject> into) {
+    QObject qo = bucket.takeAll();
+    while(qo != null) {
+      QObject next = qo.mNext;
+      qo.mPrev = qo.mNext = null;
+      qo.mBucket = null;
+      into.add(qo);
+      qo = next;
+    }
+  }
+
+  private List<QObject> snapshot() {
+    List<QObject> rval = new ArrayList<QObject>(mCount);
+    for(Bucket[] wheel : mWheels) {
+      for(Bucket bucket : wheel) {
+        for(QObject qo = bucket.mHead; qo != null; qo = qo.mNext) rval.add(qo);
+      }
+    }
+    for(QObject qo : mDue) {
+      if(!qo.mCancelled) rval.add(qo);
+    }
+    return rval;
+  }
+
+  public synchronized List<QObject> getSorted() {
+    List<QObject> rval = snapshot();
+    Collections.sort(rval);
+    return rval;
+  }
+
+  public synchronized List<QObject> getUnsorted() {
+    return snapshot();
+  }
+
+  public synchronized int size() {
+    return mCount;
+  }
+
+  /**
+   * When the earliest pending event is due, for a timer that wants to
+   * sleep until then.  Exact if the event is within the next minute or
+   * so; otherwise it's the time the outer wheel bucket holding it
+   * cascades inward, which is never later than the event itself.
+   *
+   * @return The time (in milliseconds) of the earliest pending event, or
+   * Long.MAX_VALUE if there aren't any.
+   */
+  public synchronized long nextEventTime() {
+    QObject due = peekDue();
+    if(due != null) return due.m_when;
+    if(mCount == 0) return Long.MAX_VALUE;
+
+    long rval = Long.MAX_VALUE;
+    for(int k = 0; k < WHEEL_SIZE; k++) {
+      Bucket bucket = mWheels[0][(int) ((mCurrentTick + k) & WHEEL_MASK)];
+      if(bucket.mHead != null) {
+        for(QObject qo = bucket.mHead; qo != null; qo = qo.mNext) rval = Math.min(rval, qo.m_when);
+        break;
+      }
+    }
+
+    //  An outer bucket's events can't be due before the first tick it covers.
+    for(int level = 1; level < WHEELS; level++) {
+      long counter = mCurrentTick >> (WHEEL_BITS * level);
+      for(int k = 1; k <= WHEEL_SIZE; k++) {
+        if(mWheels[level][(int) ((counter + k) & WHEEL_MASK)].mHead != null) {
+          rval = Math.min(rval, ((counter + k) << (WHEEL_BITS * level)) * TICK);
+          break;
+        }
+      }
+    }
+
+    return rval;
   }
 
-  public List getUnsorted() {
-    return m_heap.getUnsorted();
+  public synchronized Object getAnyLessThan(long when) {
+    QObject due = takeAnyLessThan(when);
+    return due == null ? null : due.m_event;
   }
 
-  public Object getAnyLessThan(long when) {
-    QObject cmp = (QObject)m_heap.peek();
+  /**
+   * Remove and return the earliest event due before the given time.
+   *
+   * @param when - The time (in milliseconds) to compare against.
+   *
+   * @return The entry for an event due before 'when', or null if none are.
+   */
+  public synchronized QObject takeAnyLessThan(long when) {
+    advance(when);
+    QObject cmp = peekDue();
     if(cmp != null && cmp.m_when < when) {
-      cmp = (QObject)m_heap.extract();
-      return cmp.m_event;
+      mDue.poll();
+      cmp.mFired = true;
+      mCount--;
+      return cmp;
     }
     return null;
   }
@@ -3,6 +3,7 @@ package com.jbidwatcher.util.queue;
 import com.jbidwatcher.util.config.JConfig;
 
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /*
  * Copyright (c) 2000-2007, CyberFOX Software, Inc. All Rights Reserved.
@@ -11,8 +12,26 @@ import java.util.*;
  * Date: May 19, 2005
  * Time: 11:41:40 PM
  */
-public class TimeQueueManager implements TimerHandler.WakeupProcess {
+public class TimeQueueManager implements TimerHandler.DeadlineProcess {
+  /**
+   * How often (in ms) the timer thread should check the queue when it's
+   * polling ('timer.mode' is 'poll'), or when an event is overdue but
+   * check() couldn't deliver it yet.  Otherwise the timer sleeps until
+   * the next event is due.
+   */
+  public static final long CHECK_INTERVAL = 100;
+
   protected TimeQueue mTQ;
+  private TimerHandler mTimer = null;
+  //  The time of the event the timer is waiting for, so it's only woken when something earlier turns up.
+  private long mNextEvent = Long.MAX_VALUE;
+  //  If set, string-payload events are written through to the time_queue table, by this
+  //  rather than directly, so nothing holding this manager's lock waits on the database.
+  private Persister mPersister = null;
+  private static final List<Persister> sPersisters = new CopyOnWriteArrayList<Persister>();
+  //  Pending events, indexed by payload and by destination queue, so cancelling and lookup don't scan the queue.
+  private final Map<Object, Set<TimeQueue.QObject>> mByPayload = new HashMap<Object, Set<TimeQueue.QObject>>();
+  private final Map<String, Set<TimeQueue.QObject>> mByDestination = new HashMap<String, Set<TimeQueue.QObject>>();
 
   public TimeQueueManager() {
     mTQ = new TimeQueue();
@@ -23,12 +42,15 @@ public class TimeQueueManager implements TimerHandler.WakeupProcess {
     private String destination_queue;
     private long repeatRate;
     private int repeatCount;
+    private TimedEvent record = null;
 
     public Object getPayload() { return payload; }
     public String getDestinationQueue() { return destination_queue; }
     public long getRepeatRate() { return repeatRate; }
     public long getRepeatCount() { return repeatCount; }
     public void decrementCount() { repeatCount--; }
+    public TimedEvent getRecord() { return record; }
+    public void setRecord(TimedEvent event) { record = event; }
 
     public TQCarrier(Object o, String s, long r, int c) {
       destination_queue = s;
@@ -40,10 +62,29 @@ public class TimeQueueManager implements TimerHandler.WakeupProcess {
 
   protected long getCurrentTime() { return System.currentTimeMillis(); }
 
+  /**
+   * Tell the manager which timer is checking it, so that timer can be
+   * woken when an event is added ahead of the one it's waiting for.
+   *
+   * @param timer - The timer thread calling check().
+   */
+  public void setTimer(TimerHandler timer) { mTimer = timer; }
+
+  public long nextDeadline() {
+    long next;
+    synchronized(this) {
+      next = mTQ.nextEventTime();
+      mNextEvent = next;
+    }
+    if(next == TimerHandler.NO_DEADLINE) return next;
+
+    //  Event times are in queue time (e.g. eBay time), and they fire once that time has passed.
+    return next - (getCurrentTime() - System.currentTimeMillis()) + 1;
+  }
+
   public boolean check() {
-    Object deQ;
-    while( (deQ = mTQ.getAnyLessThan(getCurrentTime()+900)) != null) {
-      TQCarrier interim = (TQCarrier) deQ;
+    TQCarrier interim;
+    while( (interim = next(getCurrentTime())) != null) {
       MessageQueue q = MQFactory.getConcrete(interim.getDestinationQueue());
 
       Object payload = interim.getPayload();
@@ -51,13 +92,8 @@ public class TimeQueueManager implements TimerHandler.WakeupProcess {
         q.enqueueBean((QObject)payload);
       } else if (payload instanceof String) {
         q.enqueue((String) payload);
-      } else if(q instanceof PlainMessageQueue) {
-        ((PlainMessageQueue)q).enqueueObject(interim.getPayload());
       } else {
-        //  Payload isn't a QObject or String, and q isn't a plainMessageQueue.
-        //  Trying to submit an arbitrary object to the SwingMessageQueue?  Teh fail.
-        JConfig.log().logDebug("Submitting: " + payload.toString() + " to " + q.toString() + " will probably fail.");
-        q.enqueue(payload.toString());
+        q.enqueueObject(payload);
       }
       if(interim.getRepeatRate() != 0) {
         //  If there's a positive repeat count, decrement it once.
@@ -66,46 +102,253 @@ public class TimeQueueManager implements TimerHandler.WakeupProcess {
         }
         //  As long as repeat count hasn't reached zero, re-add it.
         if(interim.getRepeatCount() != 0) {
-          mTQ.addEvent(getCurrentTime()+interim.getRepeatRate(), interim);
+          schedule(getCurrentTime()+interim.getRepeatRate(), interim);
+          continue;
         }
       }
+      forget(interim);
     }
 
     return false;
   }
 
+  /**
+   * Pull the next event due before the given time off the queue, and
+   * drop it from the indexes.
+   *
+   * @param now - The current time.
+   *
+   * @return The carrier for an event which is due, or null if nothing is due yet.
+   */
+  private synchronized TQCarrier next(long now) {
+    TimeQueue.QObject due = mTQ.takeAnyLessThan(now);
+    if(due == null) return null;
+
+    unindex(due);
+    return (TQCarrier) due.getEvent();
+  }
+
+  private void schedule(long when, TQCarrier carrier) {
+    boolean earlier = false;
+    synchronized(this) {
+      persist(when, carrier);
+      TimeQueue.QObject qo = mTQ.addEvent(when, carrier);
+      index(mByPayload, carrier.getPayload(), qo);
+      index(mByDestination, carrier.getDestinationQueue(), qo);
+      if(when < mNextEvent) {
+        mNextEvent = when;
+        earlier = true;
+      }
+    }
+    if(earlier && mTimer != null) mTimer.reschedule();
+  }
+
+  /**
+   * Write an event through to the database, if this is a persistent
+   * queue.  Only string payloads are stored; anything else is expected to
+   * be re-created by whatever scheduled it.  The write is left to the
+   * Persister, so it doesn't hold up the caller.
+   */
+  private void persist(long when, TQCarrier carrier) {
+    if(mPersister == null || !(carrier.getPayload() instanceof String)) return;
+    if(((String) carrier.getPayload()).length() > 255) return;
+
+    mPersister.queue(carrier, new Change(when, (int) carrier.getRepeatCount(), false));
+  }
+
+  /**
+   * Drop the stored copy of an event that has fired for the last time or
+   * been erased.
+   */
+  private synchronized void forget(TQCarrier carrier) {
+    if(mPersister != null) mPersister.queue(carrier, new Change(0, 0, true));
+  }
+
+  //  What the stored copy of an event should become.
+  private static final class Change {
+    private final long mWhen;
+    private final int mCount;
+    private final boolean mDelete;
+
+    private Change(long when, int count, boolean delete) {
+      mWhen = when;
+      mCount = count;
+      mDelete = delete;
+    }
+  }
+
+  /**
+   * Writes the changes to the stored copies of events on a thread of its
+   * own, outside of the manager's lock, so firing a snipe or scheduling
+   * one never waits on the database.  Changes to the same event which
+   * haven't been written yet are collapsed into the latest.
+   */
+  private static final class Persister implements TimerHandler.DeadlineProcess {
+    //  Guarded by itself.
+    private final Map<TQCarrier, Change> mUnwritten = new LinkedHashMap<TQCarrier, Change>();
+    //  Only one drain writes at a time, so flush() returning means everything before it is written.
+    private final Object mWriteLock = new Object();
+    private final TimerHandler mTimer;
+
+    private Persister() {
+      mTimer = new TimerHandler(this);
+      mTimer.setName("TimeQueuePersister");
+      mTimer.start();
+    }
+
+    private void queue(TQCarrier carrier, Change change) {
+      synchronized(mUnwritten) {
+        mUnwritten.put(carrier, change);
+      }
+      mTimer.reschedule();
+    }
+
+    public long nextDeadline() {
+      synchronized(mUnwritten) {
+        return mUnwritten.isEmpty() ? TimerHandler.NO_DEADLINE : System.currentTimeMillis();
+      }
+    }
+
+    public boolean check() {
+      flush();
+      return true;
+    }
+
+    //  Write what's waiting, and stop.
+    private void stop() {
+      flush();
+      mTimer.interrupt();
+    }
+
+    private void flush() {
+      synchronized(mWriteLock) {
+        List<Map.Entry<TQCarrier, Change>> changes;
+        synchronized(mUnwritten) {
+          if(mUnwritten.isEmpty()) return;
+          changes = new ArrayList<Map.Entry<TQCarrier, Change>>(mUnwritten.entrySet());
+          mUnwritten.clear();
+        }
+        for(Map.Entry<TQCarrier, Change> entry : changes) {
+          write(entry.getKey(), entry.getValue());
+        }
+      }
+    }
+
+    //  The carrier's record is only ever touched here (and before the persister exists).
+    private void write(TQCarrier carrier, Change change) {
+      TimedEvent record = carrier.getRecord();
+      if(change.mDelete) {
+        if(record != null) {
+          record.delete();
+          carrier.setRecord(null);
+        }
+      } else if(record == null) {
+        carrier.setRecord(TimedEvent.create(carrier.getDestinationQueue(), (String) carrier.getPayload(), change.mWhen, carrier.getRepeatRate(), change.mCount));
+      } else {
+        record.reschedule(change.mWhen, change.mCount);
+      }
+    }
+  }
+
+  /**
+   * Write out every change to stored events that's still waiting; for shutting down.
+   */
+  public static void flushAll() {
+    for(Persister persister : sPersisters) persister.flush();
+  }
+
+  /**
+   * Make this a persistent queue, writing string-payload events through
+   * to the time_queue table, and reload whatever was stored there the
+   * last time it ran.  Events which should have fired while it wasn't
+   * running are thrown away.  Turning persistence off clears the table,
+   * so stale (possibly cancelled) events can't come back later.
+   *
+   * @param persistent - Whether to store events in the database.
+   *
+   * @return The number of events restored.
+   */
+  public synchronized int setPersistent(boolean persistent) {
+    if(!persistent) {
+      if(mPersister != null) {
+        sPersisters.remove(mPersister);
+        mPersister.stop();
+        mPersister = null;
+      }
+      TimedEvent.deleteAll();
+      return 0;
+    }
+
+    long now = getCurrentTime();
+    TimedEvent.deleteStale(now);
+    List<TimedEvent> pending = TimedEvent.findPending(now);
+    if(pending == null) return 0;
+
+    int restored = 0;
+    for(TimedEvent event : pending) {
+      TQCarrier carrier = createCarrier(event.getPayload(), event.getDestination(), event.getRepeatInterval(), event.getRepeatCount());
+      carrier.setRecord(event);
+      TimeQueue.QObject qo = mTQ.addEvent(event.getFireAt(), carrier);
+      index(mByPayload, carrier.getPayload(), qo);
+      index(mByDestination, carrier.getDestinationQueue(), qo);
+      restored++;
+    }
+    if(mPersister == null) {
+      mPersister = new Persister();
+      sPersisters.add(mPersister);
+    }
+    if(restored != 0 && mTimer != null) mTimer.reschedule();
+    return restored;
+  }
+
+  private static <K> void index(Map<K, Set<TimeQueue.QObject>> map, K key, TimeQueue.QObject qo) {
+    Set<TimeQueue.QObject> events = map.get(key);
+    if(events == null) {
+      events = new LinkedHashSet<TimeQueue.QObject>(2);
+      map.put(key, events);
+    }
+    events.add(qo);
+  }
+
+  private void unindex(TimeQueue.QObject qo) {
+    TQCarrier carrier = (TQCarrier) qo.getEvent();
+    unindex(mByPayload, carrier.getPayload(), qo);
+    unindex(mByDestination, carrier.getDestinationQueue(), qo);
+  }
+
+  private static <K> void unindex(Map<K, Set<TimeQueue.QObject>> map, K key, TimeQueue.QObject qo) {
+    Set<TimeQueue.QObject> events = map.get(key);
+    if(events == null) return;
+
+    events.remove(qo);
+    if(events.isEmpty()) map.remove(key);
+  }
+
   private TQCarrier createCarrier(Object payload, String destination, long repeat, int howmany) {
     return new TQCarrier(payload, destination, repeat, howmany);
   }
 
   public void add(Object payload, String destination, long when) {
-    mTQ.addEvent(when, createCarrier(payload, destination, 0, 1));
+    schedule(when, createCarrier(payload, destination, 0, 1));
   }
 
   public void add(Object payload, String destination, long when, long repeat) {
-    mTQ.addEvent(when, createCarrier(payload, destination, repeat, -1));
+    schedule(when, createCarrier(payload, destination, repeat, -1));
   }
 
   public void add(Object payload, String destination, long when, long repeat, int howmany) {
-    mTQ.addEvent(when, createCarrier(payload, destination, repeat, howmany));
+    schedule(when, createCarrier(payload, destination, repeat, howmany));
   }
 
-  public boolean erase(Object payload) {
-    List<TimeQueue.QObject> doErase = new ArrayList<TimeQueue.QObject>();
-    List current = mTQ.getUnsorted();
+  public synchronized boolean erase(Object payload) {
+    Set<TimeQueue.QObject> events = mByPayload.remove(payload);
+    if(events == null) return false;
+
     boolean didErase = false;
-    for(Object aCurrent : current) {
-      TimeQueue.QObject tqo = (TimeQueue.QObject) aCurrent;
-      TQCarrier event = (TQCarrier) tqo.getEvent();
-      if (event.getPayload() == payload || event.getPayload().equals(payload)) {
-        doErase.add(tqo);
-        didErase = true;
-      }
-    }
-    if(didErase) {
-      for (TimeQueue.QObject delMe : doErase) {
-        mTQ.erase(delMe);
-      }
+    for(TimeQueue.QObject delMe : events) {
+      didErase |= mTQ.erase(delMe);
+      unindex(mByDestination, ((TQCarrier) delMe.getEvent()).getDestinationQueue(), delMe);
+      forget((TQCarrier) delMe.getEvent());
     }
     return didErase;
   }
@@ -114,34 +357,73 @@ public class TimeQueueManager implements TimerHandler.WakeupProcess {
     public boolean match(Object payload, Object queue, long when);
   }
 
-  public boolean contains(Matcher m) {
-    for(Object o : mTQ.getUnsorted()) {
-      TimeQueue.QObject qo = (TimeQueue.QObject) o;
+  public synchronized boolean contains(Matcher m) {
+    for(TimeQueue.QObject qo : mTQ.getUnsorted()) {
       TQCarrier carrier = (TQCarrier) qo.getEvent();
       if(m.match(carrier.getPayload(), carrier.getDestinationQueue(), qo.getTime())) return true;
     }
     return false;
   }
 
-  public boolean contains(Object payload) {
-    for(Object o : mTQ.getUnsorted()) {
-      TimeQueue.QObject qo = (TimeQueue.QObject)o;
-      TQCarrier carrier = (TQCarrier) qo.getEvent();
-      if(payload.equals(carrier.getPayload())) return true;
+  public synchronized boolean contains(Object payload) {
+    return mByPayload.containsKey(payload);
+  }
+
+  /**
+   * Check if a payload is waiting to be delivered to a particular queue.
+   *
+   * @param payload - The payload to look for.
+   * @param destination - The name of the queue it would be delivered to.
+   *
+   * @return true if there's a pending event with that payload for that queue.
+   */
+  public synchronized boolean contains(Object payload, String destination) {
+    Set<TimeQueue.QObject> events = mByPayload.get(payload);
+    if(events == null) return false;
+
+    for(TimeQueue.QObject qo : events) {
+      if(((TQCarrier) qo.getEvent()).getDestinationQueue().equals(destination)) return true;
     }
+    return false;
+  }
 
+  /**
+   * Check if a payload is waiting to be delivered to a particular queue at a particular time.
+   *
+   * @param payload - The payload to look for.
+   * @param destination - The name of the queue it would be delivered to.
+   * @param when - The time it should be delivered at.
+   *
+   * @return true if there's a pending event with that payload for that queue, at exactly that time.
+   */
+  public synchronized boolean contains(Object payload, String destination, long when) {
+    Set<TimeQueue.QObject> events = mByPayload.get(payload);
+    if(events == null) return false;
+
+    for(TimeQueue.QObject qo : events) {
+      if(qo.getTime() == when && ((TQCarrier) qo.getEvent()).getDestinationQueue().equals(destination)) return true;
+    }
     return false;
   }
 
+  /**
+   * @param destination - The name of a queue.
+   *
+   * @return The number of events waiting to be delivered to that queue.
+   */
+  public synchronized int countFor(String destination) {
+    Set<TimeQueue.QObject> events = mByDestination.get(destination);
+    return events == null ? 0 : events.size();
+  }
+
   public void dumpQueue(String prefix) {
-    List current = mTQ.getSorted();
+    List<TimeQueue.QObject> current = mTQ.getSorted();
 
     if(current.isEmpty()) {
       JConfig.log().logDebug(prefix + ": queue empty");
     }
 
-    for(Object aCurrent : current) {
-      TimeQueue.QObject step = (TimeQueue.QObject) aCurrent;
+    for(TimeQueue.QObject step : current) {
       TQCarrier event = (TQCarrier) step.getEvent();
       JConfig.log().logDebug(prefix + ": Queue: " + event.getDestinationQueue());
       JConfig.log().logDebug(prefix + ": Object: [" + event.getPayload() + "]");
@@ -0,0 +1,96 @@
+package com.jbidwatcher.util.queue;
+
+import com.jbidwatcher.util.db.ActiveRecord;
+import com.jbidwatcher.util.db.Table;
+
+import java.sql.Timestamp;
+import java.util.List;
+
+/**
+ * Database-backed copy of an event waiting in a TimeQueueManager, so a
+ * persistent queue (i.e. the snipe schedule) can be rebuilt at startup
+ * without recalculating it from every entry.
+ *
+ * Times are stored with their milliseconds, as snipes fire on them.
+ */
+public class TimedEvent extends ActiveRecord {
+  public TimedEvent() { }
+
+  public static TimedEvent create(String destination, String payload, long when, long repeat, int count) {
+    TimedEvent event = new TimedEvent();
+    event.setString("destination", destination);
+    event.setString("payload", payload);
+    event.setFireAt(when);
+    event.setInteger("repeat_interval", (int) repeat);
+    event.setInteger("repeat_count", count);
+    event.saveDB();
+
+    return event;
+  }
+
+  public String getDestination() { return getString("destination"); }
+  public String getPayload() { return getString("payload"); }
+  public long getRepeatInterval() { return getInteger("repeat_interval", 0); }
+  public int getRepeatCount() { return getInteger("repeat_count", 1); }
+
+  public long getFireAt() {
+    String fireAt = get("fire_at");
+    return fireAt == null ? 0 : Timestamp.valueOf(fireAt).getTime();
+  }
+
+  public void setFireAt(long when) {
+    setString("fire_at", new Timestamp(when).toString());
+  }
+
+  /**
+   * Move a repeating event on to its next firing.
+   *
+   * @param when - The next time it's due.
+   * @param count - The number of times it has left to fire.
+   */
+  public void reschedule(long when, int count) {
+    setFireAt(when);
+    setInteger("repeat_count", count);
+    saveDB();
+  }
+
+  private static Table sDB = null;
+  protected static String getTableName() { return "time_queue"; }
+  protected Table getDatabase() {
+    if (sDB == null) {
+      sDB = openDB(getTableName());
+    }
+    return sDB;
+  }
+
+  /**
+   * Load everything due at or after a given time, soonest first; this is
+   * a single range scan of the fire_at index.
+   *
+   * @param since - The earliest time to load events for.
+   *
+   * @return The pending events.
+   */
+  @SuppressWarnings({"unchecked"})
+  public static List<TimedEvent> findPending(long since) {
+    return (List<TimedEvent>) findAllByPrepared(TimedEvent.class,
+        "SELECT * FROM time_queue WHERE fire_at >= ? ORDER BY fire_at", new Timestamp(since).toString());
+  }
+
+  /**
+   * Throw away events which should already have fired.
+   *
+   * @param before - Events due before this time are deleted.
+   *
+   * @return true if the delete succeeded.
+   */
+  public static boolean deleteStale(long before) {
+    Table db = new TimedEvent().getDatabase();
+    return db != null && db.deleteBy("fire_at < ?", new Timestamp(before).toString());
+  }
+
+  public static boolean deleteAll() {
+    Table db = new TimedEvent().getDatabase();
+    return db != null && db.deleteBy("1=1");
+  }
+}
@@ -22,18 +22,41 @@ import com.jbidwatcher.util.config.JConfig;
  *
  * @brief Provides once-a-second callbacks to classes that extend it.
  *
+ * If the process being woken is a DeadlineProcess, and 'timer.mode'
+ * isn't set to 'poll', the thread instead parks until the process's
+ * next deadline (or until reschedule() is called because an earlier
+ * event turned up), rather than waking up every interval to find out
+ * there's nothing to do.
  */
 
 public class TimerHandler extends Thread {
   private static final int ALMOST_A_SECOND = 990;
+  //  Never park longer than this, so a clock change or a machine suspend can't leave a deadline waiting much too long.
+  private static final long MAX_PARK = 10 * 1000;
+  public static final long NO_DEADLINE = Long.MAX_VALUE;
+
   private WakeupProcess _toWake = null;
   private volatile boolean _remainAsleep = false;
   private long _sleep_ms = ALMOST_A_SECOND;
+  private final Object mParkLock = new Object();
+  private boolean mRescheduled = false;
 
   public interface WakeupProcess {
     boolean check() throws InterruptedException;
   }
 
+  /**
+   * A WakeupProcess that can say when it next has something to do, so
+   * the timer doesn't have to keep waking it up to find out.
+   */
+  public interface DeadlineProcess extends WakeupProcess {
+    /**
+     * @return The local time (in ms, as System.currentTimeMillis()) that
+     * check() should next be called, or NO_DEADLINE if nothing is pending.
+     */
+    long nextDeadline();
+  }
+
   public TimerHandler(WakeupProcess inWake, long sleeptime) {
     _toWake = inWake;
     _sleep_ms = sleeptime;
@@ -49,6 +72,39 @@ public class TimerHandler extends Thread {
   public void unpause() { _remainAsleep = false; }
   public boolean isPaused() { return _remainAsleep; }
 
+  /**
+   * Wake the timer so it asks for the next deadline again; called when
+   * an event earlier than anything already pending has been added.
+   */
+  public void reschedule() {
+    synchronized(mParkLock) {
+      mRescheduled = true;
+      mParkLock.notifyAll();
+    }
+  }
+
+  private boolean isDeadlineDriven() {
+    return _toWake instanceof DeadlineProcess && !JConfig.queryConfiguration("timer.mode", "deadline").equals("poll");
+  }
+
+  /**
+   * Park until the process's next deadline, or until reschedule() is
+   * called.  If the deadline has already passed (the last check() couldn't
+   * act on it), fall back to the polling interval rather than spinning.
+   */
+  private void park() throws InterruptedException {
+    long maxPark = Math.max(_sleep_ms, MAX_PARK);
+    //  Ask for the deadline outside the lock; anything added after this will have set mRescheduled.
+    long deadline = ((DeadlineProcess)_toWake).nextDeadline();
+    long delay = deadline == NO_DEADLINE ? maxPark : Math.min(deadline - System.currentTimeMillis(), maxPark);
+    if(delay <= 0) delay = _sleep_ms;
+
+    synchronized(mParkLock) {
+      if(!mRescheduled) mParkLock.wait(delay);
+      mRescheduled = false;
+    }
+  }
+
   public void run() {
     JConfig.registerTimer(this);
     boolean interrupted = false;
@@ -57,7 +113,11 @@ public class TimerHandler extends Thread {
         interrupted = true;
       } else {
         try {
-          sleep(_sleep_ms);
+          if(isDeadlineDriven()) {
+            park();
+          } else {
+            sleep(_sleep_ms);
+          }
           if (!_remainAsleep) {
             _toWake.check();
           }
@@ -0,0 +1,88 @@
+package com.jbidwatcher.auction;
+
+import com.jbidwatcher.util.Constants;
+import com.jbidwatcher.util.queue.TimerHandler;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check that the in-memory schedule hands out the same entries the old
+ * update queries would have, at the same times.
+ */
+public class UpdateScheduleTest {
+  private static final long NOW = 1000000000000L;
+
+  @Test
+  public void regularAndEndingIntervals() {
+    UpdateSchedule schedule = new UpdateSchedule();
+    //  Updated 10 minutes ago, ends in two days; due 69 minutes after its update.
+    schedule.schedule("far", new Date(NOW - 10 * Constants.ONE_MINUTE), new Date(NOW + 2 * Constants.ONE_DAY), false);
+    //  Ends in 10 minutes; due a minute after its update.
+    schedule.schedule("soon", new Date(NOW - 30 * Constants.ONE_SECOND), new Date(NOW + 10 * Constants.ONE_MINUTE), false);
+    //  Ends in 40 minutes; due once it's within 25 minutes of the end.
+    schedule.schedule("later", new Date(NOW - 30 * Constants.ONE_SECOND), new Date(NOW + 40 * Constants.ONE_MINUTE), false);
+    schedule.schedule("done", new Date(NOW - Constants.ONE_DAY), new Date(NOW - Constants.ONE_DAY), true);
+
+    assertEquals(3, schedule.size());
+    assertEquals(NOW + 30 * Constants.ONE_SECOND, schedule.nextDue());
+    assertTrue(schedule.takeDue(NOW).isEmpty());
+    assertEquals(Collections.singletonList("soon"), schedule.takeDue(NOW + 30 * Constants.ONE_SECOND));
+    //  Taken entries are put back as if they'd been updated, so 'soon' is due again a minute later.
+    assertEquals(Arrays.asList("soon", "later"), schedule.takeDue(NOW + 15 * Constants.ONE_MINUTE));
+    assertEquals(Arrays.asList("soon", "later", "far"), schedule.takeDue(NOW + 59 * Constants.ONE_MINUTE));
+  }
+
+  @Test
+  public void manualUpdatesComeFirst() {
+    UpdateSchedule schedule = new UpdateSchedule();
+    schedule.schedule("active", new Date(NOW - Constants.ONE_DAY), new Date(NOW + Constants.ONE_DAY), false);
+    schedule.schedule("manual", null, new Date(NOW + Constants.ONE_DAY), false);
+    schedule.schedule("ended", null, new Date(NOW - Constants.ONE_DAY), true);
+
+    assertEquals(Arrays.asList("ended", "manual", "active"), schedule.takeDue(NOW));
+
+    schedule.forceAll();
+    assertEquals(Arrays.asList("ended", "active", "manual"), schedule.takeDue(NOW));
+  }
+
+  @Test
+  public void whatIsPutBackStaysDue() {
+    UpdateSchedule schedule = new UpdateSchedule();
+    schedule.schedule("active", new Date(NOW - Constants.ONE_DAY), new Date(NOW + Constants.ONE_DAY), false);
+    schedule.schedule("manual", null, new Date(NOW + Constants.ONE_DAY), false);
+
+    //  A pause starts before either is updated, so the updater puts them both back.
+    assertEquals(Arrays.asList("manual", "active"), schedule.takeDue(NOW));
+    schedule.putBack("manual");
+    schedule.putBack("active");
+    assertEquals(0, schedule.nextDue());
+
+    //  Once it's over, they're handed out again, the one asked for still first.
+    assertEquals(Arrays.asList("manual", "active"), schedule.takeDue(NOW + Constants.ONE_MINUTE * 5));
+
+    //  One saved since it was taken keeps its new schedule.
+    schedule.schedule("manual", new Date(NOW + Constants.ONE_MINUTE * 5), new Date(NOW + Constants.ONE_DAY), false);
+    schedule.putBack("manual");
+    assertEquals(NOW + Constants.ONE_MINUTE * 5 + UpdateSchedule.REGULAR, schedule.nextDue());
+  }
+
+  @Test
+  public void savesAndDeletesReschedule() {
+    UpdateSchedule schedule = new UpdateSchedule();
+    schedule.schedule("one", null, new Date(NOW + Constants.ONE_DAY), false);
+    schedule.schedule("one", new Date(NOW), new Date(NOW + Constants.ONE_DAY), false);
+    assertEquals(NOW + UpdateSchedule.REGULAR, schedule.nextDue());
+
+    schedule.schedule("one", new Date(NOW), new Date(NOW + Constants.ONE_DAY), true);
+    assertEquals(0, schedule.size());
+
+    schedule.schedule("two", null, null, false);
+    schedule.unschedule("two");
+    assertEquals(TimerHandler.NO_DEADLINE, schedule.nextDue());
+  }
+}
@@ -0,0 +1,60 @@
+package com.jbidwatcher.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check that the cache stays within its size, keeps what's used over
+ * what's only been seen once, and never evicts what's pinned.
+ */
+public class BoundedCacheTest {
+  @Test
+  public void staysWithinItsSize() {
+    final List<String> evicted = new ArrayList<String>();
+    BoundedCache<String, String> cache = new BoundedCache<String, String>(5, new BoundedCache.Listener<String, String>() {
+      public void evicted(String key, String value) { evicted.add(key); }
+    });
+    for(int i = 0; i < 8; i++) cache.put("k" + i, "v" + i);
+
+    assertEquals(5, cache.size());
+    assertEquals(3, cache.getEvictions());
+    assertEquals("k0", evicted.get(0));
+    assertNull(cache.get("k0"));
+    assertEquals("v7", cache.get("k7"));
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+
+  @Test
+  public void usedValuesOutlastAScan() {
+    BoundedCache<String, String> cache = new BoundedCache<String, String>(10);
+    cache.put("used", "u");
+    cache.get("used");
+    for(int i = 0; i < 50; i++) cache.put("scan" + i, "s");
+
+    assertEquals("u", cache.get("used"));
+    assertEquals(10, cache.size());
+  }
+
+  @Test
+  public void pinnedValuesAreNeverEvicted() {
+    BoundedCache<String, String> cache = new BoundedCache<String, String>(2);
+    cache.put("sniped", "s");
+    assertTrue(cache.pin("sniped"));
+    for(int i = 0; i < 10; i++) cache.put("k" + i, "v");
+
+    assertEquals("s", cache.peek("sniped"));
+    assertEquals(3, cache.size());
+    cache.put("sniped", "s2");
+    assertTrue(cache.isPinned("sniped"));
+
+    cache.unpin("sniped");
+    for(int i = 10; i < 20; i++) cache.put("k" + i, "v");
+    assertNull(cache.peek("sniped"));
+    assertFalse(cache.pin("missing"));
+  }
+}
@@ -0,0 +1,74 @@
+package com.jbidwatcher.util;
+
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check that HashBacked knows exactly which columns changed, and keeps
+ * parsed values only as long as the text they came from.
+ */
+public class HashBackedTest {
+  @Test
+  public void tracksChangedColumns() {
+    Record r = new Record();
+    r.put("id", "1");
+    r.put("title", "old");
+    HashBacked hb = new HashBacked(r);
+    assertFalse(hb.isDirty());
+    assertTrue(hb.getDirtyColumns().isEmpty());
+
+    hb.set("title", "old");
+    assertFalse(hb.isDirty());
+
+    hb.set("title", "new");
+    hb.set("seller", "someone");
+    Set<String> dirty = hb.getDirtyColumns();
+    assertTrue(hb.isDirty());
+    assertEquals(2, dirty.size());
+    assertTrue(dirty.contains("title"));
+    assertTrue(dirty.contains("seller"));
+
+    hb.clearDirty();
+    assertFalse(hb.isDirty());
+    assertTrue(hb.getDirtyColumns().isEmpty());
+  }
+
+  @Test
+  public void wholeRowWhenUnspecified() {
+    HashBacked hb = new HashBacked();
+    hb.set("title", "new");
+    hb.setDirty();
+    assertTrue(hb.isDirty());
+    assertNull(hb.getDirtyColumns());
+
+    hb.setBacking(new Record());
+    assertFalse(hb.isDirty());
+    assertNotNull(hb.getDirtyColumns());
+  }
+
+  @Test
+  public void typedValuesFollowTheText() {
+    Record r = new Record();
+    r.putTyped("quantity", "3", 3);
+    r.putTyped("ending_at", "2026-10-17 12:34:56.0", new Date(1000));
+    HashBacked hb = new HashBacked(r);
+    assertEquals(Integer.valueOf(3), hb.getInteger("quantity"));
+    assertEquals(1000, hb.getDate("ending_at").getTime());
+
+    hb.getDate("ending_at").setTime(0);
+    assertEquals(1000, hb.getDate("ending_at").getTime());
+
+    hb.setInteger("quantity", 5);
+    assertNull(r.getTyped("quantity"));
+    assertEquals(Integer.valueOf(5), hb.getInteger("quantity"));
+    assertEquals(5, r.getTyped("quantity"));
+
+    Record copy = new Record();
+    copy.putAll(r);
+    assertEquals(5, copy.getTyped("quantity"));
+  }
+}
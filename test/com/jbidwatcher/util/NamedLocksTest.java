@@ -0,0 +1,62 @@
+package com.jbidwatcher.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check that names lock re-entrantly, that releasing what isn't held is
+ * harmless, that waiting for a held name is counted and can time out,
+ * that other names are never held up, and that no lock outlives its use.
+ */
+public class NamedLocksTest {
+  @Test
+  public void locksAreReentrantByName() {
+    NamedLocks locks = new NamedLocks(10000);
+    locks.lock("a");
+    locks.lock("a");
+    assertTrue(locks.unlock("a"));
+    assertTrue(locks.isHeldByCurrentThread("a"));
+    assertTrue(locks.unlock("a"));
+    assertFalse(locks.isHeldByCurrentThread("a"));
+    assertFalse(locks.unlock("a"));
+    assertFalse(locks.unlock("never locked"));
+    assertEquals(2, locks.getAcquired());
+    assertEquals(0, locks.size());
+  }
+
+  @Test
+  public void onlyTheHeldNameWaits() throws InterruptedException {
+    final NamedLocks locks = new NamedLocks(10000);
+    final CountDownLatch locked = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(1);
+    Thread holder = new Thread() {
+      public void run() {
+        locks.lock("held");
+        locked.countDown();
+        try { done.await(); } catch(InterruptedException ignored) { }
+        locks.unlock("held");
+      }
+    };
+    holder.start();
+    locked.await();
+
+    assertTrue(locks.tryLock("other", 0));
+    assertTrue(locks.unlock("other"));
+    assertEquals(0, locks.getContended());
+
+    assertFalse(locks.tryLock("held", 50));
+    assertEquals(1, locks.getContended());
+    assertEquals(1, locks.getTimedOut());
+    assertEquals(1, locks.size());
+
+    done.countDown();
+    holder.join();
+    assertEquals(0, locks.size());
+    assertTrue(locks.tryLock("held", 1000));
+    assertTrue(locks.unlock("held"));
+    assertEquals(0, locks.size());
+  }
+}
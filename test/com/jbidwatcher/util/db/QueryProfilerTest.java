@@ -0,0 +1,27 @@
+package com.jbidwatcher.util.db;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check that statements which differ only in their values share a shape.
+ */
+public class QueryProfilerTest {
+  @Test
+  public void valuesAreTakenOut() {
+    assertEquals("SELECT * FROM entries WHERE id = ? AND comment = ?",
+        QueryProfiler.normalize("SELECT *  FROM entries\n  WHERE id = 42 AND comment = 'it''s 3'"));
+    assertEquals("SELECT * FROM auctions WHERE ending_at > ? AND col2 = ?",
+        QueryProfiler.normalize("SELECT * FROM auctions WHERE ending_at > ? AND col2 = -1.5"));
+  }
+
+  @Test
+  public void inListsOfAnyLengthMatch() {
+    String two = QueryProfiler.normalize("SELECT * FROM auctions WHERE id IN (?, ?)");
+    String many = QueryProfiler.normalize("SELECT * FROM auctions WHERE id IN (?,?,?,?,?)");
+    assertEquals(two, QueryProfiler.normalize("SELECT * FROM auctions WHERE id IN (?)"));
+    assertEquals("SELECT * FROM auctions WHERE id IN (...)", two);
+    assertEquals(two, many);
+  }
+}
@@ -0,0 +1,69 @@
+package com.jbidwatcher.util.db;
+
+import com.jbidwatcher.util.Record;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check that cached results only last until a table they were read from
+ * is written, and that nothing else throws them away.
+ */
+public class ResultCacheTest {
+  private static List<Record> row(String name) {
+    Record r = new Record();
+    r.put("name", name);
+    return Collections.singletonList(r);
+  }
+
+  @Test
+  public void writesToTheTableReadInvalidate() {
+    ResultCache cache = ResultCache.getInstance();
+    cache.register("rc_cats");
+    cache.register("rc_sellers");
+    String sql = "SELECT * FROM rc_cats WHERE name = ?";
+
+    assertNull(cache.get(sql, 0, "a"));
+    cache.put(sql, 0, cache.stamp(sql), row("a"), "a");
+    assertEquals("a", cache.get(sql, 0, "a").get(0).get("name"));
+    assertNull(cache.get(sql, 0, "b"));
+
+    cache.written("UPDATE rc_sellers SET name = 'x'");
+    assertNotNull(cache.get(sql, 0, "a"));
+
+    cache.written("INSERT INTO rc_cats (name) VALUES ('c')");
+    assertNull(cache.get(sql, 0, "a"));
+  }
+
+  @Test
+  public void hitsAreCopies() {
+    ResultCache cache = ResultCache.getInstance();
+    cache.register("rc_copies");
+    String sql = "SELECT * FROM rc_copies WHERE id = ?";
+    cache.put(sql, 1, cache.stamp(sql), row("original"), "1");
+
+    cache.get(sql, 1, "1").get(0).put("name", "changed");
+    assertEquals("original", cache.get(sql, 1, "1").get(0).get("name"));
+  }
+
+  @Test
+  public void writesWhileReadingAreNotCached() {
+    ResultCache cache = ResultCache.getInstance();
+    cache.register("rc_race");
+    String sql = "SELECT * FROM rc_race e JOIN rc_other a ON a.id = e.other_id";
+    cache.register("rc_other");
+
+    Object stamp = cache.stamp(sql);
+    cache.bump("rc_other");
+    cache.put(sql, 0, stamp, row("stale"));
+    assertNull(cache.get(sql, 0));
+
+    cache.put(sql, 0, cache.stamp(sql), row("fresh"));
+    assertNotNull(cache.get(sql, 0));
+    cache.invalidateAll();
+    assertNull(cache.get(sql, 0));
+  }
+}
@@ -0,0 +1,66 @@
+package com.jbidwatcher.util.db;
+
+import com.cyberfox.util.config.ErrorManagement;
+import com.jbidwatcher.Upgrader;
+import com.jbidwatcher.util.Record;
+import com.jbidwatcher.util.config.JConfig;
+
+/**
+ * Compares how many statements Derby has to compile, and how long the
+ * lookups take, when an auction is found by identifier with the value
+ * spliced into the SQL (as AuctionInfo.findByIdentifier used to) versus
+ * passed as a parameter to a cached prepared statement.
+ *
+ * Every distinct SQL string is a separate compile, so the spliced form
+ * compiles once per identifier (and again whenever it falls out of the
+ * statement cache), while the parameterized form compiles once.  Run it
+ * with: java com.jbidwatcher.util.db.StatementCacheBenchmark {home directory} [identifiers] [passes]
+ */
+@SuppressWarnings({"UseOfSystemOutOrSystemErr"})
+public class StatementCacheBenchmark {
+  private static final String SPLICED = "SELECT * FROM auctions WHERE id IN (SELECT Max(id) FROM auctions WHERE identifier = '%s')";
+  private static final String PARAMETERIZED = "SELECT * FROM auctions WHERE id IN (SELECT Max(id) FROM auctions WHERE identifier = ?)";
+
+  private static void measure(String name, Table auctions, int identifiers, int passes, boolean spliced) {
+    long compiled = Database.getPreparedCount();
+    long reused = Database.getReusedCount();
+    long start = System.nanoTime();
+    int found = 0;
+    for(int pass = 0; pass < passes; pass++) {
+      for(int i = 0; i < identifiers; i++) {
+        String identifier = "bench" + i;
+        Record r = spliced ? auctions.findFirst(String.format(SPLICED, identifier)) : auctions.findFirst(PARAMETERIZED, identifier);
+        if(r != null) found++;
+      }
+    }
+    long elapsed = System.nanoTime() - start;
+    System.out.println(String.format("%-14s %6d lookups (%d found)  %6d compiled  %6d reused  %8.1fus/lookup", name,
+        identifiers * passes, found, Database.getPreparedCount() - compiled, Database.getReusedCount() - reused,
+        elapsed / 1000.0 / (identifiers * passes)));
+  }
+
+  public static void main(String[] args) throws Exception {
+    JConfig.setLogger(new ErrorManagement());
+    JConfig.setHomeDirectory(args[0]);
+    JConfig.setConfiguration("db.user", "test_tables");
+    int identifiers = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+    int passes = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+    Upgrader.upgrade();
+
+    Table auctions = new Table("auctions");
+    auctions.deleteBy("identifier LIKE ?", "bench%");
+    for(int i = 0; i < identifiers; i++) {
+      Record r = new Record();
+      r.put("identifier", "bench" + i);
+      auctions.storeMap(r);
+    }
+
+    //  Warm up the class loading and Derby's own caches, then measure each way.
+    measure("warmup", auctions, identifiers / 10, 1, false);
+    measure("spliced", auctions, identifiers, passes, true);
+    measure("parameterized", auctions, identifiers, passes, false);
+
+    auctions.deleteBy("identifier LIKE ?", "bench%");
+    ActiveRecord.shutdown();
+  }
+}
@@ -7,6 +7,7 @@ import com.jbidwatcher.util.Record;
 import com.jbidwatcher.util.HashBacked;
 import com.jbidwatcher.Upgrader;
 
+import java.util.Arrays;
 import java.util.List;
 import java.sql.Savepoint;
 
@@ -44,7 +45,9 @@ public class TableTest extends TestCase {
 
   public void testInsertData() throws Exception {
     Table t = new Table("categories");
-    mSavepoint = t.getDB().getConnection().setSavepoint();
+    //  Holding a connection makes the table use it too, so the savepoint covers its work.
+    Database db = ConnectionPool.getInstance().acquire();
+    mSavepoint = db.getConnection().setSavepoint();
     assert(t.execute("DELETE FROM categories"));
     Record r = new Record();
     r.put("id", "1");
@@ -56,14 +59,113 @@ public class TableTest extends TestCase {
       System.err.println(h.dumpRecord());
     }
     assertEquals(1, t.count());
-    t.getDB().getConnection().rollback(mSavepoint);
+    db.getConnection().rollback(mSavepoint);
+    ConnectionPool.getInstance().release(db);
   }
 
   public void testDeleteData() throws Exception {
     Table t = new Table("categories");
-    mSavepoint = t.getDB().getConnection().setSavepoint();
+    Database db = ConnectionPool.getInstance().acquire();
+    mSavepoint = db.getConnection().setSavepoint();
     assert(t.execute("DELETE FROM categories"));
-    t.getDB().getConnection().rollback(mSavepoint);
+    db.getConnection().rollback(mSavepoint);
     t.commit();
+    ConnectionPool.getInstance().release(db);
+  }
+
+  private static Record copy(Record row) {
+    Record copy = new Record();
+    copy.putAll(row);
+    return copy;
+  }
+
+  private static Record stored(Table t, String id) {
+    return t.findFirst("SELECT * FROM auctions WHERE id = ?", id);
+  }
+
+  private static String versionedRow(Table t, String identifier) {
+    t.execute("DELETE FROM auctions WHERE identifier = ?", identifier);
+    Record r = new Record();
+    r.put("identifier", identifier);
+    r.put("title", "original title");
+    r.put("location", "original location");
+    return t.storeMap(r);
+  }
+
+  public void testUpdateWritesOverChangesToOtherColumns() throws Exception {
+    Table t = new Table("auctions");
+    String id = versionedRow(t, "tabletest-merge");
+    try {
+      Record original = stored(t, id);
+      assertEquals("0", original.get("lock_version"));
+
+      Record first = copy(original);
+      first.put("title", "first title");
+      assertEquals(id, t.update(first, Arrays.asList("title"), original));
+      assertEquals("1", first.get("lock_version"));
+
+      //  Read at version 0 too, but it only changes the location.
+      Record second = copy(original);
+      second.put("location", "second location");
+      assertEquals(id, t.update(second, Arrays.asList("location"), original));
+      assertEquals("2", second.get("lock_version"));
+
+      Record now = stored(t, id);
+      assertEquals("first title", now.get("title"));
+      assertEquals("second location", now.get("location"));
+      assertEquals("2", now.get("lock_version"));
+    } finally {
+      t.execute("DELETE FROM auctions WHERE identifier = ?", "tabletest-merge");
+    }
+  }
+
+  public void testUpdateRefusesChangesToTheSameColumns() throws Exception {
+    Table t = new Table("auctions");
+    String id = versionedRow(t, "tabletest-clash");
+    try {
+      Record original = stored(t, id);
+
+      Record first = copy(original);
+      first.put("title", "first title");
+      assertEquals(id, t.update(first, Arrays.asList("title"), original));
+
+      Record second = copy(original);
+      second.put("title", "second title");
+      assertNull(t.update(second, Arrays.asList("title"), original));
+
+      //  A whole row read before the first change is refused, even though the title is all it changed.
+      Record whole = copy(original);
+      whole.put("location", "whole row location");
+      assertNull(t.update(whole, null, original));
+
+      Record now = stored(t, id);
+      assertEquals("first title", now.get("title"));
+      assertEquals("original location", now.get("location"));
+      assertEquals("1", now.get("lock_version"));
+    } finally {
+      t.execute("DELETE FROM auctions WHERE identifier = ?", "tabletest-clash");
+    }
+  }
+
+  public void testUpdateWithoutAVersionIsUnchecked() throws Exception {
+    Table t = new Table("auctions");
+    String id = versionedRow(t, "tabletest-unversioned");
+    try {
+      Record original = stored(t, id);
+
+      Record first = copy(original);
+      first.put("title", "first title");
+      assertEquals(id, t.update(first, Arrays.asList("title"), original));
+
+      Record unversioned = copy(original);
+      unversioned.remove("lock_version");
+      unversioned.put("title", "unversioned title");
+      assertEquals(id, t.update(unversioned, Arrays.asList("title"), original));
+
+      Record now = stored(t, id);
+      assertEquals("unversioned title", now.get("title"));
+    } finally {
+      t.execute("DELETE FROM auctions WHERE identifier = ?", "tabletest-unversioned");
+    }
   }
 }
@@ -0,0 +1,118 @@
+package com.jbidwatcher.util.queue;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+
+/**
+ * Compares enqueue latency under contention between the old mailbox (a
+ * LinkedList guarded by synchronized, with wait/notifyAll) and MpscQueue.
+ *
+ * Three producer threads, standing in for the update, search and snipe
+ * threads, send as fast as they can while one consumer drains.  Each
+ * round is run several times to warm up before being measured.  Run it
+ * with: java com.jbidwatcher.util.queue.MailboxBenchmark [messages per producer]
+ */
+@SuppressWarnings({"UseOfSystemOutOrSystemErr"})
+public class MailboxBenchmark {
+  private static final String[] PRODUCERS = { "update", "search", "snipe" };
+  private static final int WARMUPS = 5;
+  private static final int ROUNDS = 5;
+
+  private interface Mailbox {
+    void offer(Object o);
+    Object take() throws InterruptedException;
+  }
+
+  private static class LockedMailbox implements Mailbox {
+    private final LinkedList<Object> mQueue = new LinkedList<Object>();
+
+    public void offer(Object o) {
+      synchronized(mQueue) {
+        mQueue.addLast(o);
+        mQueue.notifyAll();
+      }
+    }
+
+    public Object take() throws InterruptedException {
+      synchronized(mQueue) {
+        while(mQueue.isEmpty()) mQueue.wait();
+        return mQueue.removeFirst();
+      }
+    }
+  }
+
+  private static class LockFreeMailbox implements Mailbox {
+    private final MpscQueue<Object> mQueue = new MpscQueue<Object>();
+
+    public void offer(Object o) { mQueue.offer(o); }
+
+    public Object take() throws InterruptedException {
+      Object o;
+      while((o = mQueue.poll()) == null) mQueue.await();
+      return o;
+    }
+  }
+
+  /**
+   * @return The enqueue latency (in ns) of every message sent in the round.
+   */
+  private static long[] round(final Mailbox box, final int perProducer) throws InterruptedException {
+    final long[] latencies = new long[PRODUCERS.length * perProducer];
+    final Object payload = "12345678";
+
+    Thread consumer = new Thread("consumer") {
+      public void run() {
+        try {
+          for(int i = 0; i < latencies.length; i++) box.take();
+        } catch(InterruptedException ignored) {
+          //  Done.
+        }
+      }
+    };
+    consumer.start();
+
+    Thread[] producers = new Thread[PRODUCERS.length];
+    for(int p = 0; p < PRODUCERS.length; p++) {
+      final int base = p * perProducer;
+      producers[p] = new Thread(PRODUCERS[p]) {
+        public void run() {
+          for(int i = 0; i < perProducer; i++) {
+            long start = System.nanoTime();
+            box.offer(payload);
+            latencies[base + i] = System.nanoTime() - start;
+          }
+        }
+      };
+    }
+    for(Thread t : producers) t.start();
+    for(Thread t : producers) t.join();
+    consumer.join();
+
+    return latencies;
+  }
+
+  private static void measure(String name, Class<? extends Mailbox> kind, int perProducer) throws Exception {
+    for(int i = 0; i < WARMUPS; i++) round(kind.newInstance(), perProducer);
+
+    long[] all = new long[0];
+    for(int i = 0; i < ROUNDS; i++) {
+      long[] latencies = round(kind.newInstance(), perProducer);
+      long[] merged = Arrays.copyOf(all, all.length + latencies.length);
+      System.arraycopy(latencies, 0, merged, all.length, latencies.length);
+      all = merged;
+    }
+    Arrays.sort(all);
+
+    long total = 0;
+    for(long l : all) total += l;
+    System.out.println(String.format("%-10s mean %6dns  p50 %6dns  p99 %8dns  p99.9 %9dns  max %10dns", name,
+        total / all.length, all[all.length / 2], all[(int) (all.length * 0.99)], all[(int) (all.length * 0.999)], all[all.length - 1]));
+  }
+
+  public static void main(String[] args) throws Exception {
+    int perProducer = args.length == 0 ? 200000 : Integer.parseInt(args[0]);
+
+    measure("locked", LockedMailbox.class, perProducer);
+    measure("lock-free", LockFreeMailbox.class, perProducer);
+  }
+}
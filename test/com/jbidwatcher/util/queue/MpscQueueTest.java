@@ -0,0 +1,80 @@
+package com.jbidwatcher.util.queue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Exercise the lock-free mailbox at the core of the message queues.
+ */
+public class MpscQueueTest {
+  MpscQueue<String> queue;
+
+  @Before
+  public void setup() {
+    queue = new MpscQueue<String>();
+  }
+
+  @Test
+  public void deliversInOrder() {
+    assertTrue(queue.isEmpty());
+    assertNull(queue.poll());
+
+    queue.offer("one");
+    queue.offer("two");
+    assertEquals(2, queue.size());
+    assertEquals("two", queue.peekLast());
+
+    assertEquals("one", queue.poll());
+    assertEquals("two", queue.poll());
+    assertNull(queue.poll());
+    assertNull(queue.peekLast());
+    assertTrue(queue.isEmpty());
+  }
+
+  @Test
+  public void clearDropsOnlyWhatWasAlreadySent() {
+    queue.offer("old");
+    queue.offer("older");
+    queue.clear();
+    assertNull(queue.peekLast());
+    queue.offer("new");
+
+    assertEquals("new", queue.poll());
+    assertNull(queue.poll());
+    assertEquals(0, queue.size());
+  }
+
+  @Test
+  public void manyProducersKeepTheirOwnOrder() throws InterruptedException {
+    final int producers = 4;
+    final int perProducer = 20000;
+    Thread[] threads = new Thread[producers];
+    for(int p = 0; p < producers; p++) {
+      final int id = p;
+      threads[p] = new Thread() {
+        public void run() {
+          for(int i = 0; i < perProducer; i++) queue.offer(id + ":" + i);
+        }
+      };
+      threads[p].start();
+    }
+
+    int[] next = new int[producers];
+    int received = 0;
+    while(received < producers * perProducer) {
+      queue.await();
+      String message;
+      while((message = queue.poll()) != null) {
+        String[] parts = message.split(":");
+        int id = Integer.parseInt(parts[0]);
+        assertEquals(next[id]++, Integer.parseInt(parts[1]));
+        received++;
+      }
+    }
+
+    for(Thread t : threads) t.join();
+    assertNull(queue.poll());
+  }
+}
@@ -0,0 +1,64 @@
+package com.jbidwatcher.util.queue;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check the per-queue statistics and the stall check.
+ */
+public class QueueStatsTest {
+  @Test
+  public void histogramReportsBucketBounds() {
+    LatencyHistogram h = new LatencyHistogram();
+    assertEquals(0, h.getPercentile(50));
+    for(int i = 0; i < 99; i++) h.record(3000);   //  3us
+    h.record(5000000);                            //  5ms
+
+    assertEquals(100, h.getCount());
+    assertEquals(4, h.getPercentile(50));
+    assertEquals(4, h.getPercentile(99));
+    assertTrue(h.getPercentile(100) >= 5000);
+    assertEquals(5000, h.getMax());
+  }
+
+  @Test
+  public void queueTracksDepthAndStalls() throws InterruptedException {
+    final MessageQueue q = new PlainMessageQueue("stats-test");
+    final Object release = new Object();
+    final boolean[] released = { false };
+    q.registerListener(new MessageQueue.Listener() {
+      public void messageAction(Object deQ) {
+        synchronized(release) {
+          while(!released[0]) {
+            try { release.wait(); } catch(InterruptedException ignored) { return; }
+          }
+        }
+      }
+    });
+
+    q.enqueue("one");
+    q.enqueue("two");
+    q.enqueue("three");
+    Thread.sleep(50);
+
+    long now = System.nanoTime();
+    assertFalse(q.checkStall(now, 1000L * 1000000));
+    assertTrue(q.checkStall(now, 10L * 1000000));
+    assertFalse(q.checkStall(now, 10L * 1000000));
+
+    synchronized(release) {
+      released[0] = true;
+      release.notifyAll();
+    }
+    Thread.sleep(50);
+
+    QueueStats stats = q.getStats();
+    assertEquals(3, stats.getEnqueued());
+    assertTrue(stats.getHighWater() >= 2);
+    assertEquals(1, stats.getStalls());
+    assertEquals(3, stats.getWait().getCount());
+    assertEquals(3, stats.getListener().getCount());
+    assertTrue(stats.getListener().getMax() >= 40000);
+  }
+}
@@ -0,0 +1,102 @@
+package com.jbidwatcher.util.queue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Exercise the timing wheel behind the TimeQueue.
+ */
+public class TimeQueueTest {
+  private static final long NOW = 1400000000000L;
+  TimeQueue timeQueue;
+
+  @Before
+  public void setup() {
+    timeQueue = new TimeQueue(NOW);
+  }
+
+  @Test
+  public void nothingFiresEarly() {
+    timeQueue.addEvent(NOW + 1500, "later");
+
+    assertNull(timeQueue.getAnyLessThan(NOW + 1500));
+    assertEquals("later", timeQueue.getAnyLessThan(NOW + 1501));
+    assertEquals(0, timeQueue.size());
+  }
+
+  @Test
+  public void eventsInTheSameSecondFireInMillisecondOrder() {
+    timeQueue.addEvent(NOW + 5900, "third");
+    timeQueue.addEvent(NOW + 5100, "first");
+    timeQueue.addEvent(NOW + 5500, "second");
+
+    assertNull(timeQueue.getAnyLessThan(NOW + 5100));
+    assertEquals("first", timeQueue.getAnyLessThan(NOW + 5101));
+    assertNull(timeQueue.getAnyLessThan(NOW + 5101));
+    assertEquals("second", timeQueue.getAnyLessThan(NOW + 6000));
+    assertEquals("third", timeQueue.getAnyLessThan(NOW + 6000));
+  }
+
+  @Test
+  public void farFutureEventsCascadeIn() {
+    long inAWeek = NOW + 7L * 24 * 60 * 60 * 1000;
+    long inAYear = NOW + 365L * 24 * 60 * 60 * 1000;
+    timeQueue.addEvent(inAYear, "year");
+    timeQueue.addEvent(inAWeek, "week");
+
+    assertNull(timeQueue.getAnyLessThan(inAWeek));
+    assertEquals("week", timeQueue.getAnyLessThan(inAWeek + 1));
+    assertNull(timeQueue.getAnyLessThan(inAYear));
+    assertEquals("year", timeQueue.getAnyLessThan(inAYear + 1));
+  }
+
+  @Test
+  public void erasedEventsNeverFire() {
+    TimeQueue.QObject soon = timeQueue.addEvent(NOW + 10, "soon");
+    TimeQueue.QObject later = timeQueue.addEvent(NOW + 100000, "later");
+    timeQueue.addEvent(NOW + 200000, "kept");
+
+    assertTrue(timeQueue.erase(soon));
+    assertTrue(timeQueue.erase(later));
+    assertFalse(timeQueue.erase(later));
+    assertEquals(1, timeQueue.size());
+
+    assertEquals("kept", timeQueue.getAnyLessThan(NOW + 300000));
+    assertNull(timeQueue.getAnyLessThan(NOW + 300000));
+  }
+
+  @Test
+  public void nextEventTimeNeverLaterThanTheEvent() {
+    assertEquals(Long.MAX_VALUE, timeQueue.nextEventTime());
+
+    long inAnHour = NOW + 60L * 60 * 1000;
+    timeQueue.addEvent(inAnHour, "hour");
+    long next = timeQueue.nextEventTime();
+    assertTrue(next > NOW && next <= inAnHour);
+
+    timeQueue.addEvent(NOW + 2345, "soon");
+    assertEquals(NOW + 2345, timeQueue.nextEventTime());
+
+    assertEquals("soon", timeQueue.getAnyLessThan(NOW + 2346));
+    next = timeQueue.nextEventTime();
+    assertTrue(next > NOW + 2346 && next <= inAnHour);
+  }
+
+  @Test
+  public void managerFindsPayloadsByDestination() {
+    TimeQueueManager tqm = new TimeQueueManager();
+    long when = System.currentTimeMillis() + 60000;
+    tqm.add("12345", "ebay sniper", when);
+    tqm.add("12345", "drop", when + 30000);
+
+    assertTrue(tqm.contains("12345", "ebay sniper"));
+    assertFalse(tqm.contains("12345", "user"));
+    assertEquals(1, tqm.countFor("drop"));
+
+    assertTrue(tqm.erase("12345"));
+    assertFalse(tqm.contains("12345"));
+    assertEquals(0, tqm.countFor("drop"));
+  }
+}